@@ -17,37 +17,27 @@
 package fi.harism.instacam;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Locale;
 
 import android.animation.Animator;
 import android.animation.ObjectAnimator;
 import android.animation.PropertyValuesHolder;
 import android.app.Activity;
-import android.app.ProgressDialog;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
 import android.hardware.SensorManager;
-import android.media.ExifInterface;
 import android.os.Bundle;
-import android.os.Environment;
-import android.provider.MediaStore;
-import android.provider.MediaStore.Images;
-import android.provider.MediaStore.Images.ImageColumns;
-import android.provider.MediaStore.MediaColumns;
+import android.view.MotionEvent;
 import android.view.OrientationEventListener;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -58,26 +48,49 @@ import android.widget.Toast;
  */
 public class InstaCamActivity extends Activity {
 
+	// Maximum number of filters stacked before selected one.
+	private static final int FILTER_STACK_MAX = 4;
+	// Memory budget for streaming save in bytes.
+	private static final int SAVE_BAND_BUDGET = InstaCamBandSaver.DEFAULT_BUDGET;
+
+	// Preview analyser for automatic levels.
+	private InstaCamAnalyzer mAnalyzer;
+	// Automatic levels flag, brightness and contrast follow preview.
+	private boolean mAutoLevels;
 	// Custom camera holder class.
 	private final InstaCamCamera mCamera = new InstaCamCamera();
-	// RenderScript holder class.
-	private InstaCamRS mInstaCamRS;
+	// Burst mode flag, pictures are queued for saving right away.
+	private boolean mBurstMode;
+	// Filter selected with filter Spinner.
+	private int mFilter;
+	// Filters applied before selected one, in order.
+	private int[] mFilterStack = {};
+	// Runnable for updating frame statistics overlay.
+	private final FrameStatsUpdater mFrameStatsUpdater = new FrameStatsUpdater();
+	// Observer for automatic levels.
+	private final AnalyzerObserver mObserverAnalyzer = new AnalyzerObserver();
 	// Common observer for all Buttons.
 	private final ButtonObserver mObserverButton = new ButtonObserver();
 	// Camera observer for handling picture taking.
 	private final CameraObserver mObserverCamera = new CameraObserver();
+	// Common observer for all CheckBoxes.
+	private final CheckBoxObserver mObserverCheckBox = new CheckBoxObserver();
 	// Device orientation observer.
 	private OrientationObserver mObserverOrientation;
 	// Observer for handling SurfaceTexture creation.
 	private final RendererObserver mObserverRenderer = new RendererObserver();
+	// Observer for picking filters from gallery.
+	private final RendererTouchObserver mObserverRendererTouch = new RendererTouchObserver();
 	// Common observer for all SeekBars.
 	private final SeekBarObserver mObserverSeekBar = new SeekBarObserver();
 	// Common observer for all Spinners.
 	private final SpinnerObserver mObserverSpinner = new SpinnerObserver();
-	// Application shared preferences instance.
-	private SharedPreferences mPreferences;
 	// Preview texture renderer class.
 	private InstaCamRenderer mRenderer;
+	// Queue for saving pictures in background.
+	private InstaCamSaveQueue mSaveQueue;
+	// Application settings, written into preferences in background.
+	private InstaCamSettings mSettings;
 	// Shared data instance.
 	private final InstaCamData mSharedData = new InstaCamData();
 
@@ -89,6 +102,7 @@ public class InstaCamActivity extends Activity {
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
+		InstaCamTrace.beginSection("InstaCamActivity.onCreate");
 		super.onCreate(savedInstanceState);
 
 		// Force full screen view.
@@ -97,8 +111,33 @@ public class InstaCamActivity extends Activity {
 		getWindow().clearFlags(
 				WindowManager.LayoutParams.FLAG_FORCE_NOT_FULLSCREEN);
 
-		// Instantiate RenderScript.
-		mInstaCamRS = new InstaCamRS(this);
+		// Instantiate RenderScript on a background thread, it's needed only
+		// once a picture is saved. Pure Java filters are used instead if
+		// RenderScript isn't available on this device.
+		mSaveQueue = new InstaCamSaveQueue(this, new InstaCamAsyncEngine(this),
+				new InstaCamBandSaver(SAVE_BAND_BUDGET), new SaveObserver());
+		// Run neighbourhood filter benchmark if requested.
+		if (getIntent().getBooleanExtra(InstaCamBenchmark.EXTRA_BENCHMARK,
+				false)) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					InstaCamBenchmark.run(InstaCamActivity.this,
+							InstaCamBenchmark.WIDTH, InstaCamBenchmark.HEIGHT,
+							3);
+				}
+			}).start();
+		}
+		if (getIntent().getBooleanExtra(InstaCamParity.EXTRA_PARITY, false)) {
+			final boolean storeBaseline = getIntent().getBooleanExtra(
+					InstaCamParity.EXTRA_PARITY_BASELINE, false);
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					InstaCamParity.run(InstaCamActivity.this, storeBaseline);
+				}
+			}).start();
+		}
 		// Instantieate device orientation observer.
 		mObserverOrientation = new OrientationObserver(this);
 
@@ -121,6 +160,13 @@ public class InstaCamActivity extends Activity {
 		mRenderer = (InstaCamRenderer) findViewById(R.id.instacam_renderer);
 		mRenderer.setSharedData(mSharedData);
 		mRenderer.setObserver(mObserverRenderer);
+		mRenderer.setOnTouchListener(mObserverRendererTouch);
+
+		// Instantiate preview analyser, it's handed to renderer once
+		// automatic levels are turned on.
+		mAnalyzer = new InstaCamAnalyzer(this);
+		mAnalyzer.setSharedData(mSharedData);
+		mAnalyzer.setObserver(mObserverAnalyzer);
 
 		// Hide menu view by default.
 		View menu = findViewById(R.id.menu);
@@ -133,15 +179,43 @@ public class InstaCamActivity extends Activity {
 		findViewById(R.id.button_cancel).setOnClickListener(mObserverButton);
 		findViewById(R.id.button_menu).setOnClickListener(mObserverButton);
 		findViewById(R.id.button_rotate).setOnClickListener(mObserverButton);
+		findViewById(R.id.button_filter_stack).setOnClickListener(
+				mObserverButton);
+		findViewById(R.id.button_filter_clear).setOnClickListener(
+				mObserverButton);
 
-		// Get preferences instance.
-		mPreferences = getPreferences(MODE_PRIVATE);
+		// Get settings instance.
+		mSettings = new InstaCamSettings(getPreferences(MODE_PRIVATE));
 
 		// Set observer for filter Spinner.
 		filterSpinner.setOnItemSelectedListener(mObserverSpinner);
-		mSharedData.mFilter = mPreferences.getInt(
-				getString(R.string.key_filter), 0);
-		filterSpinner.setSelection(mSharedData.mFilter);
+		mFilter = mSettings.getInt(getString(R.string.key_filter), 0);
+		filterSpinner.setSelection(mFilter);
+
+		// Restore stacked filters, stored as comma separated ids.
+		mFilterStack = parseFilterStack(mSettings.getString(
+				getString(R.string.key_filter_stack), ""));
+		updateFilterChain();
+
+		// Set observer for burst mode CheckBox.
+		CheckBox burstCheckBox = (CheckBox) findViewById(R.id.checkbox_burst);
+		mBurstMode = mSettings.getBoolean(getString(R.string.key_burst),
+				false);
+		burstCheckBox.setChecked(mBurstMode);
+		burstCheckBox.setOnCheckedChangeListener(mObserverCheckBox);
+
+		// Set observer for filter gallery CheckBox.
+		CheckBox galleryCheckBox = (CheckBox) findViewById(R.id.checkbox_gallery);
+		galleryCheckBox.setChecked(mSettings.getBoolean(
+				getString(R.string.key_gallery), false));
+		mRenderer.setGalleryVisible(galleryCheckBox.isChecked());
+		galleryCheckBox.setOnCheckedChangeListener(mObserverCheckBox);
+
+		// Set observer for frame statistics CheckBox.
+		CheckBox statsCheckBox = (CheckBox) findViewById(R.id.checkbox_frame_stats);
+		statsCheckBox.setChecked(mSettings.getBoolean(
+				getString(R.string.key_frame_stats), false));
+		statsCheckBox.setOnCheckedChangeListener(mObserverCheckBox);
 
 		// SeekBar ids as triples { SeekBar id, key id, default value }.
 		final int SEEKBAR_IDS[][] = {
@@ -153,7 +227,7 @@ public class InstaCamActivity extends Activity {
 		for (int ids[] : SEEKBAR_IDS) {
 			SeekBar seekBar = (SeekBar) findViewById(ids[0]);
 			seekBar.setOnSeekBarChangeListener(mObserverSeekBar);
-			seekBar.setProgress(mPreferences.getInt(getString(ids[1]), ids[2]));
+			seekBar.setProgress(mSettings.getInt(getString(ids[1]), ids[2]));
 			// SeekBar.setProgress triggers observer only in case its value
 			// changes. And we're relying on this trigger to happen.
 			if (seekBar.getProgress() == 0) {
@@ -161,11 +235,29 @@ public class InstaCamActivity extends Activity {
 				seekBar.setProgress(0);
 			}
 		}
+
+		// Set observer for automatic levels CheckBox, brightness and
+		// contrast SeekBars have to be initialized first.
+		CheckBox levelsCheckBox = (CheckBox) findViewById(R.id.checkbox_auto_levels);
+		levelsCheckBox.setChecked(mSettings.getBoolean(
+				getString(R.string.key_auto_levels), false));
+		setAutoLevels(levelsCheckBox.isChecked());
+		levelsCheckBox.setOnCheckedChangeListener(mObserverCheckBox);
+		InstaCamTrace.endSection();
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		// Queue releases filter engine once pending pictures are saved.
+		mSaveQueue.release();
+		mAnalyzer.release();
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		mSaveQueue.trimMemory();
 	}
 
 	@Override
@@ -174,6 +266,9 @@ public class InstaCamActivity extends Activity {
 		mCamera.onPause();
 		mRenderer.onPause();
 		mObserverOrientation.disable();
+		mFrameStatsUpdater.stop();
+		// Write pending setting changes before we may be killed.
+		mSettings.flush();
 	}
 
 	@Override
@@ -181,12 +276,86 @@ public class InstaCamActivity extends Activity {
 		super.onResume();
 		mCamera.onResume();
 		mRenderer.onResume();
+		// Picture callback is lost if we were paused while taking one.
+		findViewById(R.id.button_shoot).setEnabled(true);
+
+		CheckBox statsCheckBox = (CheckBox) findViewById(R.id.checkbox_frame_stats);
+		if (statsCheckBox.isChecked()) {
+			mFrameStatsUpdater.start();
+		}
 
 		if (mObserverOrientation.canDetectOrientation()) {
 			mObserverOrientation.enable();
 		}
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Idle Bitmaps are only a cache, any memory pressure drops them.
+		mSaveQueue.trimMemory();
+	}
+
+	/**
+	 * Parses stacked filters stored by storeFilterStack(). Empty stack is
+	 * returned if stored value isn't a valid stack.
+	 */
+	private final int[] parseFilterStack(String stack) {
+		if (stack.length() == 0) {
+			return new int[0];
+		}
+		String[] ids = stack.split(",");
+		if (ids.length > FILTER_STACK_MAX) {
+			return new int[0];
+		}
+		int[] filterStack = new int[ids.length];
+		for (int i = 0; i < ids.length; ++i) {
+			try {
+				filterStack[i] = Integer.parseInt(ids[i]);
+			} catch (NumberFormatException ex) {
+				return new int[0];
+			}
+			// Default filter is never stacked.
+			if (filterStack[i] <= InstaCamFilters.FILTER_DEFAULT
+					|| filterStack[i] >= InstaCamFilters.FILTER_COUNT) {
+				return new int[0];
+			}
+		}
+		return filterStack;
+	}
+
+	/**
+	 * Queues picture for saving with snapshot of current filter values.
+	 */
+	private final void savePicture(byte[] data, long time) {
+		if (!mSaveQueue.offer(data, time, mCamera.getOrientation(),
+				mSharedData.getParams())) {
+			Toast.makeText(this, R.string.save_queue_full, Toast.LENGTH_SHORT)
+					.show();
+		}
+	}
+
+	/**
+	 * Turns automatic brightness and contrast on or off. Manual SeekBar
+	 * values are taken back into use when turned off.
+	 */
+	private final void setAutoLevels(boolean autoLevels) {
+		mAutoLevels = autoLevels;
+		SeekBar brightness = (SeekBar) findViewById(R.id.seekbar_brightness);
+		SeekBar contrast = (SeekBar) findViewById(R.id.seekbar_contrast);
+		brightness.setEnabled(!autoLevels);
+		contrast.setEnabled(!autoLevels);
+		if (autoLevels) {
+			mAnalyzer.reset();
+			mRenderer.setAnalyzer(mAnalyzer);
+		} else {
+			mRenderer.setAnalyzer(null);
+			mSharedData.setBrightness((brightness.getProgress() - 5) / 10f);
+			mSharedData.setContrast((contrast.getProgress() - 5) / 10f);
+			mRenderer.requestRender();
+		}
+	}
+
 	private final void setCameraFront(final boolean front) {
 		View button = findViewById(R.id.button_rotate);
 
@@ -276,6 +445,57 @@ public class InstaCamActivity extends Activity {
 		}
 	}
 
+	/**
+	 * Stores stacked filters into preferences.
+	 */
+	private final void storeFilterStack() {
+		StringBuilder stack = new StringBuilder();
+		for (int filter : mFilterStack) {
+			if (stack.length() > 0) {
+				stack.append(',');
+			}
+			stack.append(filter);
+		}
+		mSettings.putString(getString(R.string.key_filter_stack),
+				stack.toString());
+	}
+
+	/**
+	 * Replaces shared filter chain with stacked filters followed by selected
+	 * one and shows it in menu.
+	 */
+	private final void updateFilterChain() {
+		int[] filters = Arrays.copyOf(mFilterStack, mFilterStack.length + 1);
+		filters[mFilterStack.length] = mFilter;
+		mSharedData.setFilterChain(new InstaCamFilterChain(filters));
+
+		String[] names = getResources().getStringArray(R.array.filters);
+		StringBuilder chain = new StringBuilder();
+		for (int filter : filters) {
+			if (chain.length() > 0) {
+				chain.append(" > ");
+			}
+			chain.append(names[filter]);
+		}
+		TextView textView = (TextView) findViewById(R.id.text_filter_chain);
+		textView.setText(getString(R.string.text_filter_chain, chain));
+		mRenderer.requestRender();
+	}
+
+	/**
+	 * Class for applying automatic levels.
+	 */
+	private final class AnalyzerObserver implements InstaCamAnalyzer.Observer {
+		@Override
+		public void onLevelsChanged(float brightness, float contrast) {
+			if (mAutoLevels) {
+				mSharedData.setBrightness(brightness);
+				mSharedData.setContrast(contrast);
+				mRenderer.requestRender();
+			}
+		}
+	}
+
 	private final class ButtonObserver implements View.OnClickListener {
 		@Override
 		public void onClick(View v) {
@@ -289,6 +509,8 @@ public class InstaCamActivity extends Activity {
 				// We do not want to receive orientation changes until picture
 				// is either saved or cancelled.
 				mObserverOrientation.disable();
+				// Prevent new shots until camera has delivered this one.
+				v.setEnabled(false);
 				mCamera.takePicture(mObserverCamera);
 				break;
 			// Pressing menu button switches menu visibility.
@@ -296,14 +518,14 @@ public class InstaCamActivity extends Activity {
 				View view = findViewById(R.id.menu);
 				setMenuVisible(view.getVisibility() != View.VISIBLE);
 				break;
-			// Save button starts separate thread for saving picture.
+			// Save button queues picture for saving and resumes preview.
 			case R.id.button_save:
-				mSharedData.mImageProgress = ProgressDialog
-						.show(InstaCamActivity.this, null,
-								getString(R.string.saving));
-				Thread thread = new Thread(new SaveRunnable());
-				thread.setPriority(Thread.MAX_PRIORITY);
-				thread.start();
+				savePicture(mSharedData.mImageData, mSharedData.mImageTime);
+				mSharedData.mImageData = null;
+				findViewById(R.id.buttons_shoot).setVisibility(View.VISIBLE);
+				findViewById(R.id.buttons_cancel_save).setVisibility(View.GONE);
+				mCamera.startPreview();
+				mObserverOrientation.enable();
 				break;
 			// Cancel button simply discards current picture data.
 			case R.id.button_cancel:
@@ -317,6 +539,23 @@ public class InstaCamActivity extends Activity {
 			case R.id.button_rotate:
 				setCameraFront(!mCamera.isCameraFront());
 				break;
+			// Stack button appends selected filter into chain.
+			case R.id.button_filter_stack:
+				if (mFilter != InstaCamFilters.FILTER_DEFAULT
+						&& mFilterStack.length < FILTER_STACK_MAX) {
+					mFilterStack = Arrays.copyOf(mFilterStack,
+							mFilterStack.length + 1);
+					mFilterStack[mFilterStack.length - 1] = mFilter;
+					storeFilterStack();
+					updateFilterChain();
+				}
+				break;
+			// Clear button removes stacked filters.
+			case R.id.button_filter_clear:
+				mFilterStack = new int[0];
+				storeFilterStack();
+				updateFilterChain();
+				break;
 			}
 		}
 
@@ -337,20 +576,109 @@ public class InstaCamActivity extends Activity {
 
 		@Override
 		public void onPictureTaken(byte[] data) {
-			// Once picture is taken just store its data.
+			long time = Calendar.getInstance().getTimeInMillis();
+			findViewById(R.id.button_shoot).setEnabled(true);
+			// In burst mode picture is queued for saving right away.
+			if (mBurstMode) {
+				savePicture(data, time);
+				mCamera.startPreview();
+				mObserverOrientation.enable();
+				return;
+			}
+			// Otherwise just store its data.
 			mSharedData.mImageData = data;
 			// And time it was taken.
-			Calendar calendar = Calendar.getInstance();
-			mSharedData.mImageTime = calendar.getTimeInMillis();
+			mSharedData.mImageTime = time;
 		}
 
 		@Override
 		public void onShutter() {
 			// At the point picture is actually taken switch footer buttons.
-			findViewById(R.id.buttons_cancel_save).setVisibility(View.VISIBLE);
-			findViewById(R.id.buttons_shoot).setVisibility(View.GONE);
+			if (!mBurstMode) {
+				findViewById(R.id.buttons_cancel_save).setVisibility(
+						View.VISIBLE);
+				findViewById(R.id.buttons_shoot).setVisibility(View.GONE);
+			}
+		}
+
+	}
+
+	/**
+	 * Class for implementing CheckBox related callbacks.
+	 */
+	private final class CheckBoxObserver implements
+			CompoundButton.OnCheckedChangeListener {
+		@Override
+		public void onCheckedChanged(CompoundButton buttonView,
+				boolean isChecked) {
+			switch (buttonView.getId()) {
+			// Turn automatic levels on or off and update preferences.
+			case R.id.checkbox_auto_levels:
+				mSettings.putBoolean(getString(R.string.key_auto_levels),
+						isChecked);
+				setAutoLevels(isChecked);
+				break;
+			// Store burst mode flag and update preferences.
+			case R.id.checkbox_burst:
+				mSettings.putBoolean(getString(R.string.key_burst), isChecked);
+				mBurstMode = isChecked;
+				break;
+			// Show or hide filter gallery and update preferences.
+			case R.id.checkbox_gallery:
+				mSettings.putBoolean(getString(R.string.key_gallery), isChecked);
+				mRenderer.setGalleryVisible(isChecked);
+				break;
+			// Show or hide frame statistics overlay.
+			case R.id.checkbox_frame_stats:
+				mSettings.putBoolean(getString(R.string.key_frame_stats),
+						isChecked);
+				if (isChecked) {
+					mFrameStatsUpdater.start();
+				} else {
+					mFrameStatsUpdater.stop();
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Runnable for refreshing frame statistics overlay periodically.
+	 */
+	private final class FrameStatsUpdater implements Runnable {
+
+		// Refresh interval in milliseconds.
+		private static final long INTERVAL = 500;
+
+		@Override
+		public void run() {
+			TextView textView = (TextView) findViewById(R.id.text_frame_stats);
+			textView.setText(mRenderer.getFrameStats().getSummary());
+			textView.postDelayed(this, INTERVAL);
+		}
+
+		/**
+		 * Shows overlay and starts refreshing it. GPU stages are waited for
+		 * while overlay is visible.
+		 */
+		public void start() {
+			View view = findViewById(R.id.text_frame_stats);
+			view.removeCallbacks(this);
+			view.setVisibility(View.VISIBLE);
+			mRenderer.getFrameStats().reset();
+			mRenderer.getFrameStats().setSynchronous(true);
+			view.post(this);
 		}
 
+		/**
+		 * Hides overlay and stops refreshing it.
+		 */
+		public void stop() {
+			View view = findViewById(R.id.text_frame_stats);
+			view.removeCallbacks(this);
+			view.setVisibility(View.GONE);
+			mRenderer.getFrameStats().setSynchronous(false);
+		}
 	}
 
 	/**
@@ -399,154 +727,79 @@ public class InstaCamActivity extends Activity {
 	 */
 	private class RendererObserver implements InstaCamRenderer.Observer {
 		@Override
-		public void onSurfaceTextureCreated(SurfaceTexture surfaceTexture) {
-			// Once we have SurfaceTexture try setting it to Camera.
-			try {
-				mCamera.stopPreview();
-				mCamera.setPreviewTexture(surfaceTexture);
-
-				// Start preview only if shoot -button is visible. Otherwise we
-				// do have image captured for later use.
-				if (findViewById(R.id.buttons_shoot).getVisibility() == View.VISIBLE)
-					mCamera.startPreview();
-
-			} catch (final Exception ex) {
-				runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
+		public void onSurfaceTextureCreated(
+				final SurfaceTexture surfaceTexture,
+				final SurfaceTexture oldSurfaceTexture, final int width,
+				final int height) {
+			// Camera is opened and released on main thread, it's accessed
+			// only there.
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					// Camera was released while this call was pending.
+					if (!mCamera.isOpen()) {
+						releaseOld();
+						return;
+					}
+					// Once we have SurfaceTexture try setting it to Camera,
+					// with preview size negotiated for view size.
+					try {
+						mCamera.stopPreview();
+						mCamera.setPreviewSurfaceSize(width, height);
+						mCamera.setPreviewTexture(surfaceTexture);
+
+						// Start preview only if shoot -button is visible.
+						// Otherwise we do have image captured for later use.
+						if (findViewById(R.id.buttons_shoot).getVisibility() == View.VISIBLE)
+							mCamera.startPreview();
+
+					} catch (Exception ex) {
 						Toast.makeText(InstaCamActivity.this, ex.getMessage(),
 								Toast.LENGTH_LONG).show();
+					} finally {
+						// Camera no longer renders into old SurfaceTexture.
+						releaseOld();
 					}
-				});
-			}
+				}
+
+				private void releaseOld() {
+					if (oldSurfaceTexture != null) {
+						oldSurfaceTexture.release();
+					}
+				}
+			});
 		}
 	}
 
 	/**
-	 * Runnable for handling asynchronous picture saving.
+	 * Class for picking filter by tapping its gallery tile.
 	 */
-	private final class SaveRunnable implements Runnable {
-
+	private final class RendererTouchObserver implements View.OnTouchListener {
 		@Override
-		public void run() {
-			String error = null;
-			try {
-				// First instantiate calendar instance.
-				Calendar calendar = Calendar.getInstance();
-				calendar.setTimeInMillis(mSharedData.mImageTime);
-
-				// Generate picture name.
-				String pictureName = String.format(Locale.getDefault(),
-						"InstaCam_%d%02d%02d_%02d%02d%02d",
-						calendar.get(Calendar.YEAR),
-						calendar.get(Calendar.MONTH) + (1 - Calendar.JANUARY),
-						calendar.get(Calendar.DATE),
-						calendar.get(Calendar.HOUR_OF_DAY),
-						calendar.get(Calendar.MINUTE),
-						calendar.get(Calendar.SECOND));
-
-				// Get "Pictures" -directory path.
-				File filePath = Environment
-						.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-				// Add "/InstaCam/" -directory to it.
-				filePath = new File(filePath, "/InstaCam/");
-				// Make all dirs till ".../Pictures/InstaCam/".
-				filePath.mkdirs();
-				// Generate final file path ".../InstaCam/picname.jpeg".
-				filePath = new File(filePath, pictureName + ".jpeg");
-				// Create picture file.
-				filePath.createNewFile();
-
-				// We'd prefer to have ARGB_8888 Bitmap.
-				BitmapFactory.Options options = new BitmapFactory.Options();
-				options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-				// Decode picture taken by camera.
-				Bitmap bitmap = BitmapFactory.decodeByteArray(
-						mSharedData.mImageData, 0,
-						mSharedData.mImageData.length, options);
-				// Apply RenderScript filter to Bitmap.
-				mInstaCamRS.applyFilter(bitmap, mSharedData);
-				// Save picture to file system.
-				FileOutputStream fos = new FileOutputStream(filePath);
-				bitmap.compress(Bitmap.CompressFormat.JPEG, 90, fos);
-				fos.flush();
-				fos.close();
-				bitmap.recycle();
-
-				ExifInterface exif = new ExifInterface(
-						filePath.getAbsolutePath());
-				switch (mCamera.getOrientation()) {
-				case 90:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer
-							.toString(ExifInterface.ORIENTATION_ROTATE_90));
-					break;
-				case 180:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer
-							.toString(ExifInterface.ORIENTATION_ROTATE_180));
-					break;
-				case 270:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer
-							.toString(ExifInterface.ORIENTATION_ROTATE_270));
-					break;
-				default:
-					exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-							Integer.toString(ExifInterface.ORIENTATION_NORMAL));
-					break;
-				}
-				exif.saveAttributes();
-
-				// Add picture to content resolver.
-				ContentValues v = new ContentValues();
-				v.put(MediaColumns.TITLE, pictureName);
-				v.put(MediaColumns.DISPLAY_NAME, pictureName);
-				v.put(ImageColumns.DESCRIPTION, "Taken with InstaCam.");
-				v.put(MediaColumns.DATE_ADDED, calendar.getTimeInMillis());
-				v.put(ImageColumns.DATE_TAKEN, calendar.getTimeInMillis());
-				v.put(MediaColumns.DATE_MODIFIED, calendar.getTimeInMillis());
-				v.put(MediaColumns.MIME_TYPE, "image/jpeg");
-				v.put(ImageColumns.ORIENTATION, mCamera.getOrientation());
-				v.put(MediaColumns.DATA, filePath.getAbsolutePath());
-
-				File parent = filePath.getParentFile();
-				String path = parent.toString()
-						.toLowerCase(Locale.getDefault());
-				String name = parent.getName().toLowerCase(Locale.getDefault());
-				v.put(Images.ImageColumns.BUCKET_ID, path.hashCode());
-				v.put(Images.ImageColumns.BUCKET_DISPLAY_NAME, name);
-				v.put(MediaColumns.SIZE, filePath.length());
-
-				// if( targ_loc != null ) {
-				// v.put(Images.Media.LATITUDE, loc.getLatitude());
-				// v.put(Images.Media.LONGITUDE, loc.getLongitude());
-				// }
-
-				ContentResolver c = getContentResolver();
-				c.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, v);
-			} catch (Exception ex) {
-				error = ex.getMessage();
+		public boolean onTouch(View v, MotionEvent event) {
+			int tile = mRenderer.getGalleryTile(event.getX(), event.getY());
+			if (tile == -1) {
+				return false;
+			}
+			// Tile index equals filter id and Spinner position.
+			if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+				Spinner spinner = (Spinner) findViewById(R.id.spinner_filter);
+				spinner.setSelection(tile);
 			}
+			return true;
+		}
+	}
 
-			// Finally hide progress dialog, dismiss picture data and show error
-			// message if an error occurred during saving.
-			final String errorMsg = error;
-			runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					mSharedData.mImageProgress.dismiss();
-					mSharedData.mImageProgress = null;
-					mSharedData.mImageData = null;
-					findViewById(R.id.buttons_shoot)
-							.setVisibility(View.VISIBLE);
-					findViewById(R.id.buttons_cancel_save).setVisibility(
-							View.GONE);
-					mCamera.startPreview();
-					mObserverOrientation.enable();
-					if (errorMsg != null) {
-						Toast.makeText(InstaCamActivity.this, errorMsg,
-								Toast.LENGTH_LONG).show();
-					}
-				}
-			});
+	/**
+	 * Class for implementing InstaCamSaveQueue related callbacks.
+	 */
+	private final class SaveObserver implements InstaCamSaveQueue.Observer {
+		@Override
+		public void onPictureSaved(File file, String error) {
+			if (error != null) {
+				Toast.makeText(InstaCamActivity.this, error, Toast.LENGTH_LONG)
+						.show();
+			}
 		}
 	}
 
@@ -563,10 +816,10 @@ public class InstaCamActivity extends Activity {
 			switch (seekBar.getId()) {
 			// On brightness recalculate shared value and update preferences.
 			case R.id.seekbar_brightness: {
-				mPreferences.edit()
-						.putInt(getString(R.string.key_brightness), progress)
-						.commit();
-				mSharedData.mBrightness = (progress - 5) / 10f;
+				mSettings.putInt(getString(R.string.key_brightness), progress);
+				if (!mAutoLevels) {
+					mSharedData.setBrightness((progress - 5) / 10f);
+				}
 
 				TextView textView = (TextView) findViewById(R.id.text_brightness);
 				textView.setText(getString(R.string.seekbar_brightness,
@@ -575,10 +828,10 @@ public class InstaCamActivity extends Activity {
 			}
 			// On contrast recalculate shared value and update preferences.
 			case R.id.seekbar_contrast: {
-				mPreferences.edit()
-						.putInt(getString(R.string.key_contrast), progress)
-						.commit();
-				mSharedData.mContrast = (progress - 5) / 10f;
+				mSettings.putInt(getString(R.string.key_contrast), progress);
+				if (!mAutoLevels) {
+					mSharedData.setContrast((progress - 5) / 10f);
+				}
 				TextView textView = (TextView) findViewById(R.id.text_contrast);
 				textView.setText(getString(R.string.seekbar_contrast,
 						progress - 5));
@@ -586,10 +839,8 @@ public class InstaCamActivity extends Activity {
 			}
 			// On saturation recalculate shared value and update preferences.
 			case R.id.seekbar_saturation: {
-				mPreferences.edit()
-						.putInt(getString(R.string.key_saturation), progress)
-						.commit();
-				mSharedData.mSaturation = (progress - 5) / 10f;
+				mSettings.putInt(getString(R.string.key_saturation), progress);
+				mSharedData.setSaturation((progress - 5) / 10f);
 				TextView textView = (TextView) findViewById(R.id.text_saturation);
 				textView.setText(getString(R.string.seekbar_saturation,
 						progress - 5));
@@ -597,11 +848,9 @@ public class InstaCamActivity extends Activity {
 			}
 			// On radius recalculate shared value and update preferences.
 			case R.id.seekbar_corner_radius: {
-				mPreferences
-						.edit()
-						.putInt(getString(R.string.key_corner_radius), progress)
-						.commit();
-				mSharedData.mCornerRadius = progress / 10f;
+				mSettings.putInt(getString(R.string.key_corner_radius),
+						progress);
+				mSharedData.setCornerRadius(progress / 10f);
 				TextView textView = (TextView) findViewById(R.id.text_corner_radius);
 				textView.setText(getString(R.string.seekbar_corner_radius,
 						-progress));
@@ -627,10 +876,9 @@ public class InstaCamActivity extends Activity {
 		@Override
 		public void onItemSelected(AdapterView<?> parent, View view,
 				int position, long id) {
-			mPreferences.edit()
-					.putInt(getString(R.string.key_filter), position).commit();
-			mSharedData.mFilter = position;
-			mRenderer.requestRender();
+			mSettings.putInt(getString(R.string.key_filter), position);
+			mFilter = position;
+			updateFilterChain();
 		}
 
 		@Override
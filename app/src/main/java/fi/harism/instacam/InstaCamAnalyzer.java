@@ -0,0 +1,235 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Process;
+
+/**
+ * Preview frame analysis for automatic levels. Renderer hands in heavily
+ * downscaled RGBA copies of preview a few times per second, they are added
+ * into smoothed luminance histogram on a worker thread of their own and
+ * brightness and contrast levels derived from histogram percentiles are
+ * posted to observer on main thread.
+ */
+public class InstaCamAnalyzer {
+
+	// Size of analysed frames in pixels.
+	public static final int WIDTH = 64, HEIGHT = 64;
+	// Minimum interval between analysed frames in milliseconds.
+	public static final long INTERVAL = 250;
+
+	// Weight of newest frame in smoothed histogram.
+	private static final float SMOOTHING = .3f;
+	// Share of darkest and brightest pixels ignored as outliers.
+	private static final float SHARE_LOW = .02f, SHARE_HIGH = .98f;
+	// Targets for median luminance and for range between percentiles.
+	private static final float TARGET_MEDIAN = .5f, TARGET_RANGE = .9f;
+	// Level values are limited to SeekBar range and rounded to steps, so
+	// lookup tables aren't rebaked for every small change.
+	private static final float LEVEL_LIMIT = .5f, LEVEL_STEP = .02f;
+
+	// Flag for worker being busy with a frame.
+	private final AtomicBoolean mBusy = new AtomicBoolean();
+	// Frame being analysed, written on GL thread only while worker is idle.
+	private final byte[] mFrame = new byte[WIDTH * HEIGHT * 4];
+	// Queue for handing frame to worker.
+	private final BlockingQueue<byte[]> mFrames = new ArrayBlockingQueue<byte[]>(
+			1);
+	// Handler for posting observer calls to main thread.
+	private final Handler mHandler;
+	// Smoothed luminance histogram, accessed on worker thread only.
+	private final InstaCamHistogram mHistogram = new InstaCamHistogram(
+			SMOOTHING);
+	// Levels posted last, accessed on worker thread only.
+	private float mLevelBrightness, mLevelContrast;
+	// Observer for levels.
+	private volatile Observer mObserver;
+	// Flag for forgetting statistics before next frame.
+	private volatile boolean mReset = true;
+	// Shared data instance.
+	private volatile InstaCamData mSharedData;
+	// Worker thread.
+	private final Thread mThread;
+
+	/**
+	 * Constructor starts worker thread.
+	 */
+	public InstaCamAnalyzer(Context context) {
+		mHandler = new Handler(context.getMainLooper());
+		mThread = new Thread("InstaCamAnalyzer") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					while (true) {
+						analyse(mFrames.take());
+						mBusy.set(false);
+					}
+				} catch (InterruptedException ex) {
+				}
+			}
+		};
+		mThread.start();
+	}
+
+	/**
+	 * Adds frame into histogram and posts levels if they have changed.
+	 */
+	private void analyse(byte[] frame) {
+		InstaCamTrace.beginSection("InstaCamAnalyzer.analyse");
+		boolean reset = mReset;
+		if (reset) {
+			mReset = false;
+			mHistogram.reset();
+		}
+		mHistogram.add(frame, WIDTH * HEIGHT);
+		float low = mHistogram.getPercentile(SHARE_LOW);
+		float median = mHistogram.getPercentile(.5f);
+		float high = mHistogram.getPercentile(SHARE_HIGH);
+
+		// Brightness moves median to target, see
+		// InstaCamFilters.brightness() for how it's applied.
+		float scaled = median < TARGET_MEDIAN ? (TARGET_MEDIAN - median)
+				/ (1f - median) : TARGET_MEDIAN / median - 1f;
+		final float brightness = toLevel(scaled * 2f);
+		// Contrast stretches brightened range between percentiles to target
+		// range, see InstaCamFilters.contrastFactor().
+		low = applyBrightness(low, brightness);
+		high = applyBrightness(high, brightness);
+		float factor = TARGET_RANGE / Math.max(high - low, 1f / 255f);
+		final float contrast = toLevel((float) (Math.atan(factor) * 4.0
+				/ Math.PI - 1.0));
+
+		if (!reset && brightness == mLevelBrightness
+				&& contrast == mLevelContrast) {
+			InstaCamTrace.endSection();
+			return;
+		}
+		mLevelBrightness = brightness;
+		mLevelContrast = contrast;
+
+		// Bake lookup table renderer is about to need here instead of on GL
+		// thread.
+		InstaCamData sharedData = mSharedData;
+		if (sharedData != null) {
+			InstaCamParams params = sharedData.getParams();
+			InstaCamShaderCompiler.Pass[] passes = InstaCamShaderCompiler
+					.plan(params.getFilterChain(),
+							InstaCamShaderCompiler.MAX_TAPS);
+			InstaCamLut.obtain(passes[passes.length - 1].getPointwise(),
+					brightness, contrast, params.getSaturation()).getAtlas();
+		}
+		InstaCamTrace.endSection();
+
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				Observer observer = mObserver;
+				if (observer != null) {
+					observer.onLevelsChanged(brightness, contrast);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns luminance after brightness adjustment of given level.
+	 */
+	private static float applyBrightness(float luma, float brightness) {
+		float[] color = { luma, luma, luma };
+		InstaCamFilters.brightness(color, brightness);
+		return color[0];
+	}
+
+	/**
+	 * Returns true if worker is ready for a new frame.
+	 */
+	public boolean isIdle() {
+		return !mBusy.get();
+	}
+
+	/**
+	 * Hands frame of WIDTH x HEIGHT RGBA pixels to worker, copying it from
+	 * given buffer. Frame is dropped and false returned if worker is still
+	 * busy with previous one. Never blocks.
+	 */
+	public boolean offer(ByteBuffer rgba) {
+		if (!mBusy.compareAndSet(false, true)) {
+			return false;
+		}
+		rgba.position(0);
+		rgba.get(mFrame);
+		mFrames.offer(mFrame);
+		return true;
+	}
+
+	/**
+	 * Stops worker thread.
+	 */
+	public void release() {
+		mThread.interrupt();
+	}
+
+	/**
+	 * Forgets statistics gathered so far. Levels are posted for next
+	 * analysed frame even if they haven't changed.
+	 */
+	public void reset() {
+		mReset = true;
+	}
+
+	/**
+	 * Setter for observer.
+	 */
+	public void setObserver(Observer observer) {
+		mObserver = observer;
+	}
+
+	/**
+	 * Setter for shared data, used for preparing lookup tables.
+	 */
+	public void setSharedData(InstaCamData sharedData) {
+		mSharedData = sharedData;
+	}
+
+	/**
+	 * Limits given level value into SeekBar range and rounds it to steps.
+	 */
+	private static float toLevel(float value) {
+		value = Math.max(-LEVEL_LIMIT, Math.min(LEVEL_LIMIT, value));
+		return Math.round(value / LEVEL_STEP) * LEVEL_STEP;
+	}
+
+	/**
+	 * Observer interface for levels, called on main thread.
+	 */
+	public interface Observer {
+
+		/**
+		 * Called when levels derived from preview have changed.
+		 */
+		public void onLevelsChanged(float brightness, float contrast);
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+
+/**
+ * Filter engine created on a background thread, keeping RenderScript startup
+ * off the calling thread. RenderScript is used if available, pure Java
+ * filters otherwise. Calls wait for engine creation to finish.
+ */
+public class InstaCamAsyncEngine implements InstaCamFilterEngine {
+
+	// Engine being created.
+	private final FutureTask<InstaCamFilterEngine> mEngine;
+
+	/**
+	 * Constructor starts engine creation.
+	 */
+	public InstaCamAsyncEngine(Context context) {
+		final Context appContext = context.getApplicationContext();
+		mEngine = new FutureTask<InstaCamFilterEngine>(
+				new Callable<InstaCamFilterEngine>() {
+					@Override
+					public InstaCamFilterEngine call() {
+						return createEngine(appContext);
+					}
+				});
+		new Thread(mEngine, "InstaCamEngine-init").start();
+	}
+
+	/**
+	 * Creates RenderScript engine, or pure Java engine if RenderScript isn't
+	 * available on this device.
+	 */
+	private static InstaCamFilterEngine createEngine(Context context) {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		InstaCamFilterEngine engine;
+		InstaCamTrace.beginSection("InstaCamRS.create");
+		try {
+			engine = new InstaCamRS(context);
+		} catch (RuntimeException ex) {
+			engine = new InstaCamCpuEngine();
+		} finally {
+			InstaCamTrace.endSection();
+		}
+		return engine;
+	}
+
+	@Override
+	public void applyFilter(Bitmap bitmap, InstaCamParams params) {
+		getEngine().applyFilter(bitmap, params);
+	}
+
+	/**
+	 * Returns engine, waiting for its creation to finish first.
+	 */
+	private InstaCamFilterEngine getEngine() {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return mEngine.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		getEngine().release();
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Streaming picture saver. JPEG data is region decoded, filtered and encoded
+ * in horizontal bands so that peak memory is bounded by band budget instead of
+ * picture size. Neighbourhood filters get InstaCamFilterChain.getBorder()
+ * halo rows around every band.
+ */
+public class InstaCamBandSaver {
+
+	// Default memory budget for band buffers in bytes.
+	public static final int DEFAULT_BUDGET = 8 * 1024 * 1024;
+	// JPEG quality, same as used for full size saving.
+	public static final int QUALITY = 90;
+
+	// Memory budget in bytes.
+	private final int mBudget;
+	// Filter implementation.
+	private final InstaCamCpu mCpu;
+
+	/**
+	 * Constructor taking memory budget for band buffers in bytes.
+	 */
+	public InstaCamBandSaver(int budget) {
+		mBudget = budget;
+		mCpu = new InstaCamCpu();
+	}
+
+	/**
+	 * Calculates number of rows per band for image of given width and halo
+	 * rows above and below each band. Every band row is held four times, as
+	 * decoded Bitmap, filtered pixels and two intermediate pass buffers for
+	 * neighbourhood filters, and encoder keeps one MCU row of float planes on
+	 * top of that. Result is a multiple of MCU height.
+	 */
+	public static int getBandRows(int width, int halo, int budget) {
+		final int mcuRows = InstaCamJpegEncoder.MCU_ROWS;
+		int encoderBytes = ((width + 15) & ~15) * mcuRows * 3 * 4;
+		int haloBytes = halo * 2 * 4 * width * 4;
+		int rows = (budget - encoderBytes - haloBytes) / (width * 4 * 4);
+		return Math.max(mcuRows, rows - rows % mcuRows);
+	}
+
+	/**
+	 * Getter for memory budget.
+	 */
+	public int getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Releases filter threads.
+	 */
+	public void release() {
+		mCpu.release();
+	}
+
+	/**
+	 * Filters given JPEG data and writes result as JPEG into output stream.
+	 * Stream is flushed but not closed.
+	 */
+	public void save(byte[] jpeg, OutputStream out, InstaCamParams params)
+			throws IOException {
+		final int border = params.getFilterChain().getBorder();
+		BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(jpeg, 0,
+				jpeg.length, false);
+		try {
+			int width = decoder.getWidth();
+			int height = decoder.getHeight();
+			int bandRows = getBandRows(width, border, mBudget);
+
+			InstaCamJpegEncoder encoder = new InstaCamJpegEncoder(out, width,
+					height, QUALITY);
+			int[] pixels = new int[(bandRows + border * 2) * width];
+			// Unmodified rows above current band for neighbourhood filters.
+			int[] carry = new int[border * width];
+
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			Rect rect = new Rect();
+			Bitmap band = null;
+
+			for (int top = 0; top < height; top += bandRows) {
+				int rows = Math.min(bandRows, height - top);
+				int haloTop = Math.min(border, top);
+				int haloBottom = Math.min(border, height - top - rows);
+
+				// Region decoder reuses Bitmap of equal size on API 16+.
+				if (Build.VERSION.SDK_INT >= 16 && band != null
+						&& band.getHeight() == rows + haloBottom) {
+					options.inBitmap = band;
+				} else {
+					if (band != null) {
+						band.recycle();
+					}
+					options.inBitmap = null;
+				}
+				rect.set(0, top, width, top + rows + haloBottom);
+				band = decoder.decodeRegion(rect, options);
+				if (band == null) {
+					throw new IOException("Decoding rows " + top + " failed.");
+				}
+
+				// Previous band has been encoded already, use stored copy for
+				// upper halo and the rest comes from decoded region.
+				System.arraycopy(carry, (border - haloTop) * width, pixels, 0,
+						haloTop * width);
+				band.getPixels(pixels, haloTop * width, width, 0, 0, width,
+						rows + haloBottom);
+				if (top + rows < height) {
+					System.arraycopy(pixels, (haloTop + rows - border) * width,
+							carry, 0, border * width);
+				}
+
+				mCpu.applyBand(pixels, width, height, top, rows, haloTop,
+						haloBottom, params.getFilterChain(),
+						params.getBrightness(), params.getContrast(),
+						params.getSaturation(), params.getCornerRadius());
+				encoder.writeRows(pixels, haloTop * width, width, rows);
+			}
+			if (band != null) {
+				band.recycle();
+			}
+			encoder.finish();
+		} finally {
+			decoder.recycle();
+		}
+	}
+
+}
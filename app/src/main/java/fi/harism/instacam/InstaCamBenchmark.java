@@ -0,0 +1,144 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.Locale;
+import java.util.Random;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.RenderScript;
+import android.util.Log;
+
+/**
+ * On device benchmark for neighbourhood filters. Compares single threaded
+ * invoke_apply against forEach_root kernels and pure Java engine. Can be
+ * started with intent extra, e.g. 'adb shell am start -n
+ * fi.harism.instacam/.InstaCamActivity --ez fi.harism.instacam.BENCHMARK
+ * true', results are written to LogCat.
+ */
+public final class InstaCamBenchmark {
+
+	// Intent extra for running benchmark on Activity start.
+	public static final String EXTRA_BENCHMARK = "fi.harism.instacam.BENCHMARK";
+
+	// Full 13 MP sensor resolution.
+	public static final int WIDTH = 4160, HEIGHT = 3120;
+
+	private static final String TAG = "InstaCamBenchmark";
+
+	private InstaCamBenchmark() {
+	}
+
+	/**
+	 * Runs benchmark for image of given size. Each path is run once for
+	 * warm-up and timed over given number of iterations.
+	 */
+	public static String run(Context context, int width, int height,
+			int iterations) {
+		Bitmap bitmap = createNoise(width, height);
+		RenderScript rs = RenderScript.create(context);
+		ScriptC_filter_cartoon cartoon = new ScriptC_filter_cartoon(rs,
+				context.getResources(), R.raw.filter_cartoon);
+		ScriptC_filter_edges edges = new ScriptC_filter_edges(rs,
+				context.getResources(), R.raw.filter_edges);
+		Allocation src = Allocation.createFromBitmap(rs, bitmap,
+				Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+		Allocation dst = Allocation.createFromBitmap(rs, bitmap,
+				Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+		InstaCamCpuEngine cpu = new InstaCamCpuEngine();
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.US, "%dx%d, %d iterations\n",
+				width, height, iterations));
+
+		final int FILTERS[] = { InstaCamFilters.FILTER_CARTOON,
+				InstaCamFilters.FILTER_EDGES };
+		final String NAMES[] = { "cartoon", "edges" };
+		for (int f = 0; f < FILTERS.length; ++f) {
+			int filter = FILTERS[f];
+			long invoke = 0, forEach = 0, java = 0;
+			for (int i = 0; i <= iterations; ++i) {
+				long time = System.nanoTime();
+				if (filter == InstaCamFilters.FILTER_CARTOON) {
+					cartoon.invoke_apply(src, dst);
+				} else {
+					edges.invoke_apply(src, dst);
+				}
+				rs.finish();
+				long timeInvoke = System.nanoTime() - time;
+
+				time = System.nanoTime();
+				if (filter == InstaCamFilters.FILTER_CARTOON) {
+					cartoon.invoke_setSource(src);
+					cartoon.forEach_root(src, dst);
+				} else {
+					edges.invoke_setSource(src);
+					edges.forEach_root(src, dst);
+				}
+				rs.finish();
+				long timeForEach = System.nanoTime() - time;
+
+				time = System.nanoTime();
+				cpu.applyFilter(bitmap, InstaCamParams.DEFAULT
+						.withFilterChain(new InstaCamFilterChain(filter)));
+				long timeJava = System.nanoTime() - time;
+
+				// First round is warm-up.
+				if (i > 0) {
+					invoke += timeInvoke;
+					forEach += timeForEach;
+					java += timeJava;
+				}
+			}
+			report.append(String.format(Locale.US,
+					"%s: invoke %d ms, forEach %d ms (%.1fx), java %d ms\n",
+					NAMES[f], invoke / iterations / 1000000, forEach
+							/ iterations / 1000000,
+					(double) invoke / Math.max(1, forEach), java / iterations
+							/ 1000000));
+		}
+
+		cpu.release();
+		src.destroy();
+		dst.destroy();
+		rs.destroy();
+		bitmap.recycle();
+
+		Log.d(TAG, report.toString());
+		return report.toString();
+	}
+
+	/**
+	 * Creates Bitmap filled with random noise.
+	 */
+	private static Bitmap createNoise(int width, int height) {
+		Bitmap bitmap = Bitmap.createBitmap(width, height,
+				Bitmap.Config.ARGB_8888);
+		Random random = new Random(0);
+		int[] row = new int[width];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				row[x] = 0xFF000000 | random.nextInt(0x1000000);
+			}
+			bitmap.setPixels(row, 0, width, 0, y, width, 1);
+		}
+		return bitmap;
+	}
+
+}
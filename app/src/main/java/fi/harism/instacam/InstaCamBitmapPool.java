@@ -0,0 +1,168 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of idle mutable Bitmaps for decoding into with inBitmap. Bitmaps are
+ * matched by size and configuration, as required for inBitmap before API
+ * level 19. Memory budget is shared by Bitmaps in use, obtained from pool
+ * and not yet released, and idle ones. Idle Bitmaps are recycled, least
+ * recently used first, to make room for Bitmaps in use. Methods can be called
+ * from any thread.
+ */
+public class InstaCamBitmapPool {
+
+	// Memory budget for Bitmaps in use and idle ones in bytes.
+	private final long mBudget;
+	// Number of bytes held by idle Bitmaps.
+	private long mBytes;
+	// Number of bytes held by Bitmaps in use.
+	private long mBytesInUse;
+	// Idle Bitmaps, most recently released last.
+	private final LinkedList<Bitmap> mPool = new LinkedList<Bitmap>();
+	// Pool statistics.
+	private int mPoolEvictions, mPoolHits, mPoolMisses;
+
+	/**
+	 * Constructor taking memory budget for Bitmaps in use and idle ones in
+	 * bytes.
+	 */
+	public InstaCamBitmapPool(long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Called if Bitmap obtained with given size and configuration never came
+	 * into use, e.g. decoding into it failed, to give its memory back.
+	 */
+	public synchronized void cancel(int width, int height,
+			Bitmap.Config config) {
+		mBytesInUse -= getBytes(width, height, config);
+	}
+
+	/**
+	 * Recycles idle Bitmaps, least recently used first, until at most given
+	 * number of bytes is held.
+	 */
+	private void evict(long bytes) {
+		while (mBytes > bytes && !mPool.isEmpty()) {
+			Bitmap bitmap = mPool.removeFirst();
+			mBytes -= getBytes(bitmap);
+			bitmap.recycle();
+			++mPoolEvictions;
+		}
+	}
+
+	/**
+	 * Returns number of bytes held by given Bitmap. Bitmap.getByteCount isn't
+	 * available before API level 12.
+	 */
+	private static long getBytes(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * Returns number of bytes held by Bitmap of given size and
+	 * configuration.
+	 */
+	private static long getBytes(int width, int height, Bitmap.Config config) {
+		int bytesPerPixel = 4;
+		if (config == Bitmap.Config.ALPHA_8) {
+			bytesPerPixel = 1;
+		} else if (config != Bitmap.Config.ARGB_8888) {
+			bytesPerPixel = 2;
+		}
+		return (long) width * height * bytesPerPixel;
+	}
+
+	/**
+	 * Getter for number of idle Bitmaps recycled to stay within budget.
+	 */
+	public synchronized int getPoolEvictions() {
+		return mPoolEvictions;
+	}
+
+	/**
+	 * Getter for number of requests served with an idle Bitmap.
+	 */
+	public synchronized int getPoolHits() {
+		return mPoolHits;
+	}
+
+	/**
+	 * Getter for number of requests without matching idle Bitmap.
+	 */
+	public synchronized int getPoolMisses() {
+		return mPoolMisses;
+	}
+
+	/**
+	 * Returns idle Bitmap of given size and configuration, or null if there
+	 * is none. Returned Bitmap is removed from pool. Either way memory for a
+	 * Bitmap of given size is counted as in use until release() or cancel()
+	 * is called, idle Bitmaps are recycled to make room for it.
+	 */
+	public synchronized Bitmap obtain(int width, int height,
+			Bitmap.Config config) {
+		Iterator<Bitmap> iter = mPool.descendingIterator();
+		while (iter.hasNext()) {
+			Bitmap bitmap = iter.next();
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height
+					&& bitmap.getConfig() == config) {
+				iter.remove();
+				mBytes -= getBytes(bitmap);
+				mBytesInUse += getBytes(bitmap);
+				++mPoolHits;
+				return bitmap;
+			}
+		}
+		mBytesInUse += getBytes(width, height, config);
+		evict(mBudget - mBytesInUse);
+		++mPoolMisses;
+		return null;
+	}
+
+	/**
+	 * Returns Bitmap obtained with obtain() into pool. Immutable Bitmaps
+	 * can't be decoded into and are recycled right away, as are Bitmaps
+	 * exceeding budget left by Bitmaps still in use.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		mBytesInUse -= getBytes(bitmap);
+		if (!bitmap.isMutable()
+				|| getBytes(bitmap) > mBudget - mBytesInUse) {
+			bitmap.recycle();
+			return;
+		}
+		mPool.addLast(bitmap);
+		mBytes += getBytes(bitmap);
+		evict(mBudget - mBytesInUse);
+	}
+
+	/**
+	 * Recycles all idle Bitmaps, to be called when memory is low.
+	 */
+	public synchronized void trim() {
+		evict(0);
+	}
+
+}
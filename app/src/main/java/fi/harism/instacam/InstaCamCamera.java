@@ -28,12 +28,21 @@ import android.opengl.Matrix;
  */
 public class InstaCamCamera {
 
+	// Target preview rate in frames per second.
+	public static final int TARGET_FPS = 30;
+
 	// Current Camera instance.
 	private Camera mCamera;
 	// Current Camera Id.
 	private int mCameraId;
 	// Current Camera CameraInfo.
 	private final Camera.CameraInfo mCameraInfo = new Camera.CameraInfo();
+	// Cached parameters of current Camera.
+	private InstaCamParameterCache mParameters;
+	// Negotiator for preview size and fps range.
+	private InstaCamPreviewNegotiator mNegotiator = new InstaCamSizeNegotiator();
+	// Size of surface preview is rendered into, 0 until known.
+	private int mPreviewWidth, mPreviewHeight;
 	// SharedData instance.
 	private InstaCamData mSharedData;
 	// Surface texture instance.
@@ -54,17 +63,20 @@ public class InstaCamCamera {
 		return mCameraInfo.facing == CameraInfo.CAMERA_FACING_FRONT;
 	}
 
+	/**
+	 * Returns true if Camera instance is open.
+	 */
+	public boolean isOpen() {
+		return mCamera != null;
+	}
+
 	/**
 	 * Must be called from Activity.onPause(). Stops preview and releases Camera
 	 * instance.
 	 */
 	public void onPause() {
 		mSurfaceTexture = null;
-		if (mCamera != null) {
-			mCamera.stopPreview();
-			mCamera.release();
-			mCamera = null;
-		}
+		releaseCamera();
 	}
 
 	/**
@@ -74,24 +86,56 @@ public class InstaCamCamera {
 		openCamera();
 	}
 
+	/**
+	 * Negotiates preview size and fps range for surface preview is rendered
+	 * into. Changes are left uncommitted. Driver defaults are kept if surface
+	 * size isn't known yet.
+	 */
+	private void negotiatePreview() {
+		if (mParameters == null || mPreviewWidth <= 0 || mPreviewHeight <= 0) {
+			return;
+		}
+
+		// Preview sizes are given in sensor orientation.
+		int width = mPreviewWidth, height = mPreviewHeight;
+		if (mCameraInfo.orientation % 180 != 0) {
+			width = mPreviewHeight;
+			height = mPreviewWidth;
+		}
+		int[] size = mNegotiator.selectPreviewSize(
+				mParameters.getSupportedPreviewSizes(), width, height);
+		if (size != null) {
+			mParameters.setPreviewSize(size[0], size[1]);
+		}
+
+		int[] range = mNegotiator.selectFpsRange(
+				mParameters.getSupportedPreviewFpsRanges(), TARGET_FPS * 1000);
+		if (range != null) {
+			mParameters.setPreviewFpsRange(
+					range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+					range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+		}
+	}
+
 	/**
 	 * Handles camera opening.
 	 */
 	private void openCamera() {
-		if (mCamera != null) {
-			mCamera.stopPreview();
-			mCamera.release();
-			mCamera = null;
-		}
+		releaseCamera();
 
 		if (mCameraId >= 0) {
 			Camera.getCameraInfo(mCameraId, mCameraInfo);
 			mCamera = Camera.open(mCameraId);
+			mParameters = new InstaCamParameterCache(mCamera);
 			// Disable jpeg rotation. We'll put it to EXIF data ourselves once
 			// final picture is saved.
-			Camera.Parameters params = mCamera.getParameters();
-			params.setRotation(0);
-			mCamera.setParameters(params);
+			mParameters.setRotation(0);
+			negotiatePreview();
+			// Retry without negotiated values if Camera rejects them.
+			if (!mParameters.commit()) {
+				mParameters.setRotation(0);
+				mParameters.commit();
+			}
 			try {
 				if (mSurfaceTexture != null) {
 					mCamera.setPreviewTexture(mSurfaceTexture);
@@ -104,6 +148,18 @@ public class InstaCamCamera {
 		updateRotation();
 	}
 
+	/**
+	 * Stops preview and releases Camera instance if there is one.
+	 */
+	private void releaseCamera() {
+		if (mCamera != null) {
+			mCamera.stopPreview();
+			mCamera.release();
+			mCamera = null;
+			mParameters = null;
+		}
+	}
+
 	/**
 	 * Selects either front-facing or back-facing camera.
 	 */
@@ -133,6 +189,29 @@ public class InstaCamCamera {
 		mCamera.setPreviewTexture(surfaceTexture);
 	}
 
+	/**
+	 * Setter for preview negotiator, used once camera is opened or surface
+	 * size changes next time.
+	 */
+	public void setPreviewNegotiator(InstaCamPreviewNegotiator negotiator) {
+		mNegotiator = negotiator;
+	}
+
+	/**
+	 * Sets size of surface preview is rendered into and negotiates preview
+	 * size for it. Preview has to be stopped. Has to be called on main
+	 * thread, same as opening and releasing Camera.
+	 */
+	public void setPreviewSurfaceSize(int width, int height) {
+		mPreviewWidth = width;
+		mPreviewHeight = height;
+		if (mParameters != null) {
+			negotiatePreview();
+			mParameters.commit();
+		}
+		updateRotation();
+	}
+
 	/**
 	 * Setter for storing shared data.
 	 */
@@ -170,19 +249,20 @@ public class InstaCamCamera {
 		}
 
 		int orientation = mCameraInfo.orientation;
-		Matrix.setRotateM(mSharedData.mOrientationM, 0, orientation, 0f, 0f, 1f);
+		float[] orientationM = new float[16];
+		Matrix.setRotateM(orientationM, 0, orientation, 0f, 0f, 1f);
 
-		Camera.Size size = mCamera.getParameters().getPreviewSize();
+		int[] size = mParameters.getPreviewSize();
 		if (orientation % 90 == 0) {
-			int w = size.width;
-			size.width = size.height;
-			size.height = w;
+			int w = size[0];
+			size[0] = size[1];
+			size[1] = w;
 		}
 
-		mSharedData.mAspectRatioPreview[0] = (float) Math.min(size.width,
-				size.height) / size.width;
-		mSharedData.mAspectRatioPreview[1] = (float) Math.min(size.width,
-				size.height) / size.height;
+		float[] aspectRatioPreview = {
+				(float) Math.min(size[0], size[1]) / size[0],
+				(float) Math.min(size[0], size[1]) / size[1] };
+		mSharedData.setOrientation(orientationM, aspectRatioPreview);
 	}
 
 	/**
@@ -0,0 +1,314 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Multi-core filter engine operating on ARGB int arrays. Images are split
+ * into tiles of rows which are filtered concurrently on a fixed size thread
+ * pool. Has no Android dependencies.
+ */
+public final class InstaCamCpu {
+
+	// Minimum number of rows per tile.
+	private static final int TILE_ROWS_MIN = 16;
+
+	// Thread pool for filtering tiles.
+	private final ExecutorService mExecutor;
+	// Number of worker threads.
+	private final int mThreadCount;
+
+	/**
+	 * Default constructor, uses one thread per available processor.
+	 */
+	public InstaCamCpu() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor for given number of worker threads.
+	 */
+	public InstaCamCpu(int threadCount) {
+		mThreadCount = Math.max(1, threadCount);
+		mExecutor = Executors.newFixedThreadPool(mThreadCount,
+				new ThreadFactory() {
+					private int mCount;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "InstaCamCpu-"
+								+ (mCount++));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Applies filter and brightness, contrast, saturation and corner radius
+	 * adjustments to whole image in place.
+	 */
+	public void apply(int[] pixels, int width, int height, int filter,
+			float brightness, float contrast, float saturation,
+			float cornerRadius) {
+		applyBand(pixels, width, height, 0, height, 0, 0,
+				new InstaCamFilterChain(filter), brightness, contrast,
+				saturation, cornerRadius);
+	}
+
+	/**
+	 * Applies filter to a horizontal band of an image sized width x
+	 * imageHeight. Array pixels holds haloTop rows above the band, the band
+	 * itself starting from image row top and haloBottom rows below it. Only
+	 * band rows are written. Neighbourhood filters need a halo of
+	 * InstaCamFilters.BORDER rows wherever image has rows available.
+	 */
+	public void applyBand(int[] pixels, int width, int imageHeight, int top,
+			int rows, int haloTop, int haloBottom, int filter,
+			float brightness, float contrast, float saturation,
+			float cornerRadius) {
+		applyBand(pixels, width, imageHeight, top, rows, haloTop, haloBottom,
+				new InstaCamFilterChain(filter), brightness, contrast,
+				saturation, cornerRadius);
+	}
+
+	/**
+	 * Applies filter chain to a horizontal band of an image, see above. Halo
+	 * has to be InstaCamFilterChain.getBorder() rows wherever image has rows
+	 * available. Passes run one after another, each one over the rows that
+	 * following passes read.
+	 */
+	public void applyBand(int[] pixels, int width, int imageHeight, int top,
+			int rows, int haloTop, int haloBottom, InstaCamFilterChain chain,
+			float brightness, float contrast, float saturation,
+			float cornerRadius) {
+
+		final int border = InstaCamFilters.BORDER;
+		int halo = chain.getBorder();
+		if (haloTop < Math.min(halo, top)
+				|| haloBottom < Math.min(halo, imageHeight - top - rows)) {
+			throw new IllegalArgumentException(
+					"Band halo smaller than filter border.");
+		}
+
+		// Image row stored at array row 0 and rows holding valid pass input.
+		int arrayTop = top - haloTop;
+		int validTop = arrayTop, validBottom = top + rows + haloBottom;
+		int length = (validBottom - validTop) * width;
+		// Ping-pong buffers for pass results, allocated on demand.
+		int[][] buffers = new int[2][];
+
+		int[] src = pixels;
+		int passCount = chain.getPassCount();
+		for (int pass = 0; pass < passCount; ++pass) {
+			boolean last = pass == passCount - 1;
+			int filter = chain.getPassFilter(pass);
+			boolean neighbourhood = filter != InstaCamFilters.FILTER_DEFAULT;
+			// Neighbourhood filter alone is followed by plain adjustments.
+			InstaCamLut lut = null;
+			if (!neighbourhood || chain.hasPassPointwise(pass)) {
+				lut = chain.getPassLut(pass, brightness, contrast, saturation);
+			}
+			if (neighbourhood) {
+				// Pass consumes border rows of its input, apart from image
+				// edges where pixels are left untouched.
+				if (validTop > 0) {
+					validTop += border;
+				}
+				if (validBottom < imageHeight) {
+					validBottom -= border;
+				}
+			}
+
+			int[] dst;
+			if (last) {
+				dst = pixels;
+			} else if (!neighbourhood && src != pixels) {
+				dst = src;
+			} else {
+				int index = src == buffers[0] ? 1 : 0;
+				if (buffers[index] == null) {
+					buffers[index] = new int[length];
+				}
+				dst = buffers[index];
+			}
+			if (neighbourhood && src == dst) {
+				// Neighbourhood filters read unmodified source pixels.
+				if (buffers[0] == null) {
+					buffers[0] = new int[length];
+				}
+				System.arraycopy(pixels, 0, buffers[0], 0, length);
+				src = buffers[0];
+			}
+
+			int passTop = last ? top : validTop;
+			int passRows = last ? rows : validBottom - validTop;
+			run(src, dst, width, imageHeight, arrayTop, passTop, passRows,
+					filter, lut, last, brightness, contrast, saturation,
+					cornerRadius);
+			src = dst;
+		}
+	}
+
+	/**
+	 * Getter for number of worker threads.
+	 */
+	public int getThreadCount() {
+		return mThreadCount;
+	}
+
+	/**
+	 * Stops worker threads. Instance can't be used afterwards.
+	 */
+	public void release() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Filters given range of image rows from src into dst concurrently.
+	 */
+	private void run(int[] src, int[] dst, int width, int imageHeight,
+			int arrayTop, int top, int rows, int filter, InstaCamLut lut,
+			boolean last, float brightness, float contrast, float saturation,
+			float cornerRadius) {
+		// Split rows into roughly four tiles per thread.
+		int tileRows = Math.max(TILE_ROWS_MIN, (rows + mThreadCount * 4 - 1)
+				/ (mThreadCount * 4));
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int y = 0; y < rows; y += tileRows) {
+			tiles.add(new Tile(src, dst, width, imageHeight, arrayTop, top
+					+ y, Math.min(rows - y, tileRows), filter, lut, last,
+					brightness, contrast, saturation, cornerRadius));
+		}
+
+		if (tiles.size() == 1) {
+			tiles.get(0).call();
+			return;
+		}
+		try {
+			for (Future<Void> future : mExecutor.invokeAll(tiles)) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Filters given range of rows.
+	 */
+	private static final class Tile implements Callable<Void> {
+
+		private final float mBrightness, mContrastFactor, mSaturation,
+				mCornerRadius;
+		private final int[] mDst, mSrc;
+		// Neighbourhood filter id or FILTER_DEFAULT.
+		private final int mFilter;
+		// Flag for last pass, adjustments and corners are applied only once.
+		private final boolean mLast;
+		// Lookup table for point-wise filters, null for plain adjustments.
+		private final InstaCamLut mLut;
+		// Image row stored at array row 0.
+		private final int mArrayTop;
+		// Image size.
+		private final int mWidth, mImageHeight;
+		// First image row and number of rows to filter.
+		private final int mTop, mRows;
+
+		private Tile(int[] src, int[] dst, int width, int imageHeight,
+				int arrayTop, int top, int rows, int filter, InstaCamLut lut,
+				boolean last, float brightness, float contrast,
+				float saturation, float cornerRadius) {
+			mSrc = src;
+			mDst = dst;
+			mWidth = width;
+			mImageHeight = imageHeight;
+			mArrayTop = arrayTop;
+			mTop = top;
+			mRows = rows;
+			mFilter = filter;
+			mLut = lut;
+			mLast = last;
+			mBrightness = brightness;
+			mContrastFactor = InstaCamFilters.contrastFactor(contrast);
+			mSaturation = saturation;
+			mCornerRadius = cornerRadius;
+		}
+
+		@Override
+		public Void call() {
+			final int border = InstaCamFilters.BORDER;
+			final float invWidth = 1.0f / mWidth;
+			final float invHeight = 1.0f / mImageHeight;
+			float[] color = new float[3];
+			float[] scratch = new float[27];
+
+			for (int y = mTop; y < mTop + mRows; ++y) {
+				int row = y - mArrayTop;
+				boolean borderRow = y < border || y >= mImageHeight - border;
+				for (int x = 0; x < mWidth; ++x) {
+					int index = row * mWidth + x;
+					if (mFilter == InstaCamFilters.FILTER_DEFAULT) {
+						mLut.lookup(mSrc[index], color);
+					} else {
+						if (borderRow || x < border || x >= mWidth - border) {
+							// Scripts leave border pixels untouched.
+							InstaCamFilters.unpack(mSrc[index], color);
+						} else if (mFilter == InstaCamFilters.FILTER_CARTOON) {
+							InstaCamFilters.cartoon(mSrc, mWidth, x, row,
+									color, scratch);
+						} else {
+							InstaCamFilters.edges(mSrc, mWidth, x, row, color);
+						}
+
+						if (mLut != null) {
+							// Point-wise filters follow 8 bit result.
+							mLut.lookup(InstaCamFilters.pack(color), color);
+						} else if (mLast) {
+							// Port of filter_default.rs.
+							InstaCamFilters.clamp(color);
+							InstaCamFilters.brightness(color, mBrightness);
+							InstaCamFilters.contrast(color, mContrastFactor);
+							InstaCamFilters.saturation(color, mSaturation);
+						}
+					}
+					if (mLast) {
+						float corner = InstaCamFilters.corner(x, y, invWidth,
+								invHeight, mCornerRadius);
+						color[0] *= corner;
+						color[1] *= corner;
+						color[2] *= corner;
+					}
+					mDst[index] = InstaCamFilters.pack(color);
+				}
+			}
+			return null;
+		}
+	}
+
+}
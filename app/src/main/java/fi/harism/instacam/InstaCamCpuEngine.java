@@ -0,0 +1,80 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pure Java filter engine. Bitmap is copied into InstaCamCpu in bands of rows
+ * so that only a fraction of the picture is held in int arrays at once.
+ */
+public class InstaCamCpuEngine implements InstaCamFilterEngine {
+
+	// Number of rows filtered at once.
+	private static final int BAND_ROWS = 256;
+
+	// Filter implementation.
+	private final InstaCamCpu mCpu;
+
+	/**
+	 * Default constructor.
+	 */
+	public InstaCamCpuEngine() {
+		mCpu = new InstaCamCpu();
+	}
+
+	@Override
+	public void applyFilter(Bitmap bitmap, InstaCamParams params) {
+		final int border = params.getFilterChain().getBorder();
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+
+		int[] pixels = new int[(BAND_ROWS + border * 2) * width];
+		// Unmodified rows above current band for neighbourhood filters.
+		int[] carry = new int[border * width];
+
+		for (int top = 0; top < height; top += BAND_ROWS) {
+			int rows = Math.min(BAND_ROWS, height - top);
+			int haloTop = Math.min(border, top);
+			int haloBottom = Math.min(border, height - top - rows);
+
+			// Previous band has been written already, use stored copy for
+			// upper halo and read the rest from Bitmap.
+			System.arraycopy(carry, (border - haloTop) * width, pixels, 0,
+					haloTop * width);
+			bitmap.getPixels(pixels, haloTop * width, width, 0, top, width,
+					rows + haloBottom);
+			if (top + rows < height) {
+				System.arraycopy(pixels, (haloTop + rows - border) * width,
+						carry, 0, border * width);
+			}
+
+			mCpu.applyBand(pixels, width, height, top, rows, haloTop,
+					haloBottom, params.getFilterChain(), params.getBrightness(),
+					params.getContrast(), params.getSaturation(),
+					params.getCornerRadius());
+			bitmap.setPixels(pixels, haloTop * width, width, 0, top, width,
+					rows);
+		}
+	}
+
+	@Override
+	public void release() {
+		mCpu.release();
+	}
+
+}
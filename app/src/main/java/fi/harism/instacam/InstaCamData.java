@@ -16,26 +16,95 @@
 
 package fi.harism.instacam;
 
-import android.app.ProgressDialog;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Holder class for application wide data.
+ * Holder class for application wide data. Filter parameters are published as
+ * immutable snapshots and can be read from any thread, other fields are
+ * accessed from main thread only.
  */
 public class InstaCamData {
-	// Preview view aspect ration.
-	public final float mAspectRatioPreview[] = new float[2];
-	// Filter values.
-	public float mBrightness, mContrast, mSaturation, mCornerRadius;
-	// Predefined filter.
-	public int mFilter;
 	// Taken picture data (jpeg).
 	public byte[] mImageData;
-	// Progress dialog while saving picture.
-	public ProgressDialog mImageProgress;
 	// Picture capture time.
 	public long mImageTime;
 	// Device orientation degree.
 	public int mOrientationDevice;
-	// Camera orientation matrix.
-	public final float mOrientationM[] = new float[16];
+	// Current filter parameters, replaced instead of modified.
+	private final AtomicReference<InstaCamParams> mParams = new AtomicReference<InstaCamParams>(
+			InstaCamParams.DEFAULT);
+
+	/**
+	 * Returns current filter parameters. Readers should take one snapshot
+	 * and use it throughout, values may change between two calls.
+	 */
+	public InstaCamParams getParams() {
+		return mParams.get();
+	}
+
+	/**
+	 * Setter for brightness.
+	 */
+	public void setBrightness(float brightness) {
+		InstaCamParams params;
+		do {
+			params = mParams.get();
+		} while (!mParams.compareAndSet(params,
+				params.withBrightness(brightness)));
+	}
+
+	/**
+	 * Setter for contrast.
+	 */
+	public void setContrast(float contrast) {
+		InstaCamParams params;
+		do {
+			params = mParams.get();
+		} while (!mParams.compareAndSet(params, params.withContrast(contrast)));
+	}
+
+	/**
+	 * Setter for corner radius.
+	 */
+	public void setCornerRadius(float cornerRadius) {
+		InstaCamParams params;
+		do {
+			params = mParams.get();
+		} while (!mParams.compareAndSet(params,
+				params.withCornerRadius(cornerRadius)));
+	}
+
+	/**
+	 * Setter for filter chain.
+	 */
+	public void setFilterChain(InstaCamFilterChain filterChain) {
+		InstaCamParams params;
+		do {
+			params = mParams.get();
+		} while (!mParams.compareAndSet(params,
+				params.withFilterChain(filterChain)));
+	}
+
+	/**
+	 * Setter for camera orientation matrix and preview aspect ratio, both are
+	 * published at once.
+	 */
+	public void setOrientation(float[] orientationM, float[] aspectRatioPreview) {
+		InstaCamParams params;
+		do {
+			params = mParams.get();
+		} while (!mParams.compareAndSet(params,
+				params.withOrientation(orientationM, aspectRatioPreview)));
+	}
+
+	/**
+	 * Setter for saturation.
+	 */
+	public void setSaturation(float saturation) {
+		InstaCamParams params;
+		do {
+			params = mParams.get();
+		} while (!mParams.compareAndSet(params,
+				params.withSaturation(saturation)));
+	}
 }
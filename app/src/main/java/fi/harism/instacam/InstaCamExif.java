@@ -0,0 +1,156 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Builder for minimal EXIF APP1 segment holding picture orientation and
+ * capture time. Segment is written inline with JPEG data so that picture file
+ * doesn't have to be rewritten afterwards.
+ */
+public final class InstaCamExif {
+
+	// Tag ids.
+	private static final int TAG_DATE_TIME = 0x0132;
+	private static final int TAG_DATE_TIME_DIGITIZED = 0x9004;
+	private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+	private static final int TAG_EXIF_IFD = 0x8769;
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TAG_SOFTWARE = 0x0131;
+
+	// Field types.
+	private static final int TYPE_ASCII = 2;
+	private static final int TYPE_LONG = 4;
+	private static final int TYPE_SHORT = 3;
+
+	private InstaCamExif() {
+	}
+
+	/**
+	 * Creates APP1 segment, including marker and length, for given
+	 * orientation in degrees and capture time in milliseconds.
+	 */
+	public static byte[] createApp1(int orientation, long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		byte[] dateTime = String.format(Locale.US,
+				"%04d:%02d:%02d %02d:%02d:%02d\0", calendar.get(Calendar.YEAR),
+				calendar.get(Calendar.MONTH) + (1 - Calendar.JANUARY),
+				calendar.get(Calendar.DATE),
+				calendar.get(Calendar.HOUR_OF_DAY),
+				calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND))
+				.getBytes();
+		byte[] software = "InstaCam\0".getBytes();
+
+		// Offsets are relative to TIFF header. IFD0 has four entries and
+		// Exif IFD two, values not fitting into entries follow each IFD.
+		// IFDs have to start at word boundary, values are padded to even
+		// length.
+		final int ifd0 = 8;
+		final int ifd0Data = ifd0 + 2 + 4 * 12 + 4;
+		final int ifd0DataLength = dateTime.length + software.length;
+		final int ifd0Padding = ifd0DataLength & 1;
+		final int exifIfd = ifd0Data + ifd0DataLength + ifd0Padding;
+		final int exifIfdData = exifIfd + 2 + 2 * 12 + 4;
+
+		ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+		// Big endian TIFF header.
+		writeShort(tiff, 0x4D4D);
+		writeShort(tiff, 42);
+		writeInt(tiff, ifd0);
+
+		// IFD0, entries sorted by tag.
+		writeShort(tiff, 4);
+		writeEntry(tiff, TAG_ORIENTATION, TYPE_SHORT, 1,
+				getOrientationValue(orientation) << 16);
+		writeEntry(tiff, TAG_SOFTWARE, TYPE_ASCII, software.length, ifd0Data
+				+ dateTime.length);
+		writeEntry(tiff, TAG_DATE_TIME, TYPE_ASCII, dateTime.length, ifd0Data);
+		writeEntry(tiff, TAG_EXIF_IFD, TYPE_LONG, 1, exifIfd);
+		writeInt(tiff, 0);
+		tiff.write(dateTime, 0, dateTime.length);
+		tiff.write(software, 0, software.length);
+		if (ifd0Padding != 0) {
+			tiff.write(0);
+		}
+
+		// Exif IFD.
+		writeShort(tiff, 2);
+		writeEntry(tiff, TAG_DATE_TIME_ORIGINAL, TYPE_ASCII, dateTime.length,
+				exifIfdData);
+		writeEntry(tiff, TAG_DATE_TIME_DIGITIZED, TYPE_ASCII, dateTime.length,
+				exifIfdData);
+		writeInt(tiff, 0);
+		tiff.write(dateTime, 0, dateTime.length);
+
+		ByteArrayOutputStream app1 = new ByteArrayOutputStream();
+		writeShort(app1, 0xFFE1);
+		writeShort(app1, 2 + 6 + tiff.size());
+		byte[] header = { 'E', 'x', 'i', 'f', 0, 0 };
+		app1.write(header, 0, header.length);
+		byte[] data = tiff.toByteArray();
+		app1.write(data, 0, data.length);
+		return app1.toByteArray();
+	}
+
+	/**
+	 * Maps clockwise rotation in degrees to EXIF orientation value.
+	 */
+	public static int getOrientationValue(int orientation) {
+		switch (orientation) {
+		case 90:
+			return 6;
+		case 180:
+			return 3;
+		case 270:
+			return 8;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Writes one 12 byte IFD entry.
+	 */
+	private static void writeEntry(ByteArrayOutputStream out, int tag,
+			int type, int count, int value) {
+		writeShort(out, tag);
+		writeShort(out, type);
+		writeInt(out, count);
+		writeInt(out, value);
+	}
+
+	/**
+	 * Writes big endian 32 bit value.
+	 */
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		writeShort(out, value >>> 16);
+		writeShort(out, value & 0xFFFF);
+	}
+
+	/**
+	 * Writes big endian 16 bit value.
+	 */
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write((value >> 8) & 0xFF);
+		out.write(value & 0xFF);
+	}
+
+}
@@ -72,6 +72,15 @@ public final class InstaCamFbo {
 		return mTextureHandles[index];
 	}
 
+	/**
+	 * Getter for number of textures.
+	 * 
+	 * @return Number of textures generated in init.
+	 */
+	public int getTextureCount() {
+		return mTextureHandles.length;
+	}
+
 	/**
 	 * Getter for FBO width.
 	 * 
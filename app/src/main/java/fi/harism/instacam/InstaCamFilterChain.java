@@ -0,0 +1,167 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable chain of predefined filters applied one after another, followed
+ * by brightness, contrast, saturation and corner adjustments. Chain is split
+ * into passes, each pass running an optional neighbourhood filter and then
+ * all point-wise filters up to next neighbourhood filter fused into one
+ * lookup table. Number of passes thus grows with neighbourhood filters only.
+ * Has no Android dependencies.
+ */
+public final class InstaCamFilterChain {
+
+	// Filters in order they are applied.
+	private final int[] mFilters;
+	// Neighbourhood filter of each pass, FILTER_DEFAULT if there's none.
+	private final int[] mPassFilters;
+	// Point-wise filters of each pass.
+	private final int[][] mPassPointwise;
+
+	/**
+	 * Constructor taking filter ids in order they are applied.
+	 */
+	public InstaCamFilterChain(int... filters) {
+		mFilters = filters.clone();
+
+		List<Integer> passFilters = new ArrayList<Integer>();
+		List<int[]> passPointwise = new ArrayList<int[]>();
+		int passFilter = InstaCamFilters.FILTER_DEFAULT;
+		int[] pointwise = new int[mFilters.length];
+		int pointwiseCount = 0;
+		for (int filter : mFilters) {
+			if (InstaCamFilters.isPointwise(filter)) {
+				// Default filter is identity, no need to bake it.
+				if (filter != InstaCamFilters.FILTER_DEFAULT) {
+					pointwise[pointwiseCount++] = filter;
+				}
+				continue;
+			}
+			// Neighbourhood filter starts a new pass unless current one is
+			// still empty.
+			if (passFilter != InstaCamFilters.FILTER_DEFAULT
+					|| pointwiseCount > 0) {
+				passFilters.add(passFilter);
+				passPointwise.add(Arrays.copyOf(pointwise, pointwiseCount));
+				pointwiseCount = 0;
+			}
+			passFilter = filter;
+		}
+		passFilters.add(passFilter);
+		passPointwise.add(Arrays.copyOf(pointwise, pointwiseCount));
+
+		mPassFilters = new int[passFilters.size()];
+		mPassPointwise = new int[mPassFilters.length][];
+		for (int i = 0; i < mPassFilters.length; ++i) {
+			mPassFilters[i] = passFilters.get(i);
+			mPassPointwise[i] = passPointwise.get(i);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof InstaCamFilterChain
+				&& Arrays.equals(mFilters, ((InstaCamFilterChain) o).mFilters);
+	}
+
+	/**
+	 * Returns number of rows and columns neighbourhood filters read around
+	 * every pixel, accumulated over all passes.
+	 */
+	public int getBorder() {
+		int border = 0;
+		for (int filter : mPassFilters) {
+			if (filter != InstaCamFilters.FILTER_DEFAULT) {
+				border += InstaCamFilters.BORDER;
+			}
+		}
+		return border;
+	}
+
+	/**
+	 * Returns filter id at given index.
+	 */
+	public int getFilter(int index) {
+		return mFilters[index];
+	}
+
+	/**
+	 * Returns number of filters in chain.
+	 */
+	public int getFilterCount() {
+		return mFilters.length;
+	}
+
+	/**
+	 * Returns number of passes needed for applying chain.
+	 */
+	public int getPassCount() {
+		return mPassFilters.length;
+	}
+
+	/**
+	 * Returns neighbourhood filter of given pass, or FILTER_DEFAULT if pass
+	 * applies point-wise filters only.
+	 */
+	public int getPassFilter(int pass) {
+		return mPassFilters[pass];
+	}
+
+	/**
+	 * Returns lookup table for point-wise filters of given pass. Adjustments
+	 * are baked into table of last pass only.
+	 */
+	public InstaCamLut getPassLut(int pass, float brightness, float contrast,
+			float saturation) {
+		if (pass < mPassFilters.length - 1) {
+			return InstaCamLut.obtain(mPassPointwise[pass], 0f, 0f, 0f);
+		}
+		return InstaCamLut.obtain(mPassPointwise[pass], brightness, contrast,
+				saturation);
+	}
+
+	/**
+	 * Returns true if given pass has point-wise filters to apply.
+	 */
+	public boolean hasPassPointwise(int pass) {
+		return mPassPointwise[pass].length > 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(mFilters);
+	}
+
+	/**
+	 * Returns true if chain has no neighbourhood filters.
+	 */
+	public boolean isPointwise() {
+		return mPassFilters.length == 1
+				&& mPassFilters[0] == InstaCamFilters.FILTER_DEFAULT;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(mFilters);
+	}
+
+}
@@ -14,24 +14,24 @@
    limitations under the License.
  */
 
-#pragma version(1)
-#pragma rs java_package_name(fi.harism.instacam)
-
-#include "utils.rsh"
-
-static float3 COLOR1 = { 0.299f, 0.587f, 0.114f };
-
-void root(uchar4* v_color) {
-	float3 color = rsUnpackColor8888(*v_color).rgb;
-	
-	float gray = dot(color, COLOR1);
-	if (gray > 0.5f) {
-		color = 1.0f - (1.0f - 2.0f * (gray - 0.5f)) * (1.0f - gray);
-	} else {
-		color = 2.0f * gray * gray;
-	}
-	
-	// Finally store color value back to allocation.
-	color = clamp(color, 0.0f, 1.0f);
-	*v_color = rsPackColorTo8888(color);
+package fi.harism.instacam;
+
+import android.graphics.Bitmap;
+
+/**
+ * Interface for filter implementations used for final picture saving.
+ */
+public interface InstaCamFilterEngine {
+
+	/**
+	 * Applies filter with given parameters for given mutable ARGB_8888
+	 * Bitmap.
+	 */
+	public void applyFilter(Bitmap bitmap, InstaCamParams params);
+
+	/**
+	 * Releases resources held by engine.
+	 */
+	public void release();
+
 }
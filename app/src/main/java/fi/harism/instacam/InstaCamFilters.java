@@ -0,0 +1,454 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Pure Java port of filter scripts found under rs/ and their shared helpers
+ * from utils.rsh. Colors are handled as float[3] { r, g, b } triplets within
+ * range [0, 1] and pixels as packed ARGB integers. This class has no Android
+ * dependencies and can be used on any JVM.
+ */
+public final class InstaCamFilters {
+
+	// Predefined filter ids, in same order as filter Spinner items.
+	public static final int FILTER_DEFAULT = 0;
+	public static final int FILTER_BLACKANDWHITE = 1;
+	public static final int FILTER_ANSEL = 2;
+	public static final int FILTER_SEPIA = 3;
+	public static final int FILTER_RETRO = 4;
+	public static final int FILTER_GEORGIA = 5;
+	public static final int FILTER_SAHARA = 6;
+	public static final int FILTER_POLAROID = 7;
+	public static final int FILTER_CARTOON = 8;
+	public static final int FILTER_EDGES = 9;
+	// Number of predefined filters.
+	public static final int FILTER_COUNT = 10;
+
+	// Sample distance used by neighbourhood filters (cartoon and edges).
+	public static final int BORDER = 6;
+
+	private static final float PI_PER_4 = (float) (Math.PI / 4.0);
+	private static final float SQRT2 = 1.41421356f;
+
+	private InstaCamFilters() {
+	}
+
+	/**
+	 * Returns true if filter output depends on given pixel only.
+	 */
+	public static boolean isPointwise(int filter) {
+		return filter != FILTER_CARTOON && filter != FILTER_EDGES;
+	}
+
+	/**
+	 * Applies point-wise filter to color in place. Neighbourhood filters and
+	 * unknown ids leave color untouched.
+	 */
+	public static void filter(int filter, float[] color) {
+		switch (filter) {
+		case FILTER_BLACKANDWHITE:
+			blackAndWhite(color);
+			break;
+		case FILTER_ANSEL:
+			ansel(color);
+			break;
+		case FILTER_SEPIA:
+			sepia(color);
+			break;
+		case FILTER_RETRO:
+			retro(color);
+			break;
+		case FILTER_GEORGIA:
+			georgia(color);
+			break;
+		case FILTER_SAHARA:
+			sahara(color);
+			break;
+		case FILTER_POLAROID:
+			polaroid(color);
+			break;
+		}
+	}
+
+	static void ansel(float[] color) {
+		float gray = color[0] * 0.299f + color[1] * 0.587f + color[2] * 0.114f;
+		if (gray > 0.5f) {
+			gray = 1.0f - (1.0f - 2.0f * (gray - 0.5f)) * (1.0f - gray);
+		} else {
+			gray = 2.0f * gray * gray;
+		}
+		color[0] = color[1] = color[2] = gray;
+	}
+
+	static void blackAndWhite(float[] color) {
+		float gray = color[0] * 0.299f + color[1] * 0.587f + color[2] * 0.114f;
+		color[0] = color[1] = color[2] = gray;
+	}
+
+	static void georgia(float[] color) {
+		brightness(color, 0.4724f);
+		contrast(color, contrastFactor(0.3149f));
+		color[1] = color[1] * 0.87f + 0.13f;
+		color[2] = color[2] * 0.439f + 0.561f;
+		color[0] *= 0.981f;
+		color[1] *= 0.862f;
+		color[2] *= 0.686f;
+	}
+
+	/**
+	 * Polaroid follows filter_polaroid_fs.txt.
+	 */
+	static void polaroid(float[] color) {
+		float r = color[0], g = color[1], b = color[2];
+		color[0] = 1.438f * r - 0.122f * g - 0.016f * b - 0.03f;
+		color[1] = -0.062f * r + 1.378f * g - 0.016f * b + 0.05f;
+		color[2] = -0.062f * r - 0.122f * g + 1.483f * b - 0.02f;
+	}
+
+	static void retro(float[] color) {
+		float gray = color[0] * 0.299f + color[1] * 0.587f + color[2] * 0.114f;
+		for (int i = 0; i < 3; ++i) {
+			float c = color[i];
+			// overlay(gray, color, 1.0)
+			c = c * (c + (2.0f * gray * (1.0f - c)));
+			color[i] = c;
+		}
+		// multiplyWithAlpha(COLOR2, 0.588235, color)
+		color[0] *= 0.984f * 0.588235f;
+		color[1] *= 0.949f * 0.588235f;
+		color[2] *= 0.639f * 0.588235f;
+		// screenPixelComponent(COLOR3, 0.2, color)
+		color[0] = 1.0f - (1.0f - 0.909f * 0.2f) * (1.0f - color[0]);
+		color[1] = 1.0f - (1.0f - 0.396f * 0.2f) * (1.0f - color[1]);
+		color[2] = 1.0f - (1.0f - 0.702f * 0.2f) * (1.0f - color[2]);
+		// screenPixelComponent(COLOR4, 0.168627, color)
+		color[0] = 1.0f - (1.0f - 0.035f * 0.168627f) * (1.0f - color[0]);
+		color[1] = 1.0f - (1.0f - 0.286f * 0.168627f) * (1.0f - color[1]);
+		color[2] = 1.0f - (1.0f - 0.914f * 0.168627f) * (1.0f - color[2]);
+	}
+
+	static void sahara(float[] color) {
+		color[0] = color[0] * 0.843f + 0.157f;
+		color[2] = color[2] * 0.882f + 0.118f;
+		rgbToHsv(color);
+		color[1] *= 0.55f;
+		hsvToRgb(color);
+		saturation(color, 0.65f);
+		color[1] *= 0.891f;
+		color[2] *= 0.733f;
+	}
+
+	static void sepia(float[] color) {
+		float luminosity = color[0] * 0.21f + color[1] * 0.72f + color[2]
+				* 0.07f;
+		// brightness(luminosity, 0.234375)
+		float brightGray = luminosity + (1.0f - luminosity) * 0.1171875f;
+		float invertMask = 1.0f - luminosity;
+		float luminosity3 = luminosity * luminosity * luminosity;
+		final float[] tint = { 0.419f, 0.259f, 0.047f };
+		for (int i = 0; i < 3; ++i) {
+			// overlay(COLOR2, brightGray, 1.0)
+			float tinted = brightGray
+					* (brightGray + (2.0f * tint[i] * (1.0f - brightGray)));
+			color[i] = luminosity3 + (tinted * invertMask * (luminosity + 1.0f));
+		}
+	}
+
+	/**
+	 * Port of brightness() from utils.rsh.
+	 */
+	public static void brightness(float[] color, float brightness) {
+		float scaled = brightness / 2.0f;
+		if (scaled < 0.0f) {
+			for (int i = 0; i < 3; ++i) {
+				color[i] *= 1.0f + scaled;
+			}
+		} else {
+			for (int i = 0; i < 3; ++i) {
+				color[i] += (1.0f - color[i]) * scaled;
+			}
+		}
+	}
+
+	/**
+	 * Port of contrast() from utils.rsh. Takes precalculated factor from
+	 * contrastFactor(contrast) instead of contrast value.
+	 */
+	public static void contrast(float[] color, float factor) {
+		for (int i = 0; i < 3; ++i) {
+			color[i] = Math.min(1.0f, (color[i] - 0.5f) * factor + 0.5f);
+		}
+	}
+
+	/**
+	 * Calculates multiplier used by contrast() for given contrast value.
+	 */
+	public static float contrastFactor(float contrast) {
+		return (float) Math.tan((contrast + 1.0f) * PI_PER_4);
+	}
+
+	/**
+	 * Port of saturation() from utils.rsh.
+	 */
+	public static void saturation(float[] color, float sat) {
+		float v = sat + 1.0f;
+		float i = 1.0f - v;
+		float luma = color[0] * 0.212671f + color[1] * 0.715160f + color[2]
+				* 0.072169f;
+		color[0] = color[0] * v + luma * i;
+		color[1] = color[1] * v + luma * i;
+		color[2] = color[2] * v + luma * i;
+	}
+
+	/**
+	 * Port of overlay() from utils.rsh.
+	 */
+	public static void overlay(float[] overlay, float[] color, float alpha) {
+		for (int i = 0; i < 3; ++i) {
+			float underlay = color[i] * alpha;
+			color[i] = underlay
+					* (underlay + (2.0f * overlay[i] * (1.0f - underlay)));
+		}
+	}
+
+	/**
+	 * Port of rgbToHsv() from utils.rsh, converts color in place. Unlike
+	 * script version gray and black colors map to zero hue and saturation
+	 * instead of NaN.
+	 */
+	public static void rgbToHsv(float[] color) {
+		float r = color[0], g = color[1], b = color[2];
+		float mmin = Math.min(r, Math.min(g, b));
+		float mmax = Math.max(r, Math.max(g, b));
+		float delta = mmax - mmin;
+
+		float h = 0.0f;
+		if (delta > 0.0f) {
+			if (r == mmax) {
+				h = (g - b) / delta;
+			} else if (g == mmax) {
+				h = 2.0f + (b - r) / delta;
+			} else {
+				h = 4.0f + (r - g) / delta;
+			}
+			h *= 0.166667f;
+			if (h < 0.0f) {
+				h += 1.0f;
+			}
+		}
+
+		color[0] = h;
+		color[1] = mmax > 0.0f ? delta / mmax : 0.0f;
+		color[2] = mmax;
+	}
+
+	/**
+	 * Port of hsvToRgb() from utils.rsh, converts color in place.
+	 */
+	public static void hsvToRgb(float[] hsv) {
+		float h = hsv[0], s = hsv[1], b = hsv[2];
+		if (s == 0.0f) {
+			hsv[0] = hsv[1] = hsv[2] = b;
+			return;
+		}
+		if (h >= 1.0f) {
+			h = 0.0f;
+		}
+
+		h *= 6.0f;
+		int i = (int) h;
+		float f = h - i;
+		float aa = b * (1.0f - s);
+		float bb = b * (1.0f - (s * f));
+		float cc = b * (1.0f - (s * (1.0f - f)));
+
+		switch (i) {
+		case 0:
+			hsv[0] = b;
+			hsv[1] = cc;
+			hsv[2] = aa;
+			break;
+		case 1:
+			hsv[0] = bb;
+			hsv[1] = b;
+			hsv[2] = aa;
+			break;
+		case 2:
+			hsv[0] = aa;
+			hsv[1] = b;
+			hsv[2] = cc;
+			break;
+		case 3:
+			hsv[0] = aa;
+			hsv[1] = bb;
+			hsv[2] = b;
+			break;
+		case 4:
+			hsv[0] = cc;
+			hsv[1] = aa;
+			hsv[2] = b;
+			break;
+		default:
+			hsv[0] = b;
+			hsv[1] = aa;
+			hsv[2] = bb;
+			break;
+		}
+	}
+
+	/**
+	 * Cartoon filter for pixel (x, y), port of filter_cartoon.rs. Array src
+	 * holds rows of given width, row y being located at offset y * width.
+	 * Caller is responsible for keeping all samples within src.
+	 */
+	public static void cartoon(int[] src, int width, int x, int y,
+			float[] color, float[] scratch) {
+		float[] sample = scratch;
+		float cr = 0, cg = 0, cb = 0;
+		int i = 0;
+		for (int xx = -BORDER; xx <= BORDER; xx += BORDER) {
+			for (int yy = -BORDER; yy <= BORDER; yy += BORDER) {
+				int argb = src[(y + yy) * width + x + xx];
+				float r = ((argb >> 16) & 0xFF) / 255f;
+				float g = ((argb >> 8) & 0xFF) / 255f;
+				float b = (argb & 0xFF) / 255f;
+				sample[i++] = r;
+				sample[i++] = g;
+				sample[i++] = b;
+				cr += r;
+				cg += g;
+				cb += b;
+			}
+		}
+		color[0] = cr / 9.0f;
+		color[1] = cg / 9.0f;
+		color[2] = cb / 9.0f;
+
+		float dot = 0.0f;
+		boolean edge = false;
+		for (int c = 0; c < 3; ++c) {
+			float horizEdge = sample[2 * 3 + c] + sample[5 * 3 + c]
+					+ sample[8 * 3 + c]
+					- (sample[0 * 3 + c] + sample[3 * 3 + c] + sample[6 * 3 + c]);
+			float vertEdge = sample[0 * 3 + c] + sample[1 * 3 + c]
+					+ sample[2 * 3 + c]
+					- (sample[6 * 3 + c] + sample[7 * 3 + c] + sample[8 * 3 + c]);
+			float border2 = horizEdge * horizEdge + vertEdge * vertEdge;
+			edge |= border2 > 0.3f * 0.3f;
+			dot += border2;
+		}
+		if (edge) {
+			for (int c = 0; c < 3; ++c) {
+				color[c] *= 1.0f - dot;
+			}
+		}
+
+		float r = (float) Math.floor(color[0] * 8.0f) * 0.125f;
+		float g = (float) Math.floor(color[1] * 8.0f) * 0.125f;
+		float b = (float) Math.floor(color[2] * 8.0f) * 0.125f;
+		color[0] = r + 0.3f * b + 0.3f * g;
+		color[1] = 0.3f * r + 0.3f * b + g;
+		color[2] = 0.3f * r + b + 0.3f * g;
+	}
+
+	/**
+	 * Edges filter for pixel (x, y), port of filter_edges.rs. Array src holds
+	 * rows of given width, row y being located at offset y * width. Caller is
+	 * responsible for keeping all samples within src.
+	 */
+	public static void edges(int[] src, int width, int x, int y, float[] color) {
+		float p0 = length(src[(y - BORDER) * width + x - BORDER]);
+		float p1 = length(src[y * width + x - BORDER]);
+		float p2 = length(src[(y + BORDER) * width + x - BORDER]);
+		float p3 = length(src[(y - BORDER) * width + x]);
+		float p5 = length(src[(y + BORDER) * width + x]);
+		float p6 = length(src[(y - BORDER) * width + x + BORDER]);
+		float p7 = length(src[y * width + x + BORDER]);
+		float p8 = length(src[(y + BORDER) * width + x + BORDER]);
+
+		float delta = (Math.abs(p1 - p7) + Math.abs(p5 - p3)
+				+ Math.abs(p0 - p8) + Math.abs(p2 - p6)) * 0.25f;
+
+		color[0] = 0.8f * delta;
+		color[1] = 1.2f * delta;
+		color[2] = 2.0f * delta;
+	}
+
+	/**
+	 * Returns length of rgb vector of packed color.
+	 */
+	private static float length(int argb) {
+		float r = ((argb >> 16) & 0xFF) / 255f;
+		float g = ((argb >> 8) & 0xFF) / 255f;
+		float b = (argb & 0xFF) / 255f;
+		return (float) Math.sqrt(r * r + g * g + b * b);
+	}
+
+	/**
+	 * Unpacks ARGB color into color array.
+	 */
+	public static void unpack(int argb, float[] color) {
+		color[0] = ((argb >> 16) & 0xFF) / 255f;
+		color[1] = ((argb >> 8) & 0xFF) / 255f;
+		color[2] = (argb & 0xFF) / 255f;
+	}
+
+	/**
+	 * Clamps and packs color into opaque ARGB color.
+	 */
+	public static int pack(float[] color) {
+		int r = (int) (clamp(color[0]) * 255f + 0.5f);
+		int g = (int) (clamp(color[1]) * 255f + 0.5f);
+		int b = (int) (clamp(color[2]) * 255f + 0.5f);
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Clamps color components into range [0, 1] in place.
+	 */
+	public static void clamp(float[] color) {
+		color[0] = clamp(color[0]);
+		color[1] = clamp(color[1]);
+		color[2] = clamp(color[2]);
+	}
+
+	/**
+	 * Clamps value into range [0, 1]. NaN maps to zero.
+	 */
+	public static float clamp(float value) {
+		return value > 0.0f ? (value < 1.0f ? value : 1.0f) : 0.0f;
+	}
+
+	/**
+	 * Darkened corner multiplier for pixel (x, y), port of corner calculation
+	 * in filter_default.rs.
+	 */
+	public static float corner(int x, int y, float invWidth, float invHeight,
+			float cornerRadius) {
+		if (cornerRadius <= 0.0f) {
+			return 1.0f;
+		}
+		float dx = x * invWidth - 0.5f;
+		float dy = y * invHeight - 0.5f;
+		float len = (float) Math.sqrt(dx * dx + dy * dy) * SQRT2;
+		len = (len - 1.0f + cornerRadius) / cornerRadius;
+		len = clamp(len);
+		len = len * len * (3.0f - 2.0f * len);
+		return 0.5f + 0.5f * (1.0f - len);
+	}
+
+}
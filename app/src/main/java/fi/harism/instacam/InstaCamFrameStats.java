@@ -0,0 +1,226 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preview frame latency statistics. Renderer marks the end of each stage of
+ * a camera frame: updateTexImage, copy pass, filter pass and swap. Stage
+ * durations and total latency from frame arrival are kept for a rolling
+ * window of frames. Camera frames arriving faster than they are rendered are
+ * counted as dropped. Swap is marked once onDrawFrame returns, actual buffer
+ * swap follows immediately after it. Frame arrivals are recorded without
+ * locking so that camera callback never waits for renderer or UI thread.
+ * Arrival times are kept per frame so that total latency of a frame latched
+ * behind newer ones is measured from its own arrival.
+ */
+public final class InstaCamFrameStats {
+
+	// Stage and total latency metrics.
+	public static final int METRIC_UPDATE = 0, METRIC_COPY = 1,
+			METRIC_FILTER = 2, METRIC_SWAP = 3, METRIC_TOTAL = 4;
+	public static final int METRIC_COUNT = 5;
+	// Number of frames in rolling window.
+	public static final int WINDOW = 128;
+
+	// Number of arrival times kept, frames pending beyond it are measured
+	// from a later arrival.
+	private static final int ARRIVALS = 64;
+
+	private static final String[] METRIC_NAMES = { "update", "copy",
+			"filter", "swap", "total" };
+
+	// Arrival times of camera frames indexed by sequence number.
+	private final AtomicLongArray mArrivalTimes = new AtomicLongArray(
+			ARRIVALS);
+	// Sequence number of next camera frame to arrive and to be latched.
+	private final AtomicLong mArrivalSequence = new AtomicLong();
+	private long mLatchSequence;
+	// Number of camera frames available.
+	private final AtomicLong mFramesAvailable = new AtomicLong();
+	// Number of camera frames rendered and dropped.
+	private long mFramesDropped, mFramesRendered;
+	// Samples in nanoseconds, WINDOW per metric, and number of samples.
+	private final long[] mSamples = new long[METRIC_COUNT * WINDOW];
+	private long mSampleCount;
+	// Scratch array for calculating percentiles.
+	private final long[] mSorted = new long[WINDOW];
+	// Stage end times of current frame, first one is arrival time.
+	private final long[] mStageTimes = new long[METRIC_TOTAL + 1];
+	// Flag for waiting GPU to finish each stage.
+	private volatile boolean mSynchronous;
+	// Flag for current frame having new camera image.
+	private boolean mUpdated;
+
+	/**
+	 * Called once frames arrived so far won't be latched, e.g. because
+	 * SurfaceTexture was replaced, so that following frames are matched
+	 * with their own arrival times.
+	 */
+	public synchronized void discardPending() {
+		mLatchSequence = mArrivalSequence.get();
+	}
+
+	/**
+	 * Called once rendering of frame ends. Frames without new camera image
+	 * aren't included in statistics.
+	 */
+	public synchronized void endFrame() {
+		if (!mUpdated) {
+			return;
+		}
+		long time = System.nanoTime();
+		mStageTimes[METRIC_SWAP + 1] = time;
+		// Stages skipped for this frame take no time.
+		for (int i = 1; i < mStageTimes.length; ++i) {
+			if (mStageTimes[i] == 0) {
+				mStageTimes[i] = mStageTimes[i - 1];
+			}
+		}
+
+		int index = (int) (mSampleCount % WINDOW);
+		for (int i = 0; i < METRIC_TOTAL; ++i) {
+			mSamples[i * WINDOW + index] = mStageTimes[i + 1]
+					- mStageTimes[i];
+		}
+		mSamples[METRIC_TOTAL * WINDOW + index] = time - mStageTimes[0];
+		++mSampleCount;
+		++mFramesRendered;
+		mUpdated = false;
+	}
+
+	/**
+	 * Getter for number of camera frames arrived.
+	 */
+	public long getFramesAvailable() {
+		return mFramesAvailable.get();
+	}
+
+	/**
+	 * Getter for number of camera frames replaced by a newer one before they
+	 * were rendered.
+	 */
+	public synchronized long getFramesDropped() {
+		return mFramesDropped;
+	}
+
+	/**
+	 * Getter for number of camera frames rendered.
+	 */
+	public synchronized long getFramesRendered() {
+		return mFramesRendered;
+	}
+
+	/**
+	 * Returns given percentile, in range [0, 100], of metric over rolling
+	 * window in nanoseconds. Returns 0 if there are no samples yet.
+	 */
+	public synchronized long getPercentile(int metric, float percentile) {
+		int count = (int) Math.min(mSampleCount, WINDOW);
+		if (count == 0) {
+			return 0;
+		}
+		System.arraycopy(mSamples, metric * WINDOW, mSorted, 0, count);
+		Arrays.sort(mSorted, 0, count);
+		int index = (int) Math.ceil(percentile / 100f * count) - 1;
+		return mSorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * Returns human readable summary of p50/p95/p99 values in milliseconds
+	 * and frame counters.
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (int i = 0; i < METRIC_COUNT; ++i) {
+			summary.append(String.format(Locale.US,
+					"%-6s %5.1f %5.1f %5.1f ms\n", METRIC_NAMES[i],
+					getPercentile(i, 50) / 1000000f,
+					getPercentile(i, 95) / 1000000f,
+					getPercentile(i, 99) / 1000000f));
+		}
+		summary.append(String.format(Locale.US, "frames %d, dropped %d",
+				getFramesRendered(), getFramesDropped()));
+		return summary.toString();
+	}
+
+	/**
+	 * Returns true if renderer should wait for GPU to finish each stage.
+	 */
+	public boolean isSynchronous() {
+		return mSynchronous;
+	}
+
+	/**
+	 * Called once stage of current frame has been rendered.
+	 */
+	public synchronized void markStage(int metric) {
+		if (mUpdated) {
+			mStageTimes[metric + 1] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Called when camera frame arrives, never blocks. To be called before
+	 * frame is made available to renderer so that its arrival time is
+	 * stored by the time it's latched.
+	 */
+	public void onFrameAvailable() {
+		long sequence = mArrivalSequence.getAndIncrement();
+		mArrivalTimes.set((int) (sequence % ARRIVALS), System.nanoTime());
+		mFramesAvailable.incrementAndGet();
+	}
+
+	/**
+	 * Called once updateTexImage has latched camera frame to be rendered,
+	 * with number of frames latched before it without being rendered.
+	 */
+	public synchronized void onTexImageUpdated(int dropped) {
+		mFramesDropped += dropped;
+		mUpdated = true;
+		Arrays.fill(mStageTimes, 0);
+		// Latched frame follows the dropped ones in arrival order.
+		mLatchSequence += dropped;
+		mStageTimes[0] = mArrivalTimes.get((int) (mLatchSequence % ARRIVALS));
+		++mLatchSequence;
+		mStageTimes[METRIC_UPDATE + 1] = System.nanoTime();
+	}
+
+	/**
+	 * Resets statistics.
+	 */
+	public synchronized void reset() {
+		mFramesAvailable.set(0);
+		mFramesDropped = mFramesRendered = 0;
+		mSampleCount = 0;
+		mUpdated = false;
+	}
+
+	/**
+	 * Sets whether renderer should wait for GPU to finish each stage. Stage
+	 * times then include GPU work instead of command submission only, at the
+	 * cost of lower throughput.
+	 */
+	public void setSynchronous(boolean synchronous) {
+		mSynchronous = synchronous;
+	}
+
+}
@@ -0,0 +1,411 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.opengl.GLES20;
+
+/**
+ * Live filter gallery. Every filter is rendered into a tile of one low
+ * resolution atlas texture, all tiles sampling same source texture, and atlas
+ * is drawn over bottom of view. Each update renders as many tiles as fit
+ * within frame budget with a single draw call. Lookup tables are baked on a
+ * worker thread and only uploaded on GL thread. Tile i shows filter i.
+ * Methods other than getTile() have to be called on GL thread.
+ */
+public final class InstaCamGallery {
+
+	// Atlas layout, one square tile per filter.
+	public static final int COLUMNS = 5, ROWS = 2, TILE_SIZE = 128;
+
+	// Attribute and uniform slots shared by gallery shaders.
+	private static final int SLOT_POSITION = 0, SLOT_TEXTURE_COORD = 1,
+			SLOT_TILE_COORD = 2, SLOT_TILE = 3, SLOT_LUT = 4,
+			SLOT_PIXEL_SIZE = 5, SLOT_CORNER_RADIUS = 6;
+	private static final String[] SLOT_NAMES = { "aPosition",
+			"aTextureCoord", "aTileCoord", "aTile", "sLut", "uPixelSize",
+			"uCornerRadius" };
+	// Vertex attribute slots, sizes and offsets within vertex.
+	private static final int[] ATTRIBUTE_SLOTS = { SLOT_POSITION,
+			SLOT_TEXTURE_COORD, SLOT_TILE_COORD, SLOT_TILE };
+	private static final int[] ATTRIBUTE_SIZES = { 2, 2, 2, 1 };
+	private static final int[] ATTRIBUTE_OFFSETS = { 0, 2, 4, 6 };
+	// Floats per vertex.
+	private static final int VERTEX_SIZE = 7;
+	// Every Nth atlas update is timed for update rate.
+	private static final int SAMPLE_INTERVAL = 8;
+	// Number of tiles.
+	private static final int TILES = COLUMNS * ROWS;
+	// Point-wise filters baked into lookup table of each tile, neighbourhood
+	// filters are evaluated in shader.
+	private static final int[][] TILE_POINTWISE = new int[TILES][];
+	static {
+		for (int tile = 0; tile < TILES; ++tile) {
+			boolean pointwise = tile != InstaCamFilters.FILTER_DEFAULT
+					&& InstaCamFilters.isPointwise(tile);
+			TILE_POINTWISE[tile] = pointwise ? new int[] { tile } : new int[0];
+		}
+	}
+	// Worker thread baking lookup tables, shared by all galleries.
+	private static final ExecutorService sLutBaker = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "InstaCamGallery-lut");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+	// Source aspect ratio tile vertices were calculated for.
+	private float mAspectRatio;
+	// Atlas texture holder.
+	private final InstaCamFbo mFbo = new InstaCamFbo();
+	// Lookup table being baked on worker thread, null if there is none,
+	// tile and adjustments it's baked for.
+	private Future<Long> mLutBake;
+	private int mLutBakeTile;
+	private float mLutBakeBrightness, mLutBakeContrast, mLutBakeSaturation;
+	// Adjustments lookup tables are baked with.
+	private float mLutBrightness, mLutContrast, mLutSaturation;
+	// Buffer tables are baked into and uploaded from, reused for every
+	// table.
+	private final ByteBuffer mLutBuffer = ByteBuffer
+			.allocateDirect(InstaCamLut.SIZE * InstaCamLut.SIZE
+					* InstaCamLut.SIZE * 4);
+	// Flag for every tile having a table since texture was created.
+	private boolean mLutComplete;
+	// Next tile to update lookup table for, TILES once all are updated.
+	private int mLutNext;
+	// Lookup table texture handle, tables of tiles stacked on y-axis.
+	private int mLutTexture;
+	// Update rate and number of updates since last timed one.
+	private final InstaCamGalleryRate mRate = new InstaCamGalleryRate();
+	private int mSampleUpdates;
+	// Flag for atlas holding rendered tiles.
+	private boolean mRendered;
+	// Next tile to render.
+	private int mTileNext;
+	// Shaders rendering atlas and drawing it onto view.
+	private final InstaCamShader mShaderAtlas = new InstaCamShader(
+			SLOT_NAMES);
+	private final InstaCamShader mShaderCopy = new InstaCamShader(SLOT_NAMES);
+	// Tile vertices within atlas, two triangles per tile.
+	private final FloatBuffer mTileVertices = allocateVertices(TILES * 6);
+	// View vertices for drawing atlas, and view size they were calculated
+	// for.
+	private final FloatBuffer mViewVertices = allocateVertices(4);
+	private int mViewWidth, mViewHeight;
+
+	/**
+	 * Allocates direct buffer for given number of vertices.
+	 */
+	private static FloatBuffer allocateVertices(int count) {
+		return ByteBuffer.allocateDirect(count * VERTEX_SIZE * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	/**
+	 * Returns tile at given view coordinates, or -1 if there is none. View
+	 * coordinates grow downwards.
+	 */
+	public static int getTile(float x, float y, int viewWidth, int viewHeight) {
+		int height = viewWidth * ROWS / COLUMNS;
+		int top = viewHeight - height;
+		if (x < 0 || x >= viewWidth || y < top || y >= viewHeight) {
+			return -1;
+		}
+		int column = Math.min(COLUMNS - 1, (int) (x * COLUMNS / viewWidth));
+		int row = Math.min(ROWS - 1, (int) ((y - top) * ROWS / height));
+		return row * COLUMNS + column;
+	}
+
+	/**
+	 * Draws atlas over bottom of view, full view width and tiles kept
+	 * square. View framebuffer has to be bound.
+	 */
+	public void draw(int viewWidth, int viewHeight, InstaCamProgramCache cache)
+			throws Exception {
+		if (!mRendered) {
+			return;
+		}
+		mShaderCopy.compile(cache);
+		if (!mShaderCopy.hasProgram()) {
+			return;
+		}
+		if (viewWidth != mViewWidth || viewHeight != mViewHeight) {
+			mViewWidth = viewWidth;
+			mViewHeight = viewHeight;
+			float top = -1f + 2f * (viewWidth * ROWS / COLUMNS) / viewHeight;
+			mViewVertices.position(0);
+			putVertex(mViewVertices, -1f, top, 0f, 1f, 0f, 0f, 0);
+			putVertex(mViewVertices, -1f, -1f, 0f, 0f, 0f, 0f, 0);
+			putVertex(mViewVertices, 1f, top, 1f, 1f, 0f, 0f, 0);
+			putVertex(mViewVertices, 1f, -1f, 1f, 0f, 0f, 0f, 0);
+		}
+
+		mShaderCopy.useProgram();
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFbo.getTexture(0));
+		drawVertices(mShaderCopy, mViewVertices, GLES20.GL_TRIANGLE_STRIP, 0,
+				4);
+	}
+
+	/**
+	 * Draws given range of vertices, enabling attribute arrays shader uses
+	 * for the duration of draw call.
+	 */
+	private static void drawVertices(InstaCamShader shader,
+			FloatBuffer vertices, int mode, int first, int count) {
+		for (int i = 0; i < ATTRIBUTE_SLOTS.length; ++i) {
+			int handle = shader.getSlot(ATTRIBUTE_SLOTS[i]);
+			if (handle != -1) {
+				vertices.position(ATTRIBUTE_OFFSETS[i]);
+				GLES20.glVertexAttribPointer(handle, ATTRIBUTE_SIZES[i],
+						GLES20.GL_FLOAT, false, VERTEX_SIZE * 4, vertices);
+				GLES20.glEnableVertexAttribArray(handle);
+			}
+		}
+		GLES20.glDrawArrays(mode, first, count);
+		for (int slot : ATTRIBUTE_SLOTS) {
+			int handle = shader.getSlot(slot);
+			if (handle != -1) {
+				GLES20.glDisableVertexAttribArray(handle);
+			}
+		}
+	}
+
+	/**
+	 * Called once per drawn frame, returns true if atlas should be updated
+	 * during it. Budget is halved while preview doesn't fit its frame budget.
+	 */
+	public boolean nextFrame(boolean tight) {
+		mRate.setTight(tight);
+		return mRate.nextFrame();
+	}
+
+	/**
+	 * Appends one vertex into given buffer.
+	 */
+	private static void putVertex(FloatBuffer vertices, float x, float y,
+			float u, float v, float tileU, float tileV, int tile) {
+		vertices.put(x).put(y).put(u).put(v).put(tileU).put(tileV).put(tile);
+	}
+
+	/**
+	 * Renders next tiles fitting within budget from given source texture
+	 * with one draw call. Tiles show square center of source. Nothing is
+	 * rendered until every tile has its lookup table.
+	 */
+	public void render(int texture, int width, int height,
+			InstaCamParams params, InstaCamProgramCache cache)
+			throws Exception {
+		mShaderAtlas.compile(cache);
+		if (!mShaderAtlas.hasProgram()) {
+			return;
+		}
+		if (mFbo.getTextureCount() == 0) {
+			mFbo.init(COLUMNS * TILE_SIZE, ROWS * TILE_SIZE, 1, false);
+		}
+		float aspectRatio = (float) width / height;
+		if (aspectRatio != mAspectRatio) {
+			mAspectRatio = aspectRatio;
+			updateTileVertices();
+		}
+
+		long time = 0;
+		boolean sample = ++mSampleUpdates >= SAMPLE_INTERVAL;
+		if (sample) {
+			mSampleUpdates = 0;
+			GLES20.glFinish();
+			time = System.nanoTime();
+		}
+		// Table upload and baking are counted in update time.
+		long bakeTime = updateLuts(params);
+		if (!mLutComplete) {
+			return;
+		}
+
+		mFbo.bind();
+		mFbo.bindTexture(0);
+		mShaderAtlas.useProgram();
+		mShaderAtlas.setUniform1i(SLOT_LUT, 1);
+		mShaderAtlas.setUniform2f(SLOT_PIXEL_SIZE, 1f / width, 1f / height);
+		mShaderAtlas.setUniform1f(SLOT_CORNER_RADIUS,
+				params.getCornerRadius());
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+		int tiles = Math.min(mRate.getTiles(TILES), TILES - mTileNext);
+		drawVertices(mShaderAtlas, mTileVertices, GLES20.GL_TRIANGLES,
+				mTileNext * 6, tiles * 6);
+		mTileNext += tiles;
+		if (mTileNext == TILES) {
+			mTileNext = 0;
+			mRendered = true;
+		}
+
+		if (sample) {
+			GLES20.glFinish();
+			mRate.addSample(System.nanoTime() - time + bakeTime, tiles);
+		}
+	}
+
+	/**
+	 * Sets shader sources and forgets GL resources, to be called once GL
+	 * context has been (re)created.
+	 */
+	public void setSource(InstaCamShaderCompiler compiler,
+			String vertexSource, String template, String copySource) {
+		int[] filters = new int[TILES];
+		for (int tile = 0; tile < TILES; ++tile) {
+			filters[tile] = tile;
+		}
+		mShaderAtlas.setSource(vertexSource,
+				compiler.compileGallery(template, filters));
+		mShaderCopy.setSource(vertexSource, copySource);
+
+		mFbo.reset();
+		mLutTexture = 0;
+		mLutNext = 0;
+		mAspectRatio = 0f;
+		mRendered = false;
+		mTileNext = 0;
+		mRate.reset();
+	}
+
+	/**
+	 * Binds lookup table texture into texture unit 1 and updates tables of
+	 * one tile at most. Tables are baked on worker thread one at a time,
+	 * after adjustments have changed they're updated one tile per call.
+	 * Returns worker thread time of uploaded table in nanoseconds, or zero
+	 * if none was uploaded.
+	 */
+	private long updateLuts(InstaCamParams params) throws Exception {
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+		if (mLutTexture == 0) {
+			int[] textures = new int[1];
+			GLES20.glGenTextures(1, textures, 0);
+			mLutTexture = textures[0];
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
+					InstaCamLut.SIZE * InstaCamLut.SIZE, InstaCamLut.SIZE
+							* TILES, 0, GLES20.GL_RGBA,
+					GLES20.GL_UNSIGNED_BYTE, null);
+			mLutNext = 0;
+			mLutComplete = false;
+		} else {
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture);
+		}
+
+		if (params.getBrightness() != mLutBrightness
+				|| params.getContrast() != mLutContrast
+				|| params.getSaturation() != mLutSaturation) {
+			mLutBrightness = params.getBrightness();
+			mLutContrast = params.getContrast();
+			mLutSaturation = params.getSaturation();
+			mLutNext = 0;
+		}
+
+		// Baked table is uploaded unless adjustments or texture changed
+		// meanwhile.
+		long bakeTime = 0;
+		if (mLutBake != null && mLutBake.isDone()) {
+			long time = mLutBake.get();
+			mLutBake = null;
+			if (mLutBakeTile == mLutNext
+					&& mLutBakeBrightness == mLutBrightness
+					&& mLutBakeContrast == mLutContrast
+					&& mLutBakeSaturation == mLutSaturation) {
+				mLutBuffer.position(0);
+				GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, mLutNext
+						* InstaCamLut.SIZE, InstaCamLut.SIZE
+						* InstaCamLut.SIZE, InstaCamLut.SIZE,
+						GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mLutBuffer);
+				if (++mLutNext == TILES) {
+					mLutComplete = true;
+				}
+				bakeTime = time;
+			}
+		}
+
+		// Tables are baked bypassing shared cache, ten tables of gallery
+		// would otherwise evict the ones preview and analyzer use. Buffer is
+		// touched by worker thread only while bake is in progress.
+		if (mLutBake == null && mLutNext < TILES) {
+			final int[] filters = TILE_POINTWISE[mLutNext];
+			final float brightness = mLutBrightness;
+			final float contrast = mLutContrast;
+			final float saturation = mLutSaturation;
+			mLutBakeTile = mLutNext;
+			mLutBakeBrightness = brightness;
+			mLutBakeContrast = contrast;
+			mLutBakeSaturation = saturation;
+			mLutBake = sLutBaker.submit(new Callable<Long>() {
+				@Override
+				public Long call() {
+					long time = System.nanoTime();
+					mLutBuffer.position(0);
+					InstaCamLut.bakeAtlas(filters, brightness, contrast,
+							saturation, mLutBuffer);
+					return System.nanoTime() - time;
+				}
+			});
+		}
+		return bakeTime;
+	}
+
+	/**
+	 * Calculates tile vertices for current source aspect ratio.
+	 */
+	private void updateTileVertices() {
+		// Square center of source is shown.
+		float u = Math.min(1f, 1f / mAspectRatio) * .5f;
+		float v = Math.min(1f, mAspectRatio) * .5f;
+		mTileVertices.position(0);
+		for (int tile = 0; tile < TILES; ++tile) {
+			// First row is on top.
+			float x0 = -1f + 2f * (tile % COLUMNS) / COLUMNS;
+			float y1 = 1f - 2f * (tile / COLUMNS) / ROWS;
+			float x1 = x0 + 2f / COLUMNS;
+			float y0 = y1 - 2f / ROWS;
+			putVertex(mTileVertices, x0, y0, .5f - u, .5f - v, 0f, 0f, tile);
+			putVertex(mTileVertices, x1, y0, .5f + u, .5f - v, 1f, 0f, tile);
+			putVertex(mTileVertices, x0, y1, .5f - u, .5f + v, 0f, 1f, tile);
+			putVertex(mTileVertices, x0, y1, .5f - u, .5f + v, 0f, 1f, tile);
+			putVertex(mTileVertices, x1, y0, .5f + u, .5f - v, 1f, 0f, tile);
+			putVertex(mTileVertices, x1, y1, .5f + u, .5f + v, 1f, 1f, tile);
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Update rate of filter gallery. Renderer feeds times of gallery updates in,
+ * together with number of tiles rendered by each. Every update renders as
+ * many tiles as fit within per frame budget, so that a single frame doesn't
+ * exceed it. If even one tile doesn't fit, updates are made only every Nth
+ * frame. Budget is halved while preview itself doesn't fit its frame budget.
+ */
+public final class InstaCamGalleryRate {
+
+	// Default time per frame given to gallery.
+	public static final long DEFAULT_BUDGET = 2000000L;
+	// Maximum number of frames between gallery updates.
+	public static final int MAX_INTERVAL = 16;
+	// Number of samples averaged before tile time is adjusted.
+	public static final int SAMPLES = 4;
+
+	// Time per frame in nanoseconds.
+	private long mBudget = DEFAULT_BUDGET;
+	// Frames drawn since last update.
+	private int mFrames;
+	// Sum of update times, tiles rendered by them and number of samples
+	// since last adjustment.
+	private long mSampleSum, mSampleTiles;
+	private int mSampleCount;
+	// Flag for preview not fitting its frame budget.
+	private boolean mTight;
+	// Average time per tile in nanoseconds, zero until first adjustment.
+	private long mTileTime;
+
+	/**
+	 * Adds time sample of one gallery update in nanoseconds, and number of
+	 * tiles it rendered. Time includes work other than rendering, e.g.
+	 * lookup table updates, spread over tiles.
+	 */
+	public void addSample(long updateTime, int tiles) {
+		mSampleSum += updateTime;
+		mSampleTiles += tiles;
+		if (++mSampleCount < SAMPLES) {
+			return;
+		}
+		mTileTime = mSampleSum / Math.max(1, mSampleTiles);
+		mSampleSum = 0;
+		mSampleTiles = 0;
+		mSampleCount = 0;
+	}
+
+	/**
+	 * Returns time per frame, halved while preview is tight.
+	 */
+	private long getBudget() {
+		return mTight ? mBudget / 2 : mBudget;
+	}
+
+	/**
+	 * Returns number of frames between gallery updates.
+	 */
+	public int getInterval() {
+		long budget = getBudget();
+		return (int) Math.max(1,
+				Math.min(MAX_INTERVAL, (mTileTime + budget - 1) / budget));
+	}
+
+	/**
+	 * Returns number of tiles, out of given total, next update should
+	 * render. All of them are rendered until first samples are in.
+	 */
+	public int getTiles(int total) {
+		if (mTileTime == 0) {
+			return total;
+		}
+		return (int) Math.max(1, Math.min(total, getBudget() / mTileTime));
+	}
+
+	/**
+	 * Called once per drawn frame, returns true if gallery should be updated
+	 * during it.
+	 */
+	public boolean nextFrame() {
+		if (++mFrames < getInterval()) {
+			return false;
+		}
+		mFrames = 0;
+		return true;
+	}
+
+	/**
+	 * Resets tile time and drops collected samples, next frame updates
+	 * gallery.
+	 */
+	public void reset() {
+		mFrames = MAX_INTERVAL;
+		mTileTime = 0;
+		mSampleSum = 0;
+		mSampleTiles = 0;
+		mSampleCount = 0;
+	}
+
+	/**
+	 * Setter for time per frame in nanoseconds.
+	 */
+	public void setBudget(long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Setter for flag telling preview doesn't fit its frame budget.
+	 */
+	public void setTight(boolean tight) {
+		mTight = tight;
+	}
+
+}
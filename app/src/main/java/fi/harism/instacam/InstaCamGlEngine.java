@@ -0,0 +1,332 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+/**
+ * Filter engine running same composed filter shaders preview is rendered
+ * with, on an offscreen EGL context of its own. Bitmap is uploaded into a
+ * texture, filter passes render into framebuffer textures and result is read
+ * back. Bitmap must fit within GL_MAX_TEXTURE_SIZE. Methods may be called
+ * from any thread, but not concurrently.
+ */
+public class InstaCamGlEngine implements InstaCamFilterEngine {
+
+	// EGL constants missing from EGL10.
+	private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+	private static final int EGL_OPENGL_ES2_BIT = 4;
+	// Number of rows read back at once.
+	private static final int BAND_ROWS = 256;
+	// Uniform and attribute slots shared by all shaders.
+	private static final int SLOT_POSITION = 0, SLOT_LUT = 1,
+			SLOT_PIXEL_SIZE = 2, SLOT_CORNER_RADIUS = 3, SLOT_ASPECT_RATIO = 4,
+			SLOT_ASPECT_RATIO_PREVIEW = 5;
+	private static final String[] SLOT_NAMES = { "aPosition", "sLut",
+			"uPixelSize", "uCornerRadius", "uAspectRatio",
+			"uAspectRatioPreview" };
+	// Aspect ratio uniform values, Bitmap is filtered as a whole.
+	private static final float[] ASPECT_RATIO_NONE = { 1f, 1f };
+
+	// EGL instances, surface is a 1x1 pbuffer only needed for making
+	// context current.
+	private final EGL10 mEgl;
+	private final EGLDisplay mEglDisplay;
+	private final EGLContext mEglContext;
+	private final EGLSurface mEglSurface;
+	// Offscreen textures filter passes ping-pong between.
+	private final InstaCamFbo mFbo = new InstaCamFbo();
+	// Full view quad vertices.
+	private final ByteBuffer mFullQuadVertices;
+	// Lookup table texture handle and table stored in it.
+	private int mLutTexture;
+	private InstaCamLut mLutUploaded;
+	// Read back buffer for one band of rows and same band as ARGB.
+	private ByteBuffer mReadBuffer;
+	private int[] mReadPixels;
+	// Composes filter pass shader sources.
+	private final InstaCamShaderCompiler mShaderCompiler;
+	// Filter pass shaders created on demand.
+	private final HashMap<String, InstaCamShader> mShaders = new HashMap<String, InstaCamShader>();
+	// Source texture handle Bitmap is uploaded into.
+	private int mSourceTexture;
+	// Vertex shader source for filter passes.
+	private final String mVertexSource;
+
+	/**
+	 * Constructor creates EGL context, throws RuntimeException if OpenGL ES
+	 * 2.0 isn't available.
+	 */
+	public InstaCamGlEngine(Context context) {
+		Resources res = context.getResources();
+		String[] filterSources = new String[InstaCamRenderer.FILTER_RAW_IDS.length];
+		for (int i = 0; i < filterSources.length; ++i) {
+			filterSources[i] = loadRawString(res,
+					InstaCamRenderer.FILTER_RAW_IDS[i]);
+		}
+		mShaderCompiler = new InstaCamShaderCompiler(loadRawString(res,
+				R.raw.filter_lut_fs), loadRawString(res, R.raw.filter_utils_fs),
+				filterSources);
+		mVertexSource = loadRawString(res, R.raw.filter_vs);
+
+		final byte FULL_QUAD_COORDS[] = { -1, 1, -1, -1, 1, 1, 1, -1 };
+		mFullQuadVertices = ByteBuffer.allocateDirect(4 * 2);
+		mFullQuadVertices.put(FULL_QUAD_COORDS).position(0);
+
+		mEgl = (EGL10) EGLContext.getEGL();
+		mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+		if (mEglDisplay == EGL10.EGL_NO_DISPLAY
+				|| !mEgl.eglInitialize(mEglDisplay, new int[2])) {
+			throw new RuntimeException("eglInitialize failed");
+		}
+		final int CONFIG_ATTRIBS[] = { EGL10.EGL_RED_SIZE, 8,
+				EGL10.EGL_GREEN_SIZE, 8, EGL10.EGL_BLUE_SIZE, 8,
+				EGL10.EGL_ALPHA_SIZE, 8, EGL10.EGL_RENDERABLE_TYPE,
+				EGL_OPENGL_ES2_BIT, EGL10.EGL_SURFACE_TYPE,
+				EGL10.EGL_PBUFFER_BIT, EGL10.EGL_NONE };
+		EGLConfig[] configs = new EGLConfig[1];
+		int[] configCount = new int[1];
+		if (!mEgl.eglChooseConfig(mEglDisplay, CONFIG_ATTRIBS, configs, 1,
+				configCount) || configCount[0] == 0) {
+			throw new RuntimeException("eglChooseConfig failed");
+		}
+		final int CONTEXT_ATTRIBS[] = { EGL_CONTEXT_CLIENT_VERSION, 2,
+				EGL10.EGL_NONE };
+		mEglContext = mEgl.eglCreateContext(mEglDisplay, configs[0],
+				EGL10.EGL_NO_CONTEXT, CONTEXT_ATTRIBS);
+		final int SURFACE_ATTRIBS[] = { EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT,
+				1, EGL10.EGL_NONE };
+		mEglSurface = mEglContext == EGL10.EGL_NO_CONTEXT ? EGL10.EGL_NO_SURFACE
+				: mEgl.eglCreatePbufferSurface(mEglDisplay, configs[0],
+						SURFACE_ATTRIBS);
+		if (mEglSurface == EGL10.EGL_NO_SURFACE) {
+			if (mEglContext != EGL10.EGL_NO_CONTEXT) {
+				mEgl.eglDestroyContext(mEglDisplay, mEglContext);
+			}
+			throw new RuntimeException("EGL context creation failed");
+		}
+	}
+
+	@Override
+	public void applyFilter(Bitmap bitmap, InstaCamParams params) {
+		makeCurrent();
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if (mSourceTexture == 0) {
+			int[] textures = new int[2];
+			GLES20.glGenTextures(2, textures, 0);
+			mSourceTexture = textures[0];
+			mLutTexture = textures[1];
+			initTexture(mSourceTexture, GLES20.GL_NEAREST);
+			initTexture(mLutTexture, GLES20.GL_LINEAR);
+		}
+		if (mFbo.getWidth() != width || mFbo.getHeight() != height) {
+			mFbo.init(width, height, 2, false);
+		}
+
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mSourceTexture);
+		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+
+		// Same passes as in preview, every pass renders into offscreen
+		// texture and result is read from last one.
+		InstaCamShaderCompiler.Pass[] passes = InstaCamShaderCompiler.plan(
+				params.getFilterChain(), InstaCamShaderCompiler.MAX_TAPS);
+		int texture = mSourceTexture;
+		for (int pass = 0; pass < passes.length; ++pass) {
+			boolean last = pass == passes.length - 1;
+			InstaCamShader shader = getShader(passes[pass].getFilters(), !last);
+			shader.useProgram();
+
+			mFbo.bind();
+			mFbo.bindTexture(pass % 2);
+			shader.setUniform1f(SLOT_CORNER_RADIUS, params.getCornerRadius());
+			shader.setUniform2fv(SLOT_ASPECT_RATIO, ASPECT_RATIO_NONE);
+			shader.setUniform2fv(SLOT_ASPECT_RATIO_PREVIEW, ASPECT_RATIO_NONE);
+			shader.setUniform2f(SLOT_PIXEL_SIZE, 1.0f / width, 1.0f / height);
+
+			// Adjustments are baked into table of last pass only.
+			bindLut(last ? InstaCamLut.obtain(passes[pass].getPointwise(),
+					params.getBrightness(), params.getContrast(),
+					params.getSaturation()) : InstaCamLut.obtain(
+					passes[pass].getPointwise(), 0f, 0f, 0f));
+			shader.setUniform1i(SLOT_LUT, 1);
+
+			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+
+			int aPosition = shader.getSlot(SLOT_POSITION);
+			GLES20.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false,
+					0, mFullQuadVertices);
+			GLES20.glEnableVertexAttribArray(aPosition);
+			GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+			texture = mFbo.getTexture(pass % 2);
+		}
+
+		readPixels(bitmap);
+	}
+
+	/**
+	 * Binds given lookup table into texture unit 1, uploading it if it isn't
+	 * stored in texture already.
+	 */
+	private void bindLut(InstaCamLut lut) {
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTexture);
+		if (mLutUploaded != lut) {
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
+					InstaCamLut.SIZE * InstaCamLut.SIZE, InstaCamLut.SIZE, 0,
+					GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, lut.getAtlas());
+			mLutUploaded = lut;
+		}
+	}
+
+	/**
+	 * Returns compiled filter pass shader composing given filters.
+	 * Intermediate pass shaders leave out corners.
+	 */
+	private InstaCamShader getShader(int[] filters, boolean intermediate) {
+		String key = InstaCamShaderCompiler.getKey(filters, false,
+				intermediate);
+		InstaCamShader shader = mShaders.get(key);
+		if (shader == null) {
+			shader = new InstaCamShader(SLOT_NAMES);
+			shader.setSource(mVertexSource,
+					mShaderCompiler.compile(filters, false, intermediate));
+			mShaders.put(key, shader);
+		}
+		try {
+			shader.compile(null);
+		} catch (Exception ex) {
+			throw new RuntimeException(ex.getMessage(), ex);
+		}
+		return shader;
+	}
+
+	/**
+	 * Sets clamping and given filtering for texture with given handle.
+	 */
+	private static void initTexture(int texture, int filter) {
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+				GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+				GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+				GLES20.GL_TEXTURE_MIN_FILTER, filter);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+				GLES20.GL_TEXTURE_MAG_FILTER, filter);
+	}
+
+	/**
+	 * Loads String from raw resources with given id.
+	 */
+	private static String loadRawString(Resources res, int rawId) {
+		try {
+			InputStream is = res.openRawResource(rawId);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				baos.write(buf, 0, len);
+			}
+			is.close();
+			return baos.toString();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Makes context current on calling thread.
+	 */
+	private void makeCurrent() {
+		if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface,
+				mEglContext)) {
+			throw new RuntimeException("eglMakeCurrent failed");
+		}
+	}
+
+	/**
+	 * Reads bound framebuffer into given Bitmap band by band. Texture row 0
+	 * was uploaded from Bitmap row 0, so rows are read back without flipping.
+	 */
+	private void readPixels(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int size = width * Math.min(BAND_ROWS, height);
+		if (mReadPixels == null || mReadPixels.length < size) {
+			mReadBuffer = ByteBuffer.allocateDirect(size * 4).order(
+					ByteOrder.LITTLE_ENDIAN);
+			mReadPixels = new int[size];
+		}
+		for (int top = 0; top < height; top += BAND_ROWS) {
+			int rows = Math.min(BAND_ROWS, height - top);
+			mReadBuffer.position(0);
+			GLES20.glReadPixels(0, top, width, rows, GLES20.GL_RGBA,
+					GLES20.GL_UNSIGNED_BYTE, mReadBuffer);
+			IntBuffer ints = mReadBuffer.asIntBuffer();
+			ints.get(mReadPixels, 0, width * rows);
+			// RGBA bytes read as little endian are 0xAABBGGRR.
+			for (int i = 0; i < width * rows; ++i) {
+				int c = mReadPixels[i];
+				mReadPixels[i] = (c & 0xFF00FF00) | ((c & 0xFF) << 16)
+						| ((c >> 16) & 0xFF);
+			}
+			bitmap.setPixels(mReadPixels, 0, width, 0, top, width, rows);
+		}
+	}
+
+	@Override
+	public void release() {
+		makeCurrent();
+		for (InstaCamShader shader : mShaders.values()) {
+			shader.deleteProgram();
+		}
+		mShaders.clear();
+		mFbo.reset();
+		if (mSourceTexture != 0) {
+			int[] textures = { mSourceTexture, mLutTexture };
+			GLES20.glDeleteTextures(2, textures, 0);
+			mSourceTexture = mLutTexture = 0;
+		}
+		mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE,
+				EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+		mEgl.eglDestroySurface(mEglDisplay, mEglSurface);
+		// Display is shared with preview, it's not terminated here.
+		mEgl.eglDestroyContext(mEglDisplay, mEglContext);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Luminance histogram smoothed over frames. Every added frame is blended into
+ * running histogram with given weight, so statistics follow scene changes
+ * gradually instead of jumping with every frame. Has no Android dependencies.
+ */
+public class InstaCamHistogram {
+
+	// Number of histogram bins, one per 8 bit luminance value.
+	public static final int BINS = 256;
+
+	// Smoothed share of pixels in each bin.
+	private final float[] mBins = new float[BINS];
+	// Pixel counts of frame being added.
+	private final int[] mCounts = new int[BINS];
+	// Flag for histogram without any frames added.
+	private boolean mEmpty = true;
+	// Weight of newly added frame.
+	private final float mSmoothing;
+
+	/**
+	 * Constructor taking weight, 0 < smoothing <= 1, of newly added frame.
+	 * Weight 1 disables smoothing.
+	 */
+	public InstaCamHistogram(float smoothing) {
+		mSmoothing = smoothing;
+	}
+
+	/**
+	 * Adds frame of given number of RGBA pixels. Luminance uses same Rec. 709
+	 * weights as saturation adjustment.
+	 */
+	public void add(byte[] rgba, int pixelCount) {
+		if (pixelCount == 0) {
+			return;
+		}
+		for (int i = 0; i < BINS; ++i) {
+			mCounts[i] = 0;
+		}
+		for (int i = 0; i < pixelCount * 4; i += 4) {
+			int luma = (54 * (rgba[i] & 0xFF) + 183 * (rgba[i + 1] & 0xFF)
+					+ 19 * (rgba[i + 2] & 0xFF)) >> 8;
+			++mCounts[luma];
+		}
+		float weight = mEmpty ? 1f : mSmoothing;
+		for (int i = 0; i < BINS; ++i) {
+			mBins[i] += ((float) mCounts[i] / pixelCount - mBins[i]) * weight;
+		}
+		mEmpty = false;
+	}
+
+	/**
+	 * Returns luminance, between 0 and 1, below which given share of pixels
+	 * falls. Returns 0.5 if no frames have been added.
+	 */
+	public float getPercentile(float share) {
+		if (mEmpty) {
+			return .5f;
+		}
+		float sum = 0f;
+		for (int i = 0; i < BINS; ++i) {
+			float next = sum + mBins[i];
+			if (next >= share && mBins[i] > 0f) {
+				// Interpolate linearly within bin.
+				float pos = (share - sum) / mBins[i];
+				return Math.max(0f, Math.min(1f, (i + pos) / BINS));
+			}
+			sum = next;
+		}
+		return 1f;
+	}
+
+	/**
+	 * Forgets frames added so far.
+	 */
+	public void reset() {
+		for (int i = 0; i < BINS; ++i) {
+			mBins[i] = 0f;
+		}
+		mEmpty = true;
+	}
+
+}
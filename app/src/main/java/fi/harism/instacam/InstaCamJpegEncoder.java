@@ -0,0 +1,537 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder which takes image data in bands of rows. Only one row
+ * of MCUs (16 pixel rows) is buffered at a time, so memory use doesn't depend
+ * on image height. Output is YCbCr 4:2:0 with standard Huffman tables. Has no
+ * Android dependencies.
+ */
+public final class InstaCamJpegEncoder {
+
+	// Number of pixel rows per MCU row.
+	public static final int MCU_ROWS = 16;
+
+	// Zigzag order to natural order mapping.
+	private static final int[] ZIGZAG = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24,
+			32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,
+			6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23,
+			30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47,
+			55, 62, 63 };
+
+	// Standard quantization tables in natural order.
+	private static final int[] QUANT_LUMINANCE = { 16, 11, 10, 16, 24, 40,
+			51, 61, 12, 12, 14, 19, 26, 58, 60, 55, 14, 13, 16, 24, 40, 57, 69,
+			56, 14, 17, 22, 29, 51, 87, 80, 62, 18, 22, 37, 56, 68, 109, 103,
+			77, 24, 35, 55, 64, 81, 104, 113, 92, 49, 64, 78, 87, 103, 121,
+			120, 101, 72, 92, 95, 98, 112, 100, 103, 99 };
+	private static final int[] QUANT_CHROMINANCE = { 17, 18, 24, 47, 99, 99,
+			99, 99, 18, 21, 26, 66, 99, 99, 99, 99, 24, 26, 56, 99, 99, 99, 99,
+			99, 47, 66, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99 };
+
+	// Standard Huffman tables as code counts per length and values.
+	private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1,
+			1, 0, 0, 0, 0, 0, 0, 0 };
+	private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 0, 0, 0, 0, 0 };
+	private static final int[] DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9,
+			10, 11 };
+	private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3,
+			5, 5, 4, 4, 0, 0, 1, 0x7d };
+	private static final int[] AC_LUMINANCE_VALUES = { 0x01, 0x02, 0x03,
+			0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+			0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23,
+			0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+			0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27,
+			0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43,
+			0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+			0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+			0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84,
+			0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+			0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8,
+			0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+			0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+			0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4,
+			0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5,
+			0xf6, 0xf7, 0xf8, 0xf9, 0xfa };
+	private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3,
+			4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+	private static final int[] AC_CHROMINANCE_VALUES = { 0x00, 0x01, 0x02,
+			0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+			0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1,
+			0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+			0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a,
+			0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a,
+			0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55,
+			0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+			0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82,
+			0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94,
+			0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6,
+			0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8,
+			0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+			0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3,
+			0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5,
+			0xf6, 0xf7, 0xf8, 0xf9, 0xfa };
+
+	// AAN DCT scale factors.
+	private static final double[] AAN_SCALE = { 1.0, 1.387039845,
+			1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100,
+			0.275899379 };
+
+	// Huffman codes and code lengths indexed by symbol.
+	private static final int[][] sHuffmanCodes = new int[4][];
+	private static final int[][] sHuffmanSizes = new int[4][];
+	private static final int DC_LUMINANCE = 0, AC_LUMINANCE = 1,
+			DC_CHROMINANCE = 2, AC_CHROMINANCE = 3;
+	static {
+		buildHuffman(DC_LUMINANCE, DC_LUMINANCE_BITS, DC_VALUES);
+		buildHuffman(AC_LUMINANCE, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+		buildHuffman(DC_CHROMINANCE, DC_CHROMINANCE_BITS, DC_VALUES);
+		buildHuffman(AC_CHROMINANCE, AC_CHROMINANCE_BITS,
+				AC_CHROMINANCE_VALUES);
+	}
+
+	// Output bit buffer and number of bits in it.
+	private int mBitBuffer, mBitCount;
+	// Block scratch arrays.
+	private final float[] mBlock = new float[64];
+	private final int[] mCoefficients = new int[64];
+	// Output byte buffer.
+	private final byte[] mBuffer = new byte[8192];
+	private int mBufferLength;
+	// Number of rows buffered into current MCU row.
+	private int mBufferedRows;
+	// Color planes for one MCU row.
+	private final float[] mCb, mCr, mY;
+	// Previous DC values per component.
+	private int mDcY, mDcCb, mDcCr;
+	// Quantization tables in natural order and scaled divisors for DCT.
+	private final float[] mDivisorsLuminance = new float[64];
+	private final float[] mDivisorsChrominance = new float[64];
+	private final int[] mQuantLuminance = new int[64];
+	private final int[] mQuantChrominance = new int[64];
+	// Output stream.
+	private final OutputStream mOut;
+	// Image size and MCU aligned width.
+	private final int mWidth, mHeight, mPaddedWidth;
+	// Number of image rows written so far.
+	private int mRowsWritten;
+
+	/**
+	 * Writes JPEG headers for image of given size into output stream.
+	 *
+	 * @param out
+	 *            Output stream, not closed by encoder
+	 * @param width
+	 *            Image width in pixels
+	 * @param height
+	 *            Image height in pixels
+	 * @param quality
+	 *            Quality in range [1, 100]
+	 */
+	public InstaCamJpegEncoder(OutputStream out, int width, int height,
+			int quality) throws IOException {
+		mOut = out;
+		mWidth = width;
+		mHeight = height;
+		mPaddedWidth = (width + 15) & ~15;
+		mY = new float[mPaddedWidth * MCU_ROWS];
+		mCb = new float[mPaddedWidth * MCU_ROWS];
+		mCr = new float[mPaddedWidth * MCU_ROWS];
+
+		quality = Math.max(1, Math.min(100, quality));
+		int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+		for (int i = 0; i < 64; ++i) {
+			mQuantLuminance[i] = Math.max(1,
+					Math.min(255, (QUANT_LUMINANCE[i] * scale + 50) / 100));
+			mQuantChrominance[i] = Math.max(1,
+					Math.min(255, (QUANT_CHROMINANCE[i] * scale + 50) / 100));
+			double aan = AAN_SCALE[i >> 3] * AAN_SCALE[i & 7] * 8.0;
+			mDivisorsLuminance[i] = (float) (1.0 / (mQuantLuminance[i] * aan));
+			mDivisorsChrominance[i] = (float) (1.0 / (mQuantChrominance[i] * aan));
+		}
+
+		writeHeaders();
+	}
+
+	/**
+	 * Generates Huffman code table from code counts and values.
+	 */
+	private static void buildHuffman(int table, int[] bits, int[] values) {
+		int[] codes = new int[256];
+		int[] sizes = new int[256];
+		int code = 0, k = 0;
+		for (int length = 1; length <= 16; ++length) {
+			for (int i = 0; i < bits[length - 1]; ++i) {
+				codes[values[k]] = code++;
+				sizes[values[k]] = length;
+				++k;
+			}
+			code <<= 1;
+		}
+		sHuffmanCodes[table] = codes;
+		sHuffmanSizes[table] = sizes;
+	}
+
+	/**
+	 * Encodes one 8x8 block from given plane. Returns new DC value.
+	 */
+	private int encodeBlock(float[] plane, int offset, int stride,
+			float[] divisors, int dc, int dcTable, int acTable)
+			throws IOException {
+		float[] block = mBlock;
+		for (int y = 0; y < 8; ++y) {
+			System.arraycopy(plane, offset + y * stride, block, y * 8, 8);
+		}
+		fdct(block);
+
+		int[] coefficients = mCoefficients;
+		for (int i = 0; i < 64; ++i) {
+			int natural = ZIGZAG[i];
+			float value = block[natural] * divisors[natural];
+			coefficients[i] = (int) (value < 0 ? value - 0.5f : value + 0.5f);
+		}
+
+		// DC difference.
+		int diff = coefficients[0] - dc;
+		writeValue(diff, dcTable, 0);
+
+		// AC values with run lengths of zeros.
+		int run = 0;
+		for (int i = 1; i < 64; ++i) {
+			int value = coefficients[i];
+			if (value == 0) {
+				++run;
+				continue;
+			}
+			while (run > 15) {
+				writeBits(sHuffmanCodes[acTable][0xF0],
+						sHuffmanSizes[acTable][0xF0]);
+				run -= 16;
+			}
+			writeValue(value, acTable, run << 4);
+			run = 0;
+		}
+		if (run > 0) {
+			writeBits(sHuffmanCodes[acTable][0x00],
+					sHuffmanSizes[acTable][0x00]);
+		}
+		return coefficients[0];
+	}
+
+	/**
+	 * Encodes buffered MCU row, rows beyond buffered ones are replicated from
+	 * the last buffered row.
+	 */
+	private void encodeMcuRow() throws IOException {
+		int stride = mPaddedWidth;
+		for (int y = mBufferedRows; y < MCU_ROWS; ++y) {
+			System.arraycopy(mY, (mBufferedRows - 1) * stride, mY, y * stride,
+					stride);
+			System.arraycopy(mCb, (mBufferedRows - 1) * stride, mCb, y
+					* stride, stride);
+			System.arraycopy(mCr, (mBufferedRows - 1) * stride, mCr, y
+					* stride, stride);
+		}
+
+		// Subsample chroma in place, 2x2 averages stored into top-left
+		// quarter of plane.
+		int halfStride = stride / 2;
+		for (int y = 0; y < MCU_ROWS / 2; ++y) {
+			for (int x = 0; x < halfStride; ++x) {
+				int i = y * 2 * stride + x * 2;
+				mCb[y * halfStride + x] = (mCb[i] + mCb[i + 1] + mCb[i + stride] + mCb[i
+						+ stride + 1]) * 0.25f;
+				mCr[y * halfStride + x] = (mCr[i] + mCr[i + 1] + mCr[i + stride] + mCr[i
+						+ stride + 1]) * 0.25f;
+			}
+		}
+
+		for (int x = 0; x < mPaddedWidth; x += 16) {
+			mDcY = encodeBlock(mY, x, stride, mDivisorsLuminance, mDcY,
+					DC_LUMINANCE, AC_LUMINANCE);
+			mDcY = encodeBlock(mY, x + 8, stride, mDivisorsLuminance, mDcY,
+					DC_LUMINANCE, AC_LUMINANCE);
+			mDcY = encodeBlock(mY, 8 * stride + x, stride, mDivisorsLuminance,
+					mDcY, DC_LUMINANCE, AC_LUMINANCE);
+			mDcY = encodeBlock(mY, 8 * stride + x + 8, stride,
+					mDivisorsLuminance, mDcY, DC_LUMINANCE, AC_LUMINANCE);
+			mDcCb = encodeBlock(mCb, x / 2, halfStride, mDivisorsChrominance,
+					mDcCb, DC_CHROMINANCE, AC_CHROMINANCE);
+			mDcCr = encodeBlock(mCr, x / 2, halfStride, mDivisorsChrominance,
+					mDcCr, DC_CHROMINANCE, AC_CHROMINANCE);
+		}
+		mBufferedRows = 0;
+	}
+
+	/**
+	 * Forward DCT in place, AAN algorithm. Output is scaled by AAN factors
+	 * which are taken into account in quantization divisors.
+	 */
+	private static void fdct(float[] d) {
+		for (int pass = 0; pass < 2; ++pass) {
+			// First pass handles rows, second pass columns.
+			int step = pass == 0 ? 1 : 8;
+			int next = pass == 0 ? 8 : 1;
+			for (int i = 0, o = 0; i < 8; ++i, o += next) {
+				int o0 = o, o1 = o + step, o2 = o + step * 2, o3 = o + step
+						* 3, o4 = o + step * 4, o5 = o + step * 5, o6 = o
+						+ step * 6, o7 = o + step * 7;
+				float tmp0 = d[o0] + d[o7];
+				float tmp7 = d[o0] - d[o7];
+				float tmp1 = d[o1] + d[o6];
+				float tmp6 = d[o1] - d[o6];
+				float tmp2 = d[o2] + d[o5];
+				float tmp5 = d[o2] - d[o5];
+				float tmp3 = d[o3] + d[o4];
+				float tmp4 = d[o3] - d[o4];
+
+				float tmp10 = tmp0 + tmp3;
+				float tmp13 = tmp0 - tmp3;
+				float tmp11 = tmp1 + tmp2;
+				float tmp12 = tmp1 - tmp2;
+
+				d[o0] = tmp10 + tmp11;
+				d[o4] = tmp10 - tmp11;
+
+				float z1 = (tmp12 + tmp13) * 0.707106781f;
+				d[o2] = tmp13 + z1;
+				d[o6] = tmp13 - z1;
+
+				tmp10 = tmp4 + tmp5;
+				tmp11 = tmp5 + tmp6;
+				tmp12 = tmp6 + tmp7;
+
+				float z5 = (tmp10 - tmp12) * 0.382683433f;
+				float z2 = 0.541196100f * tmp10 + z5;
+				float z4 = 1.306562965f * tmp12 + z5;
+				float z3 = tmp11 * 0.707106781f;
+
+				float z11 = tmp7 + z3;
+				float z13 = tmp7 - z3;
+
+				d[o5] = z13 + z2;
+				d[o3] = z13 - z2;
+				d[o1] = z11 + z4;
+				d[o7] = z11 - z4;
+			}
+		}
+	}
+
+	/**
+	 * Flushes remaining rows and writes end of image marker. Output stream is
+	 * flushed but not closed.
+	 */
+	public void finish() throws IOException {
+		if (mRowsWritten != mHeight) {
+			throw new IllegalStateException("Expected " + mHeight
+					+ " rows, got " + mRowsWritten);
+		}
+		if (mBufferedRows > 0) {
+			encodeMcuRow();
+		}
+		// Pad last byte with ones.
+		if (mBitCount > 0) {
+			writeBits((1 << (8 - mBitCount)) - 1, 8 - mBitCount);
+		}
+		writeByte(0xFF);
+		writeByte(0xD9);
+		flushBuffer();
+		mOut.flush();
+	}
+
+	/**
+	 * Writes buffered bytes into output stream.
+	 */
+	private void flushBuffer() throws IOException {
+		mOut.write(mBuffer, 0, mBufferLength);
+		mBufferLength = 0;
+	}
+
+	/**
+	 * Writes given number of low bits of code, stuffing zero after every 0xFF
+	 * byte.
+	 */
+	private void writeBits(int code, int size) throws IOException {
+		mBitBuffer = (mBitBuffer << size) | (code & ((1 << size) - 1));
+		mBitCount += size;
+		while (mBitCount >= 8) {
+			int value = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+			writeByte(value);
+			if (value == 0xFF) {
+				writeByte(0x00);
+			}
+			mBitCount -= 8;
+		}
+	}
+
+	/**
+	 * Writes single byte into buffer.
+	 */
+	private void writeByte(int value) throws IOException {
+		if (mBufferLength == mBuffer.length) {
+			flushBuffer();
+		}
+		mBuffer[mBufferLength++] = (byte) value;
+	}
+
+	/**
+	 * Writes SOI, DQT, SOF0, DHT and SOS segments.
+	 */
+	private void writeHeaders() throws IOException {
+		// SOI.
+		writeByte(0xFF);
+		writeByte(0xD8);
+
+		// APP0, JFIF 1.01 without thumbnail.
+		final int APP0[] = { 0xFF, 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1,
+				0, 0, 1, 0, 1, 0, 0 };
+		for (int value : APP0) {
+			writeByte(value);
+		}
+
+		// DQT.
+		writeByte(0xFF);
+		writeByte(0xDB);
+		writeShort(2 + 65 * 2);
+		writeByte(0);
+		for (int i = 0; i < 64; ++i) {
+			writeByte(mQuantLuminance[ZIGZAG[i]]);
+		}
+		writeByte(1);
+		for (int i = 0; i < 64; ++i) {
+			writeByte(mQuantChrominance[ZIGZAG[i]]);
+		}
+
+		// SOF0, Y sampled 2x2 and chroma 1x1.
+		writeByte(0xFF);
+		writeByte(0xC0);
+		writeShort(8 + 3 * 3);
+		writeByte(8);
+		writeShort(mHeight);
+		writeShort(mWidth);
+		writeByte(3);
+		final int COMPONENTS[] = { 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 };
+		for (int value : COMPONENTS) {
+			writeByte(value);
+		}
+
+		// DHT.
+		writeByte(0xFF);
+		writeByte(0xC4);
+		writeShort(2 + 4 * 17 + DC_VALUES.length * 2
+				+ AC_LUMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+		writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_VALUES);
+		writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+		writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_VALUES);
+		writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+		// SOS.
+		final int SOS[] = { 0xFF, 0xDA, 0, 12, 3, 1, 0x00, 2, 0x11, 3, 0x11,
+				0, 63, 0 };
+		for (int value : SOS) {
+			writeByte(value);
+		}
+	}
+
+	/**
+	 * Writes one Huffman table definition.
+	 */
+	private void writeHuffmanTable(int id, int[] bits, int[] values)
+			throws IOException {
+		writeByte(id);
+		for (int count : bits) {
+			writeByte(count);
+		}
+		for (int value : values) {
+			writeByte(value);
+		}
+	}
+
+	/**
+	 * Appends rows of ARGB pixels. Rows are given from top to bottom and in
+	 * total exactly image height rows must be written before finish().
+	 *
+	 * @param argb
+	 *            Pixel array
+	 * @param offset
+	 *            Offset of first pixel
+	 * @param stride
+	 *            Distance between rows in pixels
+	 * @param rows
+	 *            Number of rows to write
+	 */
+	public void writeRows(int[] argb, int offset, int stride, int rows)
+			throws IOException {
+		if (mRowsWritten + rows > mHeight) {
+			throw new IllegalArgumentException("Too many rows.");
+		}
+		int stridePadded = mPaddedWidth;
+		for (int row = 0; row < rows; ++row) {
+			int src = offset + row * stride;
+			int dst = mBufferedRows * stridePadded;
+			for (int x = 0; x < stridePadded; ++x) {
+				// Replicate last column into padding.
+				int color = argb[src + Math.min(x, mWidth - 1)];
+				float r = (color >> 16) & 0xFF;
+				float g = (color >> 8) & 0xFF;
+				float b = color & 0xFF;
+				mY[dst + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+				mCb[dst + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+				mCr[dst + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+			}
+			++mRowsWritten;
+			if (++mBufferedRows == MCU_ROWS) {
+				encodeMcuRow();
+			}
+		}
+	}
+
+	/**
+	 * Writes big endian 16 bit value.
+	 */
+	private void writeShort(int value) throws IOException {
+		writeByte((value >> 8) & 0xFF);
+		writeByte(value & 0xFF);
+	}
+
+	/**
+	 * Writes value using category Huffman code and magnitude bits. Run length
+	 * is given in high nibble of symbol base.
+	 */
+	private void writeValue(int value, int table, int symbolBase)
+			throws IOException {
+		int abs = value < 0 ? -value : value;
+		int category = 0;
+		while (abs > 0) {
+			++category;
+			abs >>= 1;
+		}
+		int symbol = symbolBase | category;
+		writeBits(sHuffmanCodes[table][symbol], sHuffmanSizes[table][symbol]);
+		if (category > 0) {
+			writeBits(value < 0 ? value - 1 : value, category);
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream inserting given segment right after JPEG start of image
+ * marker while data is being written. Keeps count of bytes written.
+ */
+public class InstaCamJpegOutputStream extends FilterOutputStream {
+
+	// Number of bytes written, including inserted segment.
+	private long mCount;
+	// Segment to insert, null once written.
+	private byte[] mSegment;
+
+	/**
+	 * Constructor taking segment to insert, including its marker and length.
+	 */
+	public InstaCamJpegOutputStream(OutputStream out, byte[] segment) {
+		super(out);
+		mSegment = segment;
+	}
+
+	/**
+	 * Getter for number of bytes written.
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length)
+			throws IOException {
+		// Start of image marker is handled byte by byte.
+		while (mCount < 2 && length > 0) {
+			write(buffer[offset++]);
+			--length;
+		}
+		out.write(buffer, offset, length);
+		mCount += length;
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		out.write(oneByte);
+		++mCount;
+		if (mCount == 1 && (oneByte & 0xFF) != 0xFF) {
+			throw new IOException("Not JPEG data.");
+		}
+		if (mCount == 2) {
+			if ((oneByte & 0xFF) != 0xD8) {
+				throw new IOException("Not JPEG data.");
+			}
+			if (mSegment != null) {
+				out.write(mSegment);
+				mCount += mSegment.length;
+				mSegment = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 3D color lookup table with point-wise filters, brightness, contrast and
+ * saturation baked into it. Tables are cached by their parameters and least
+ * recently used ones are evicted once cache is full.
+ */
+public final class InstaCamLut {
+
+	// Number of grid points per color axis.
+	public static final int SIZE = 33;
+
+	// Maximum number of cached tables.
+	private static final int CACHE_SIZE = 8;
+	// Table cache in access order.
+	private static final Map<Key, InstaCamLut> sCache = new LinkedHashMap<Key, InstaCamLut>(
+			CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, InstaCamLut> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	// Grid index and interpolation weight for every 8 bit channel value.
+	private static final int[] sIndex = new int[256];
+	private static final float[] sWeight = new float[256];
+	static {
+		for (int i = 0; i < 256; ++i) {
+			float pos = i * (SIZE - 1) / 255f;
+			sIndex[i] = Math.min((int) pos, SIZE - 2);
+			sWeight[i] = pos - sIndex[i];
+		}
+	}
+
+	// Lazily generated 2D atlas for GL textures.
+	private ByteBuffer mAtlas;
+	// Lazily generated RGBA table for 3D lookup.
+	private byte[] mTable;
+	// Table values as { r, g, b } triplets, red changing fastest.
+	private final float[] mData = new float[SIZE * SIZE * SIZE * 3];
+
+	private InstaCamLut() {
+	}
+
+	/**
+	 * Returns table for given filter and adjustment values, either from cache
+	 * or by baking a new one. Filter has to be point-wise.
+	 */
+	public static InstaCamLut obtain(int filter, float brightness,
+			float contrast, float saturation) {
+		return obtain(new int[] { filter }, brightness, contrast, saturation);
+	}
+
+	/**
+	 * Returns table for given point-wise filters, applied in array order, and
+	 * adjustment values. Array must not be modified afterwards.
+	 */
+	public static InstaCamLut obtain(int[] filters, float brightness,
+			float contrast, float saturation) {
+		Key key = new Key(filters, brightness, contrast, saturation);
+		synchronized (sCache) {
+			InstaCamLut lut = sCache.get(key);
+			if (lut != null) {
+				return lut;
+			}
+		}
+		// Baking is done outside lock so that cache hits on other threads
+		// never wait for it. If another thread baked same table meanwhile,
+		// its table is kept.
+		InstaCamLut lut = bake(filters, brightness, contrast, saturation);
+		synchronized (sCache) {
+			InstaCamLut cached = sCache.get(key);
+			if (cached != null) {
+				return cached;
+			}
+			sCache.put(key, lut);
+			return lut;
+		}
+	}
+
+	/**
+	 * Evaluates filter and adjustments for every grid point. Bypasses cache,
+	 * package visible for benchmarks.
+	 */
+	static InstaCamLut bake(int filter, float brightness,
+			float contrast, float saturation) {
+		return bake(new int[] { filter }, brightness, contrast, saturation);
+	}
+
+	/**
+	 * Evaluates filters and adjustments for every grid point.
+	 */
+	private static InstaCamLut bake(int[] filters, float brightness,
+			float contrast, float saturation) {
+		InstaCamLut lut = new InstaCamLut();
+		float contrastFactor = InstaCamFilters.contrastFactor(contrast);
+		float[] color = new float[3];
+		int index = 0;
+		for (int b = 0; b < SIZE; ++b) {
+			for (int g = 0; g < SIZE; ++g) {
+				for (int r = 0; r < SIZE; ++r) {
+					evaluate(filters, brightness, contrastFactor, saturation,
+							r, g, b, color);
+					lut.mData[index++] = color[0];
+					lut.mData[index++] = color[1];
+					lut.mData[index++] = color[2];
+				}
+			}
+		}
+		return lut;
+	}
+
+	/**
+	 * Evaluates filters and adjustments straight into given buffer, in
+	 * getAtlas() layout and starting from buffer position. No table is
+	 * created, package visible for users uploading tables of their own from
+	 * a reused buffer.
+	 */
+	static void bakeAtlas(int[] filters, float brightness, float contrast,
+			float saturation, ByteBuffer atlas) {
+		float contrastFactor = InstaCamFilters.contrastFactor(contrast);
+		float[] color = new float[3];
+		for (int g = 0; g < SIZE; ++g) {
+			for (int b = 0; b < SIZE; ++b) {
+				for (int r = 0; r < SIZE; ++r) {
+					evaluate(filters, brightness, contrastFactor, saturation,
+							r, g, b, color);
+					for (int i = 0; i < 3; ++i) {
+						float c = InstaCamFilters.clamp(color[i]);
+						atlas.put((byte) (c * 255f + 0.5f));
+					}
+					atlas.put((byte) 0xFF);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates filters and adjustments for grid point (r, g, b), storing
+	 * result into color array.
+	 */
+	private static void evaluate(int[] filters, float brightness,
+			float contrastFactor, float saturation, int r, int g, int b,
+			float[] color) {
+		color[0] = r / (SIZE - 1f);
+		color[1] = g / (SIZE - 1f);
+		color[2] = b / (SIZE - 1f);
+		// Scripts store filtered color into 8 bit allocation after every
+		// filter.
+		for (int filter : filters) {
+			InstaCamFilters.filter(filter, color);
+			InstaCamFilters.clamp(color);
+		}
+		InstaCamFilters.brightness(color, brightness);
+		InstaCamFilters.contrast(color, contrastFactor);
+		InstaCamFilters.saturation(color, saturation);
+	}
+
+	/**
+	 * Returns table as RGBA texture data sized (SIZE * SIZE) x SIZE. Blue
+	 * slices are placed next to each other, red grows along x-axis within a
+	 * slice and green along y-axis.
+	 */
+	public synchronized ByteBuffer getAtlas() {
+		if (mAtlas == null) {
+			mAtlas = ByteBuffer.allocateDirect(SIZE * SIZE * SIZE * 4);
+			for (int g = 0; g < SIZE; ++g) {
+				for (int b = 0; b < SIZE; ++b) {
+					for (int r = 0; r < SIZE; ++r) {
+						int index = ((b * SIZE + g) * SIZE + r) * 3;
+						for (int i = 0; i < 3; ++i) {
+							float c = InstaCamFilters.clamp(mData[index + i]);
+							mAtlas.put((byte) (c * 255f + 0.5f));
+						}
+						mAtlas.put((byte) 0xFF);
+					}
+				}
+			}
+			mAtlas.position(0);
+		}
+		return mAtlas;
+	}
+
+	/**
+	 * Returns table as RGBA data sized SIZE x SIZE x SIZE, red changing
+	 * fastest and blue slowest, as used by 3D lookup table allocations.
+	 * Array must not be modified.
+	 */
+	public synchronized byte[] getTable() {
+		if (mTable == null) {
+			mTable = new byte[SIZE * SIZE * SIZE * 4];
+			for (int i = 0, j = 0; i < mData.length; i += 3) {
+				for (int c = 0; c < 3; ++c) {
+					float value = InstaCamFilters.clamp(mData[i + c]);
+					mTable[j++] = (byte) (value * 255f + 0.5f);
+				}
+				mTable[j++] = (byte) 0xFF;
+			}
+		}
+		return mTable;
+	}
+
+	/**
+	 * Trilinear lookup for packed ARGB color. Result is stored into color
+	 * array without clamping.
+	 */
+	public void lookup(int argb, float[] color) {
+		int ri = (argb >> 16) & 0xFF;
+		int gi = (argb >> 8) & 0xFF;
+		int bi = argb & 0xFF;
+		float rw = sWeight[ri], gw = sWeight[gi], bw = sWeight[bi];
+
+		final int strideG = SIZE * 3;
+		final int strideB = SIZE * SIZE * 3;
+		int i000 = ((sIndex[bi] * SIZE + sIndex[gi]) * SIZE + sIndex[ri]) * 3;
+		int i010 = i000 + strideG;
+		int i001 = i000 + strideB;
+		int i011 = i001 + strideG;
+
+		final float[] data = mData;
+		for (int c = 0; c < 3; ++c) {
+			float c00 = data[i000 + c] + (data[i000 + 3 + c] - data[i000 + c])
+					* rw;
+			float c10 = data[i010 + c] + (data[i010 + 3 + c] - data[i010 + c])
+					* rw;
+			float c01 = data[i001 + c] + (data[i001 + 3 + c] - data[i001 + c])
+					* rw;
+			float c11 = data[i011 + c] + (data[i011 + 3 + c] - data[i011 + c])
+					* rw;
+			float c0 = c00 + (c10 - c00) * gw;
+			float c1 = c01 + (c11 - c01) * gw;
+			color[c] = c0 + (c1 - c0) * bw;
+		}
+	}
+
+	/**
+	 * Cache key holding table parameters.
+	 */
+	private static final class Key {
+
+		private final float mBrightness, mContrast, mSaturation;
+		private final int[] mFilters;
+
+		private Key(int[] filters, float brightness, float contrast,
+				float saturation) {
+			mFilters = filters;
+			mBrightness = brightness;
+			mContrast = contrast;
+			mSaturation = saturation;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return Arrays.equals(mFilters, key.mFilters)
+					&& Float.compare(mBrightness, key.mBrightness) == 0
+					&& Float.compare(mContrast, key.mContrast) == 0
+					&& Float.compare(mSaturation, key.mSaturation) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = Arrays.hashCode(mFilters);
+			hash = hash * 31 + Float.floatToIntBits(mBrightness);
+			hash = hash * 31 + Float.floatToIntBits(mContrast);
+			hash = hash * 31 + Float.floatToIntBits(mSaturation);
+			return hash;
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.List;
+
+import android.hardware.Camera;
+
+/**
+ * Cache of Camera parameters. Every getParameters and setParameters call is
+ * a binder round trip serialising all parameters, so parameters are fetched
+ * once when camera is opened and read from memory afterwards. Changes are
+ * collected into cached parameters and written with a single setParameters
+ * call on commit().
+ */
+public class InstaCamParameterCache {
+
+	// Camera parameters belong to.
+	private final Camera mCamera;
+	// Number of getParameters and setParameters calls made.
+	private int mGetCount, mSetCount;
+	// Flag for changes not committed yet.
+	private boolean mDirty;
+	// Cached parameters.
+	private Camera.Parameters mParameters;
+	// Supported fps ranges and preview sizes, taken once.
+	private final int[][] mFpsRanges, mPreviewSizes;
+
+	/**
+	 * Constructor takes snapshot of parameters of given Camera.
+	 */
+	public InstaCamParameterCache(Camera camera) {
+		mCamera = camera;
+		refresh();
+
+		List<int[]> ranges = mParameters.getSupportedPreviewFpsRange();
+		mFpsRanges = ranges != null ? ranges.toArray(new int[ranges.size()][])
+				: new int[0][];
+		List<Camera.Size> sizes = mParameters.getSupportedPreviewSizes();
+		mPreviewSizes = new int[sizes != null ? sizes.size() : 0][];
+		for (int i = 0; i < mPreviewSizes.length; ++i) {
+			Camera.Size size = sizes.get(i);
+			mPreviewSizes[i] = new int[] { size.width, size.height };
+		}
+	}
+
+	/**
+	 * Writes changes made since last commit with a single setParameters
+	 * call. Returns false if Camera rejected them, cached parameters are then
+	 * taken again from Camera.
+	 */
+	public boolean commit() {
+		if (!mDirty) {
+			return true;
+		}
+		++mSetCount;
+		try {
+			mCamera.setParameters(mParameters);
+			mDirty = false;
+			return true;
+		} catch (RuntimeException ex) {
+			refresh();
+			return false;
+		}
+	}
+
+	/**
+	 * Getter for number of getParameters calls made.
+	 */
+	public int getGetCount() {
+		return mGetCount;
+	}
+
+	/**
+	 * Returns current preview size as { width, height }.
+	 */
+	public int[] getPreviewSize() {
+		Camera.Size size = mParameters.getPreviewSize();
+		return new int[] { size.width, size.height };
+	}
+
+	/**
+	 * Getter for number of setParameters calls made.
+	 */
+	public int getSetCount() {
+		return mSetCount;
+	}
+
+	/**
+	 * Returns supported fps ranges. Array must not be modified.
+	 */
+	public int[][] getSupportedPreviewFpsRanges() {
+		return mFpsRanges;
+	}
+
+	/**
+	 * Returns supported preview sizes as { width, height } pairs. Array must
+	 * not be modified.
+	 */
+	public int[][] getSupportedPreviewSizes() {
+		return mPreviewSizes;
+	}
+
+	/**
+	 * Takes parameters from Camera, dropping uncommitted changes.
+	 */
+	private void refresh() {
+		mParameters = mCamera.getParameters();
+		++mGetCount;
+		mDirty = false;
+	}
+
+	/**
+	 * Sets preview fps range, written on next commit.
+	 */
+	public void setPreviewFpsRange(int min, int max) {
+		mParameters.setPreviewFpsRange(min, max);
+		mDirty = true;
+	}
+
+	/**
+	 * Sets preview size, written on next commit.
+	 */
+	public void setPreviewSize(int width, int height) {
+		mParameters.setPreviewSize(width, height);
+		mDirty = true;
+	}
+
+	/**
+	 * Sets jpeg rotation, written on next commit.
+	 */
+	public void setRotation(int rotation) {
+		mParameters.setRotation(rotation);
+		mDirty = true;
+	}
+
+}
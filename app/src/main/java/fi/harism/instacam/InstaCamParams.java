@@ -0,0 +1,153 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Immutable snapshot of filter parameters. Changes are made by creating a
+ * modified copy, so a snapshot can be read from any thread and kept with a
+ * picture without it changing afterwards. Has no Android dependencies.
+ */
+public final class InstaCamParams {
+
+	// Parameters before any changes, no filtering and identity orientation.
+	public static final InstaCamParams DEFAULT = new InstaCamParams(
+			new InstaCamFilterChain(InstaCamFilters.FILTER_DEFAULT), 0f, 0f,
+			0f, 0f, new float[] { 1f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 1f,
+					0f, 0f, 0f, 0f, 1f }, new float[] { 1f, 1f });
+
+	// Preview aspect ratio.
+	private final float[] mAspectRatioPreview;
+	// Filter values.
+	private final float mBrightness, mContrast, mSaturation, mCornerRadius;
+	// Chain of predefined filters.
+	private final InstaCamFilterChain mFilterChain;
+	// Camera orientation matrix.
+	private final float[] mOrientationM;
+
+	private InstaCamParams(InstaCamFilterChain filterChain, float brightness,
+			float contrast, float saturation, float cornerRadius,
+			float[] orientationM, float[] aspectRatioPreview) {
+		mFilterChain = filterChain;
+		mBrightness = brightness;
+		mContrast = contrast;
+		mSaturation = saturation;
+		mCornerRadius = cornerRadius;
+		mOrientationM = orientationM;
+		mAspectRatioPreview = aspectRatioPreview;
+	}
+
+	/**
+	 * Returns preview aspect ratio. Array must not be modified.
+	 */
+	public float[] getAspectRatioPreview() {
+		return mAspectRatioPreview;
+	}
+
+	/**
+	 * Getter for brightness, in range [-0.5, 0.5].
+	 */
+	public float getBrightness() {
+		return mBrightness;
+	}
+
+	/**
+	 * Getter for contrast, in range [-0.5, 0.5].
+	 */
+	public float getContrast() {
+		return mContrast;
+	}
+
+	/**
+	 * Getter for corner radius, in range [0, 1].
+	 */
+	public float getCornerRadius() {
+		return mCornerRadius;
+	}
+
+	/**
+	 * Getter for filter chain.
+	 */
+	public InstaCamFilterChain getFilterChain() {
+		return mFilterChain;
+	}
+
+	/**
+	 * Returns camera orientation matrix. Array must not be modified.
+	 */
+	public float[] getOrientationM() {
+		return mOrientationM;
+	}
+
+	/**
+	 * Getter for saturation, in range [-0.5, 0.5].
+	 */
+	public float getSaturation() {
+		return mSaturation;
+	}
+
+	/**
+	 * Returns copy with given brightness.
+	 */
+	public InstaCamParams withBrightness(float brightness) {
+		return new InstaCamParams(mFilterChain, brightness, mContrast,
+				mSaturation, mCornerRadius, mOrientationM, mAspectRatioPreview);
+	}
+
+	/**
+	 * Returns copy with given contrast.
+	 */
+	public InstaCamParams withContrast(float contrast) {
+		return new InstaCamParams(mFilterChain, mBrightness, contrast,
+				mSaturation, mCornerRadius, mOrientationM, mAspectRatioPreview);
+	}
+
+	/**
+	 * Returns copy with given corner radius.
+	 */
+	public InstaCamParams withCornerRadius(float cornerRadius) {
+		return new InstaCamParams(mFilterChain, mBrightness, mContrast,
+				mSaturation, cornerRadius, mOrientationM, mAspectRatioPreview);
+	}
+
+	/**
+	 * Returns copy with given filter chain.
+	 */
+	public InstaCamParams withFilterChain(InstaCamFilterChain filterChain) {
+		return new InstaCamParams(filterChain, mBrightness, mContrast,
+				mSaturation, mCornerRadius, mOrientationM, mAspectRatioPreview);
+	}
+
+	/**
+	 * Returns copy with given orientation matrix and preview aspect ratio.
+	 * Arrays are copied.
+	 */
+	public InstaCamParams withOrientation(float[] orientationM,
+			float[] aspectRatioPreview) {
+		return new InstaCamParams(mFilterChain, mBrightness, mContrast,
+				mSaturation, mCornerRadius, orientationM.clone(),
+				aspectRatioPreview.clone());
+	}
+
+	/**
+	 * Returns copy with given saturation.
+	 */
+	public InstaCamParams withSaturation(float saturation) {
+		return new InstaCamParams(mFilterChain, mBrightness, mContrast,
+				saturation, mCornerRadius, mOrientationM, mAspectRatioPreview);
+	}
+
+}
@@ -0,0 +1,273 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * On device parity and performance check of filter backends. Fixed corpus of
+ * generated images is run through every filter on every available backend,
+ * GLSL, RenderScript and Java. Output is compared against reference computed
+ * per pixel with InstaCamFilters, without lookup tables, and throughput
+ * against baseline stored on first run. Can be
+ * started with intent extra, e.g. 'adb shell am start -n
+ * fi.harism.instacam/.InstaCamActivity --ez fi.harism.instacam.PARITY true',
+ * results are written to LogCat. Adding '--ez
+ * fi.harism.instacam.PARITY_BASELINE true' stores new throughput baseline.
+ */
+public final class InstaCamParity {
+
+	// Intent extras for running check and for storing new baseline.
+	public static final String EXTRA_PARITY = "fi.harism.instacam.PARITY";
+	public static final String EXTRA_PARITY_BASELINE = "fi.harism.instacam.PARITY_BASELINE";
+
+	// Corpus image size.
+	public static final int WIDTH = 1024, HEIGHT = 768;
+
+	// Allowed maximum and mean channel error, in 0-255 units, per filter.
+	// Point-wise filters are interpolated from lookup tables by every
+	// backend. Neighbourhood filters quantise colors and thresholds, so a
+	// small difference may flip a pixel.
+	private static final int[] MAX_ERROR = { 6, 6, 6, 6, 6, 6, 6, 6, 64, 32 };
+	private static final float[] MEAN_ERROR = { 1.5f, 1.5f, 1.5f, 1.5f,
+			1.5f, 1.5f, 1.5f, 1.5f, 4f, 3f };
+	// Filter names used in report and baseline keys.
+	private static final String[] FILTER_NAMES = { "default",
+			"blackandwhite", "ansel", "sepia", "retro", "georgia", "sahara",
+			"polaroid", "cartoon", "edges" };
+	// Number of timed iterations per image, after one warm-up round.
+	private static final int ITERATIONS = 3;
+	// Parameters filters are run with. Corners are included as every backend
+	// darkens them on its own.
+	private static final InstaCamParams PARAMS = InstaCamParams.DEFAULT
+			.withBrightness(.1f).withContrast(.1f).withSaturation(.1f)
+			.withCornerRadius(.3f);
+	// Shared preferences holding throughput baseline in MP/s.
+	private static final String PREFS_NAME = "parity";
+	// Allowed relative throughput drop below baseline.
+	private static final float THROUGHPUT_TOLERANCE = .2f;
+
+	private static final String TAG = "InstaCamParity";
+
+	private InstaCamParity() {
+	}
+
+	/**
+	 * Adds backend with given name into lists, or notes it into report if
+	 * it's unavailable on this device.
+	 */
+	private static void addBackend(Context context, String name,
+			ArrayList<InstaCamFilterEngine> engines, ArrayList<String> names,
+			StringBuilder report) {
+		try {
+			if (name.equals("gl")) {
+				engines.add(new InstaCamGlEngine(context));
+			} else if (name.equals("rs")) {
+				engines.add(new InstaCamRS(context));
+			} else {
+				engines.add(new InstaCamCpuEngine());
+			}
+			names.add(name);
+		} catch (RuntimeException ex) {
+			report.append(String.format(Locale.US, "%s: unavailable, %s\n",
+					name, ex.getMessage()));
+		}
+	}
+
+	/**
+	 * Creates corpus images, random noise for neighbourhood filters, smooth
+	 * gradients covering color cube for point-wise ones and hard edged
+	 * checkerboard with saturated colors.
+	 */
+	private static int[][] createCorpus(int width, int height) {
+		int[][] corpus = new int[3][width * height];
+		Random random = new Random(0);
+		final int CHECKER_COLORS[] = { 0xFF000000, 0xFFFFFFFF, 0xFFFF0000,
+				0xFF00FF00, 0xFF0000FF, 0xFF808080 };
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				int i = y * width + x;
+				corpus[0][i] = 0xFF000000 | random.nextInt(0x1000000);
+				int r = x * 255 / (width - 1);
+				int g = y * 255 / (height - 1);
+				int b = (x + y) * 255 / (width + height - 2);
+				corpus[1][i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+				corpus[2][i] = CHECKER_COLORS[(x / 16 + y / 16 * 3)
+						% CHECKER_COLORS.length];
+			}
+		}
+		return corpus;
+	}
+
+	/**
+	 * Computes reference output for single filter chain and given parameters
+	 * from src into dst, evaluating filter and adjustments exactly for every
+	 * pixel. Like scripts, neighbourhood filters leave border pixels
+	 * untouched and point-wise filter result is clamped before adjustments.
+	 */
+	private static void reference(int[] src, int[] dst, int width,
+			int height, int filter, InstaCamParams params) {
+		final int border = InstaCamFilters.BORDER;
+		float contrastFactor = InstaCamFilters.contrastFactor(params
+				.getContrast());
+		float invWidth = 1.0f / width, invHeight = 1.0f / height;
+		float[] color = new float[3];
+		float[] scratch = new float[27];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				int index = y * width + x;
+				if (InstaCamFilters.isPointwise(filter)
+						|| y < border || y >= height - border || x < border
+						|| x >= width - border) {
+					InstaCamFilters.unpack(src[index], color);
+					InstaCamFilters.filter(filter, color);
+				} else if (filter == InstaCamFilters.FILTER_CARTOON) {
+					InstaCamFilters.cartoon(src, width, x, y, color, scratch);
+				} else {
+					InstaCamFilters.edges(src, width, x, y, color);
+				}
+				InstaCamFilters.clamp(color);
+				InstaCamFilters.brightness(color, params.getBrightness());
+				InstaCamFilters.contrast(color, contrastFactor);
+				InstaCamFilters.saturation(color, params.getSaturation());
+				float corner = InstaCamFilters.corner(x, y, invWidth,
+						invHeight, params.getCornerRadius());
+				color[0] *= corner;
+				color[1] *= corner;
+				color[2] *= corner;
+				dst[index] = InstaCamFilters.pack(color);
+			}
+		}
+	}
+
+	/**
+	 * Runs check, returning report. Report ends with 'PASS' if every backend
+	 * stayed within error thresholds and throughput baseline, 'FAIL'
+	 * otherwise.
+	 */
+	public static String run(Context context, boolean storeBaseline) {
+		ArrayList<InstaCamFilterEngine> engines = new ArrayList<InstaCamFilterEngine>();
+		ArrayList<String> names = new ArrayList<String>();
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.US,
+				"%dx%d, %d images, %d iterations\n", WIDTH, HEIGHT, 3,
+				ITERATIONS));
+		addBackend(context, "cpu", engines, names, report);
+		addBackend(context, "rs", engines, names, report);
+		addBackend(context, "gl", engines, names, report);
+
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME,
+				Context.MODE_PRIVATE);
+		SharedPreferences.Editor editor = prefs.edit();
+		boolean passed = true;
+
+		int[][] corpus = createCorpus(WIDTH, HEIGHT);
+		int[][] reference = new int[corpus.length][WIDTH * HEIGHT];
+		int[] pixels = new int[WIDTH * HEIGHT];
+		Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.ARGB_8888);
+
+		for (int filter = 0; filter < InstaCamFilters.FILTER_COUNT; ++filter) {
+			InstaCamParams params = PARAMS
+					.withFilterChain(new InstaCamFilterChain(filter));
+			for (int image = 0; image < corpus.length; ++image) {
+				reference(corpus[image], reference[image], WIDTH, HEIGHT,
+						filter, params);
+			}
+
+			for (int engine = 0; engine < engines.size(); ++engine) {
+				String name = names.get(engine);
+				long time = 0, errorSum = 0;
+				int errorMax = 0;
+				try {
+					for (int image = 0; image < corpus.length; ++image) {
+						for (int i = 0; i <= ITERATIONS; ++i) {
+							// Copying input in isn't timed.
+							bitmap.setPixels(corpus[image], 0, WIDTH, 0, 0,
+									WIDTH, HEIGHT);
+							long start = System.nanoTime();
+							engines.get(engine).applyFilter(bitmap, params);
+							// First round is warm-up.
+							if (i > 0) {
+								time += System.nanoTime() - start;
+							}
+						}
+						bitmap.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+						int[] ref = reference[image];
+						for (int i = 0; i < pixels.length; ++i) {
+							for (int shift = 0; shift < 24; shift += 8) {
+								int error = Math.abs(((pixels[i] >> shift) & 0xFF)
+										- ((ref[i] >> shift) & 0xFF));
+								errorSum += error;
+								errorMax = Math.max(errorMax, error);
+							}
+						}
+					}
+				} catch (RuntimeException ex) {
+					report.append(String.format(Locale.US,
+							"%-4s %-13s failed, %s FAIL\n", name,
+							FILTER_NAMES[filter], ex.getMessage()));
+					passed = false;
+					continue;
+				}
+
+				float errorMean = (float) errorSum
+						/ (3L * WIDTH * HEIGHT * corpus.length);
+				float mps = (float) WIDTH * HEIGHT * corpus.length
+						* ITERATIONS * 1000f / Math.max(1, time);
+				String key = name + "." + FILTER_NAMES[filter];
+				float baseline = prefs.getFloat(key, 0f);
+				if (storeBaseline || baseline == 0f) {
+					editor.putFloat(key, mps);
+					baseline = mps;
+				}
+
+				boolean ok = errorMax <= MAX_ERROR[filter]
+						&& errorMean <= MEAN_ERROR[filter]
+						&& mps >= baseline * (1f - THROUGHPUT_TOLERANCE);
+				passed &= ok;
+				report.append(String.format(Locale.US,
+						"%-4s %-13s max %3d mean %5.2f %7.1f MP/s "
+								+ "(baseline %7.1f) %s\n", name,
+						FILTER_NAMES[filter], errorMax, errorMean, mps,
+						baseline, ok ? "ok" : "FAIL"));
+			}
+		}
+		editor.apply();
+
+		for (InstaCamFilterEngine engine : engines) {
+			engine.release();
+		}
+		bitmap.recycle();
+
+		report.append(passed ? "PASS" : "FAIL");
+		if (passed) {
+			Log.d(TAG, report.toString());
+		} else {
+			Log.e(TAG, report.toString());
+		}
+		return report.toString();
+	}
+
+}
@@ -0,0 +1,41 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Interface for choosing camera preview size and fps range among supported
+ * ones. Capabilities are passed in as plain arrays so that implementations
+ * can be tested against recorded capability lists without a camera.
+ */
+public interface InstaCamPreviewNegotiator {
+
+	/**
+	 * Returns fps range, { min, max } in frames per thousand seconds, to use
+	 * among supported ranges for given target rate in same units. Returns
+	 * null if there are no ranges to choose from.
+	 */
+	public int[] selectFpsRange(int[][] ranges, int fps);
+
+	/**
+	 * Returns preview size, { width, height }, to use among supported sizes
+	 * for rendering into surface of given size. Surface size is given in
+	 * camera sensor orientation. Returns null if there are no sizes to
+	 * choose from.
+	 */
+	public int[] selectPreviewSize(int[][] sizes, int width, int height);
+
+}
@@ -0,0 +1,203 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * On-disk cache for linked program binaries. Binaries are keyed by hash of
+ * shader sources and driver identification, so driver updates invalidate
+ * them. Program binaries are available only on OpenGL ES 3.0 contexts.
+ */
+public class InstaCamProgramCache {
+
+	// Maximum number of cached binaries.
+	private static final int MAX_FILES = 16;
+
+	// Cache directory.
+	private final File mDir;
+	// Driver identification, part of key.
+	private String mDriver;
+	// Flag for program binary support in current context.
+	private boolean mSupported;
+
+	/**
+	 * Constructor taking cache directory.
+	 */
+	public InstaCamProgramCache(File dir) {
+		mDir = dir;
+	}
+
+	/**
+	 * Returns cache key for given shader sources.
+	 */
+	public String getKey(String vertexSource, String fragmentSource) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(mDriver.getBytes());
+			digest.update((byte) 0);
+			digest.update(vertexSource.getBytes());
+			digest.update((byte) 0);
+			digest.update(fragmentSource.getBytes());
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16));
+				key.append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Must be called on GL thread once context has been created.
+	 */
+	public void init() {
+		String version = GLES20.glGetString(GLES20.GL_VERSION);
+		mSupported = Build.VERSION.SDK_INT >= 18 && version != null
+				&& version.startsWith("OpenGL ES 3");
+		mDriver = GLES20.glGetString(GLES20.GL_RENDERER) + "/" + version;
+	}
+
+	/**
+	 * Returns true if program binaries can be used.
+	 */
+	public boolean isSupported() {
+		return mSupported;
+	}
+
+	/**
+	 * Loads binary with given key into program. Returns true if program was
+	 * linked successfully. Binaries failing to load are removed.
+	 */
+	public boolean load(int program, String key) {
+		if (!mSupported) {
+			return false;
+		}
+		File file = new File(mDir, key);
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream is = new DataInputStream(new FileInputStream(file));
+			int format, length;
+			byte[] data;
+			try {
+				format = is.readInt();
+				length = is.readInt();
+				data = new byte[length];
+				is.readFully(data);
+			} finally {
+				is.close();
+			}
+
+			ByteBuffer binary = ByteBuffer.allocateDirect(length);
+			binary.put(data).position(0);
+			GLES30.glProgramBinary(program, format, binary, length);
+			int[] linkStatus = new int[1];
+			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+			if (linkStatus[0] == GLES20.GL_TRUE) {
+				// Update modification time for eviction order.
+				file.setLastModified(System.currentTimeMillis());
+				return true;
+			}
+		} catch (IOException ex) {
+		}
+		file.delete();
+		return false;
+	}
+
+	/**
+	 * Must be called before linking a program which is going to be stored.
+	 */
+	public void prepare(int program) {
+		if (mSupported) {
+			GLES30.glProgramParameteri(program,
+					GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+		}
+	}
+
+	/**
+	 * Stores binary of linked program. Least recently used binaries are
+	 * removed once cache is full.
+	 */
+	public void store(int program, String key) {
+		if (!mSupported) {
+			return;
+		}
+		int[] values = new int[2];
+		GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH,
+				values, 0);
+		int length = values[0];
+		if (length <= 0) {
+			return;
+		}
+		ByteBuffer binary = ByteBuffer.allocateDirect(length);
+		GLES30.glGetProgramBinary(program, length, values, 0, values, 1,
+				binary);
+		length = values[0];
+		byte[] data = new byte[length];
+		binary.position(0);
+		binary.get(data);
+
+		mDir.mkdirs();
+		File file = new File(mDir, key);
+		try {
+			DataOutputStream os = new DataOutputStream(new FileOutputStream(
+					file));
+			try {
+				os.writeInt(values[1]);
+				os.writeInt(length);
+				os.write(data);
+			} finally {
+				os.close();
+			}
+		} catch (IOException ex) {
+			file.delete();
+		}
+
+		File[] files = mDir.listFiles();
+		if (files != null && files.length > MAX_FILES) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File lhs, File rhs) {
+					long l = lhs.lastModified(), r = rhs.lastModified();
+					return l < r ? -1 : (l == r ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < files.length - MAX_FILES; ++i) {
+				files[i].delete();
+			}
+		}
+	}
+
+}
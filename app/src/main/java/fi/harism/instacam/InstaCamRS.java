@@ -16,116 +16,288 @@
 
 package fi.harism.instacam;
 
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.os.Build;
 import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.Element;
 import android.support.v8.renderscript.RenderScript;
+import android.support.v8.renderscript.ScriptIntrinsic3DLUT;
+import android.support.v8.renderscript.Type;
 
 /**
  * RenderScript container class.
  */
-public class InstaCamRS {
+public class InstaCamRS implements InstaCamFilterEngine {
+
+	// Maximum number of idle allocations kept in pool.
+	private static final int POOL_SIZE = 2;
 
-	// Filter scripts.
-	private ScriptC_filter_ansel mFilterAnsel;
-	private ScriptC_filter_blackandwhite mFilterBlackAndWhite;
+	// Filter scripts, created on first use.
 	private ScriptC_filter_cartoon mFilterCartoon;
 	private ScriptC_filter_default mFilterDefault;
 	private ScriptC_filter_edges mFilterEdges;
-	private ScriptC_filter_georgia mFilterGeorgia;
-	private ScriptC_filter_polaroid mFilterPolaroid;
-	private ScriptC_filter_retro mFilterRetro;
-	private ScriptC_filter_sahara mFilterSahara;
-	private ScriptC_filter_sepia mFilterSepia;
+	// Lookup table script, table allocation and table stored in it.
+	private ScriptIntrinsic3DLUT mLut;
+	private Allocation mLutAllocation;
+	private InstaCamLut mLutUploaded;
+	// Pool statistics.
+	private int mPoolHits, mPoolMisses;
+	// Idle allocations, most recently released last.
+	private final LinkedList<Allocation> mPool = new LinkedList<Allocation>();
+	// Resources scripts are loaded from.
+	private final Resources mResources;
 	// RenderScript instance.
 	private RenderScript mRS;
+	// Allocation sharing memory with Bitmap and the Bitmap itself.
+	private Allocation mSharedAllocation;
+	private WeakReference<Bitmap> mSharedBitmap;
+	// Flag for disabling shared allocations once they fail.
+	private boolean mSharedSupported = Build.VERSION.SDK_INT >= 18;
 
 	/**
-	 * Default constructor.
+	 * Default constructor. Filter scripts are created on first use and kept
+	 * for following calls.
 	 */
 	public InstaCamRS(Context context) {
 		mRS = RenderScript.create(context);
-		mFilterAnsel = new ScriptC_filter_ansel(mRS, context.getResources(),
-				R.raw.filter_ansel);
-		mFilterBlackAndWhite = new ScriptC_filter_blackandwhite(mRS,
-				context.getResources(), R.raw.filter_blackandwhite);
-		mFilterCartoon = new ScriptC_filter_cartoon(mRS,
-				context.getResources(), R.raw.filter_cartoon);
-		mFilterDefault = new ScriptC_filter_default(mRS,
-				context.getResources(), R.raw.filter_default);
-		mFilterEdges = new ScriptC_filter_edges(mRS, context.getResources(),
-				R.raw.filter_edges);
-		mFilterGeorgia = new ScriptC_filter_georgia(mRS,
-				context.getResources(), R.raw.filter_georgia);
-		mFilterPolaroid = new ScriptC_filter_polaroid(mRS,
-				context.getResources(), R.raw.filter_polaroid);
-		mFilterRetro = new ScriptC_filter_retro(mRS, context.getResources(),
-				R.raw.filter_retro);
-		mFilterSahara = new ScriptC_filter_sahara(mRS, context.getResources(),
-				R.raw.filter_sahara);
-		mFilterSepia = new ScriptC_filter_sepia(mRS, context.getResources(),
-				R.raw.filter_sepia);
+		mResources = context.getResources();
+	}
+
+	@Override
+	public void applyFilter(Bitmap bitmap, InstaCamParams params) {
+		// Get allocation holding Bitmap pixels.
+		Allocation allocation = obtainBitmapAllocation(bitmap);
+
+		// Every pass runs its neighbourhood filter script and then its
+		// point-wise filters through baked lookup table. Brightness, contrast
+		// and saturation are baked into table of last pass.
+		InstaCamFilterChain chain = params.getFilterChain();
+		int lastPass = chain.getPassCount() - 1;
+		for (int pass = 0; pass <= lastPass; ++pass) {
+			applyScript(chain.getPassFilter(pass), allocation);
+			if (chain.hasPassPointwise(pass)
+					|| (pass == lastPass && (params.getBrightness() != 0f
+							|| params.getContrast() != 0f || params
+							.getSaturation() != 0f))) {
+				applyLut(chain.getPassLut(pass, params.getBrightness(),
+						params.getContrast(), params.getSaturation()),
+						allocation);
+			}
+		}
+
+		// Darken corners.
+		InstaCamTrace.beginSection("InstaCamRS.script");
+		createScript(InstaCamFilters.FILTER_DEFAULT);
+		InstaCamTrace.endSection();
+		mFilterDefault.invoke_setCornerRadius(params.getCornerRadius());
+		mFilterDefault.invoke_setSize(bitmap.getWidth(), bitmap.getHeight());
+		mFilterDefault.forEach_root(allocation);
+
+		// Copy allocation values back to Bitmap unless they share memory.
+		if (allocation == mSharedAllocation) {
+			allocation.syncAll(Allocation.USAGE_SCRIPT);
+		} else {
+			allocation.copyTo(bitmap);
+			recycleAllocation(allocation);
+		}
 	}
 
 	/**
-	 * Applies filter from data values for given Bitmap.
+	 * Applies lookup table into allocation in place. Table is uploaded only
+	 * if it differs from previous one.
 	 */
-	public void applyFilter(Bitmap bitmap, InstaCamData data) {
-		// Generate allocation from Bitmap.
-		Allocation allocation = Allocation.createFromBitmap(mRS, bitmap,
-				Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
-
-		// Apply filter if one selected.
-		switch (data.mFilter) {
-		case 1:
-			mFilterBlackAndWhite.forEach_root(allocation);
-			break;
-		case 2:
-			mFilterAnsel.forEach_root(allocation);
-			break;
-		case 3:
-			mFilterSepia.forEach_root(allocation);
-			break;
-		case 4:
-			mFilterRetro.forEach_root(allocation);
+	private void applyLut(InstaCamLut lut, Allocation allocation) {
+		if (mLut == null) {
+			InstaCamTrace.beginSection("InstaCamRS.script");
+			mLut = ScriptIntrinsic3DLUT.create(mRS, Element.U8_4(mRS));
+			Type.Builder builder = new Type.Builder(mRS, Element.U8_4(mRS));
+			builder.setX(InstaCamLut.SIZE).setY(InstaCamLut.SIZE)
+					.setZ(InstaCamLut.SIZE);
+			mLutAllocation = Allocation.createTyped(mRS, builder.create(),
+					Allocation.USAGE_SCRIPT);
+			mLut.setLUT(mLutAllocation);
+			InstaCamTrace.endSection();
+		}
+		if (lut != mLutUploaded) {
+			mLutAllocation.copyFrom(lut.getTable());
+			mLutUploaded = lut;
+		}
+		// Every pixel is read and written once, in place is safe.
+		mLut.forEach(allocation, allocation);
+	}
+
+	/**
+	 * Applies script of given predefined filter into allocation in place.
+	 */
+	private void applyScript(int filter, Allocation allocation) {
+		if (filter == InstaCamFilters.FILTER_DEFAULT) {
+			return;
+		}
+		InstaCamTrace.beginSection("InstaCamRS.script");
+		createScript(filter);
+		InstaCamTrace.endSection();
+
+		switch (filter) {
+		case InstaCamFilters.FILTER_CARTOON: {
+			Allocation allocationSrc = obtainCopy(allocation);
+			mFilterCartoon.invoke_setSource(allocationSrc);
+			mFilterCartoon.forEach_root(allocationSrc, allocation);
+			recycleAllocation(allocationSrc);
 			break;
-		case 5:
-			mFilterGeorgia.forEach_root(allocation);
+		}
+		case InstaCamFilters.FILTER_EDGES: {
+			Allocation allocationSrc = obtainCopy(allocation);
+			mFilterEdges.invoke_setSource(allocationSrc);
+			mFilterEdges.forEach_root(allocationSrc, allocation);
+			recycleAllocation(allocationSrc);
 			break;
-		case 6:
-			mFilterSahara.forEach_root(allocation);
+		}
+		}
+	}
+
+	/**
+	 * Creates script of given predefined filter unless it exists already.
+	 */
+	private void createScript(int filter) {
+		switch (filter) {
+		case InstaCamFilters.FILTER_DEFAULT:
+			if (mFilterDefault == null) {
+				mFilterDefault = new ScriptC_filter_default(mRS, mResources,
+						R.raw.filter_default);
+			}
 			break;
-		case 7:
-			mFilterPolaroid.forEach_root(allocation);
+		case InstaCamFilters.FILTER_CARTOON:
+			if (mFilterCartoon == null) {
+				mFilterCartoon = new ScriptC_filter_cartoon(mRS, mResources,
+						R.raw.filter_cartoon);
+			}
 			break;
-		case 8: {
-			Allocation allocationSrc = Allocation.createFromBitmap(mRS, bitmap,
-					Allocation.MipmapControl.MIPMAP_NONE,
-					Allocation.USAGE_SCRIPT);
-			mFilterCartoon.invoke_apply(allocationSrc, allocation);
-			allocationSrc.destroy();
+		case InstaCamFilters.FILTER_EDGES:
+			if (mFilterEdges == null) {
+				mFilterEdges = new ScriptC_filter_edges(mRS, mResources,
+						R.raw.filter_edges);
+			}
 			break;
 		}
-		case 9: {
-			Allocation allocationSrc = Allocation.createFromBitmap(mRS, bitmap,
-					Allocation.MipmapControl.MIPMAP_NONE,
-					Allocation.USAGE_SCRIPT);
-			mFilterEdges.invoke_apply(allocationSrc, allocation);
-			allocationSrc.destroy();
-			break;
+	}
+
+	/**
+	 * Getter for number of allocation requests served without creating a new
+	 * allocation.
+	 */
+	public int getPoolHits() {
+		return mPoolHits;
+	}
+
+	/**
+	 * Getter for number of allocation requests which required creating a new
+	 * allocation.
+	 */
+	public int getPoolMisses() {
+		return mPoolMisses;
+	}
+
+	/**
+	 * Returns allocation holding pixels of given Bitmap. If Bitmap backed
+	 * allocations are supported, allocation sharing memory with Bitmap is
+	 * returned and kept for following calls with the same Bitmap. Otherwise
+	 * Bitmap is copied into pooled allocation.
+	 */
+	private Allocation obtainBitmapAllocation(Bitmap bitmap) {
+		if (mSharedSupported) {
+			if (mSharedBitmap != null && mSharedBitmap.get() == bitmap) {
+				++mPoolHits;
+				// Bitmap has been written to since last use.
+				mSharedAllocation.syncAll(Allocation.USAGE_SHARED);
+				return mSharedAllocation;
+			}
+			releaseSharedAllocation();
+			try {
+				mSharedAllocation = Allocation.createFromBitmap(mRS, bitmap,
+						Allocation.MipmapControl.MIPMAP_NONE,
+						Allocation.USAGE_SHARED | Allocation.USAGE_SCRIPT);
+				mSharedBitmap = new WeakReference<Bitmap>(bitmap);
+				++mPoolMisses;
+				return mSharedAllocation;
+			} catch (RuntimeException ex) {
+				mSharedSupported = false;
+			}
 		}
+
+		Allocation allocation = obtainAllocation(bitmap.getWidth(),
+				bitmap.getHeight());
+		allocation.copyFrom(bitmap);
+		return allocation;
+	}
+
+	/**
+	 * Returns allocation of given size from pool or creates a new one.
+	 */
+	private Allocation obtainAllocation(int width, int height) {
+		Iterator<Allocation> iter = mPool.descendingIterator();
+		while (iter.hasNext()) {
+			Allocation allocation = iter.next();
+			Type type = allocation.getType();
+			if (type.getX() == width && type.getY() == height) {
+				iter.remove();
+				++mPoolHits;
+				return allocation;
+			}
 		}
+		++mPoolMisses;
+		Type type = Type.createXY(mRS, Element.RGBA_8888(mRS), width, height);
+		return Allocation.createTyped(mRS, type, Allocation.USAGE_SCRIPT);
+	}
 
-		// Apply brightness, contrast and saturation.
-		mFilterDefault.invoke_setBrightness(data.mBrightness);
-		mFilterDefault.invoke_setContrast(data.mContrast);
-		mFilterDefault.invoke_setSaturation(data.mSaturation);
-		mFilterDefault.invoke_setCornerRadius(data.mCornerRadius);
-		mFilterDefault.invoke_setSize(bitmap.getWidth(), bitmap.getHeight());
-		mFilterDefault.forEach_root(allocation);
+	/**
+	 * Returns pooled allocation holding a copy of given allocation.
+	 */
+	private Allocation obtainCopy(Allocation allocation) {
+		Type type = allocation.getType();
+		Allocation copy = obtainAllocation(type.getX(), type.getY());
+		copy.copy2DRangeFrom(0, 0, type.getX(), type.getY(), allocation, 0, 0);
+		return copy;
+	}
 
-		// Copy allocation values back to Bitmap.
-		allocation.copyTo(bitmap);
-		allocation.destroy();
+	/**
+	 * Returns allocation into pool, destroying least recently used ones once
+	 * pool is full.
+	 */
+	private void recycleAllocation(Allocation allocation) {
+		mPool.addLast(allocation);
+		while (mPool.size() > POOL_SIZE) {
+			mPool.removeFirst().destroy();
+		}
 	}
+
+	@Override
+	public void release() {
+		releaseSharedAllocation();
+		if (mLutAllocation != null) {
+			mLutAllocation.destroy();
+		}
+		for (Allocation allocation : mPool) {
+			allocation.destroy();
+		}
+		mPool.clear();
+		mRS.destroy();
+	}
+
+	/**
+	 * Destroys allocation sharing memory with Bitmap.
+	 */
+	private void releaseSharedAllocation() {
+		if (mSharedAllocation != null) {
+			mSharedAllocation.destroy();
+			mSharedAllocation = null;
+			mSharedBitmap = null;
+		}
+	}
+
 }
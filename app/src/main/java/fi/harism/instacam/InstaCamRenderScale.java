@@ -0,0 +1,107 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Adaptive render scale for offscreen preview texture. Renderer feeds GPU
+ * frame times of neighbourhood filters in and scale is lowered once average
+ * frame time exceeds frame budget. Scale is raised again only once frame
+ * time estimated for higher scale fits well within budget, which keeps
+ * scale from oscillating between two steps.
+ */
+public final class InstaCamRenderScale {
+
+	// Default frame budget, camera preview runs at 30 fps at most.
+	public static final long DEFAULT_BUDGET = 1000000000L / 30;
+	// Scale limits and step between them.
+	public static final float MAX_SCALE = 1f, MIN_SCALE = .5f, STEP = .125f;
+	// Number of samples averaged before scale is adjusted.
+	public static final int SAMPLES = 8;
+
+	// Fraction of budget average frame time may use before scaling down.
+	private static final float THRESHOLD_DOWN = .9f;
+	// Fraction of budget estimated frame time must fit in before scaling up.
+	private static final float THRESHOLD_UP = .6f;
+
+	// Frame budget in nanoseconds.
+	private long mBudget = DEFAULT_BUDGET;
+	// Current scale.
+	private float mScale = MAX_SCALE;
+	// Sum and number of samples since last adjustment.
+	private long mSampleSum;
+	private int mSampleCount;
+
+	/**
+	 * Adds GPU frame time sample in nanoseconds. Returns true if scale was
+	 * changed and offscreen texture should be reallocated.
+	 */
+	public boolean addSample(long frameTime) {
+		mSampleSum += frameTime;
+		if (++mSampleCount < SAMPLES) {
+			return false;
+		}
+		float average = (float) mSampleSum / mSampleCount;
+		mSampleSum = 0;
+		mSampleCount = 0;
+
+		if (average > mBudget * THRESHOLD_DOWN && mScale > MIN_SCALE) {
+			mScale = Math.max(MIN_SCALE, mScale - STEP);
+			return true;
+		}
+		if (mScale < MAX_SCALE) {
+			// Frame time grows roughly with pixel count.
+			float scale = Math.min(MAX_SCALE, mScale + STEP);
+			float ratio = scale / mScale;
+			if (average * ratio * ratio < mBudget * THRESHOLD_UP) {
+				mScale = scale;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns current scale, in range [MIN_SCALE, MAX_SCALE].
+	 */
+	public float getScale() {
+		return mScale;
+	}
+
+	/**
+	 * Returns given view dimension scaled with current scale.
+	 */
+	public int getScaled(int size) {
+		return Math.max(1, Math.round(size * mScale));
+	}
+
+	/**
+	 * Resets scale to maximum and drops collected samples.
+	 */
+	public void reset() {
+		mScale = MAX_SCALE;
+		mSampleSum = 0;
+		mSampleCount = 0;
+	}
+
+	/**
+	 * Setter for frame budget in nanoseconds.
+	 */
+	public void setBudget(long budget) {
+		mBudget = budget;
+	}
+
+}
@@ -17,18 +17,24 @@
 package fi.harism.instacam;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Handler;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 import android.widget.Toast;
 
 /**
@@ -37,35 +43,99 @@ import android.widget.Toast;
 public class InstaCamRenderer extends GLSurfaceView implements
 		GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvailableListener {
 
+	// Frame policies, either every camera frame is rendered catching up
+	// over following draws, or draw skips to latest camera frame.
+	public static final int FRAME_POLICY_CATCH_UP = 0,
+			FRAME_POLICY_LATEST = 1;
+
+	// Uniform and attribute slots shared by all shaders.
+	private static final int SLOT_POSITION = 0, SLOT_ORIENTATION_M = 1,
+			SLOT_TRANSFORM_M = 2, SLOT_LUT = 3, SLOT_PIXEL_SIZE = 4,
+			SLOT_BRIGHTNESS = 5, SLOT_CONTRAST = 6, SLOT_SATURATION = 7,
+			SLOT_CORNER_RADIUS = 8, SLOT_ASPECT_RATIO = 9,
+			SLOT_ASPECT_RATIO_PREVIEW = 10;
+	private static final String[] SLOT_NAMES = { "aPosition",
+			"uOrientationM", "uTransformM", "sLut", "uPixelSize",
+			"uBrightness", "uContrast", "uSaturation", "uCornerRadius",
+			"uAspectRatio", "uAspectRatioPreview" };
+	// Every Nth offscreen rendered frame is timed for render scale.
+	private static final int SCALE_SAMPLE_INTERVAL = 4;
+	// Filter fragment sources indexed by filter id.
+	static final int[] FILTER_RAW_IDS = { R.raw.filter_default_fs,
+			R.raw.filter_blackandwhite_fs, R.raw.filter_ansel_fs,
+			R.raw.filter_sepia_fs, R.raw.filter_retro_fs,
+			R.raw.filter_georgia_fs, R.raw.filter_sahara_fs,
+			R.raw.filter_polaroid_fs, R.raw.filter_cartoon_fs,
+			R.raw.filter_edges_fs };
+	// Aspect ratio uniform values for intermediate passes, no scaling.
+	private static final float[] ASPECT_RATIO_NONE = { 1f, 1f };
+
+	// Preview analyser, null while analysis is off.
+	private volatile InstaCamAnalyzer mAnalyzer;
+	// Read back buffer for analysed frame, flag for frame rendered but not
+	// read back yet and time of latest analysed frame.
+	private final ByteBuffer mAnalysisPixels = ByteBuffer
+			.allocateDirect(InstaCamAnalyzer.WIDTH * InstaCamAnalyzer.HEIGHT
+					* 4);
+	private boolean mAnalysisPending;
+	private long mAnalysisTime;
 	// View aspect ratio.
 	private final float mAspectRatio[] = new float[2];
+	// Downscaled copy of preview for analysis.
+	private final InstaCamFbo mFboAnalysis = new InstaCamFbo();
 	// External OES texture holder, camera preview that is.
 	private final InstaCamFbo mFboExternal = new InstaCamFbo();
-	// Offscreen texture holder for storing camera preview.
+	// Offscreen texture holder for storing camera preview, texture 0, and
+	// results of intermediate filter passes, textures 1 and 2.
 	private final InstaCamFbo mFboOffscreen = new InstaCamFbo();
+	// Flag for offscreen texture lagging behind latest preview frame.
+	private boolean mFboOffscreenStale;
+	// Preview frame latency statistics.
+	private final InstaCamFrameStats mFrameStats = new InstaCamFrameStats();
 	// Full view quad vertices.
 	private ByteBuffer mFullQuadVertices;
+	// Filter gallery and flag for showing it.
+	private final InstaCamGallery mGallery = new InstaCamGallery();
+	private volatile boolean mGalleryVisible;
 	// Renderer observer.
 	private Observer mObserver;
+	// Program binary cache.
+	private InstaCamProgramCache mProgramCache;
+	// Adaptive scale of offscreen texture and number of frames since last
+	// sample taken for it.
+	private final InstaCamRenderScale mRenderScale = new InstaCamRenderScale();
+	private int mRenderScaleFrames;
+	// Raw resource strings loaded so far.
+	private final SparseArray<String> mRawStrings = new SparseArray<String>();
 	// Shader for copying preview texture into offscreen one.
-	private final InstaCamShader mShaderCopyOes = new InstaCamShader();
-	// Filter shaders for rendering offscreen texture onto screen.
-	private final InstaCamShader mShaderFilterAnsel = new InstaCamShader();
-	private final InstaCamShader mShaderFilterBlackAndWhite = new InstaCamShader();
-	private final InstaCamShader mShaderFilterCartoon = new InstaCamShader();
-	private final InstaCamShader mShaderFilterDefault = new InstaCamShader();
-	private final InstaCamShader mShaderFilterEdges = new InstaCamShader();
-	private final InstaCamShader mShaderFilterGeorgia = new InstaCamShader();
-	private final InstaCamShader mShaderFilterPolaroid = new InstaCamShader();
-	private final InstaCamShader mShaderFilterRetro = new InstaCamShader();
-	private final InstaCamShader mShaderFilterSahara = new InstaCamShader();
-	private final InstaCamShader mShaderFilterSepia = new InstaCamShader();
+	private final InstaCamShader mShaderCopyOes = new InstaCamShader(
+			SLOT_NAMES);
+	// Composes filter pass shader sources.
+	private InstaCamShaderCompiler mShaderCompiler;
+	// Filter pass shaders created on demand, see getFilterShader().
+	private final HashMap<String, InstaCamShader> mShaderFilters = new HashMap<String, InstaCamShader>();
+	// Filter chain and adjustments passes were planned for.
+	private InstaCamFilterChain mPassChain;
+	private float mPassBrightness, mPassContrast, mPassSaturation;
+	// Filters composed into each filter pass.
+	private InstaCamShaderCompiler.Pass[] mPasses = {};
+	// Shader of each filter pass, and one sampling preview texture directly
+	// for first pass if it has no composed filters.
+	private InstaCamShader[] mPassShaders = {};
+	private InstaCamShader mPassShaderOes;
+	// Lookup table of each filter pass and tables stored in textures.
+	private InstaCamLut[] mLuts = {};
+	private InstaCamLut[] mLutsUploaded = {};
+	// Lookup table texture handles, one per filter pass.
+	private int[] mLutTextures = {};
 	// Shared data instance.
 	private InstaCamData mSharedData;
+	// Policy for camera frames arriving faster than they are rendered.
+	private volatile int mFramePolicy = FRAME_POLICY_LATEST;
+	// Number of camera frames arrived but not latched by updateTexImage.
+	private final AtomicInteger mFramesPending = new AtomicInteger();
 	// One and only SurfaceTexture instance.
-	private SurfaceTexture mSurfaceTexture;
-	// Flag for indicating SurfaceTexture has been updated.
-	private boolean mSurfaceTextureUpdate;
+	private volatile SurfaceTexture mSurfaceTexture;
 	// SurfaceTexture transform matrix.
 	private final float[] mTransformM = new float[16];
 	// View width and height.
@@ -96,6 +166,9 @@ public class InstaCamRenderer extends GLSurfaceView implements
 		mFullQuadVertices = ByteBuffer.allocateDirect(4 * 2);
 		mFullQuadVertices.put(FULL_QUAD_COORDS).position(0);
 
+		mProgramCache = new InstaCamProgramCache(new File(getContext()
+				.getCacheDir(), "programs"));
+
 		setPreserveEGLContextOnPause(true);
 		setEGLContextClientVersion(2);
 		setRenderer(this);
@@ -103,9 +176,124 @@ public class InstaCamRenderer extends GLSurfaceView implements
 	}
 
 	/**
-	 * Loads String from raw resources with given id.
+	 * Binds lookup table texture of given filter pass into texture unit 1.
+	 * Texture is generated and table uploaded on demand.
+	 */
+	private void bindLutTexture(int pass) {
+		if (pass >= mLutTextures.length) {
+			int[] textures = Arrays.copyOf(mLutTextures, pass + 1);
+			GLES20.glGenTextures(textures.length - mLutTextures.length,
+					textures, mLutTextures.length);
+			for (int i = mLutTextures.length; i < textures.length; ++i) {
+				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+						GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+			}
+			mLutTextures = textures;
+			mLutsUploaded = Arrays.copyOf(mLutsUploaded, textures.length);
+		}
+
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mLutTextures[pass]);
+		if (mLutsUploaded[pass] != mLuts[pass]) {
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
+					InstaCamLut.SIZE * InstaCamLut.SIZE, InstaCamLut.SIZE, 0,
+					GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+					mLuts[pass].getAtlas());
+			mLutsUploaded[pass] = mLuts[pass];
+		}
+	}
+
+	/**
+	 * Compiles shader program on first use.
+	 */
+	private void compileShader(InstaCamShader shader) {
+		try {
+			shader.compile(mProgramCache);
+		} catch (Exception ex) {
+			showError(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Returns filter pass shader composing given filters, empty array for
+	 * lookup table only pass. Shader samples either external preview texture
+	 * or offscreen one, and intermediate pass shaders leave out corners.
+	 */
+	private InstaCamShader getFilterShader(int[] filters, boolean external,
+			boolean intermediate) {
+		String key = InstaCamShaderCompiler.getKey(filters, external,
+				intermediate);
+		InstaCamShader shader = mShaderFilters.get(key);
+		if (shader != null) {
+			return shader;
+		}
+		shader = new InstaCamShader(SLOT_NAMES);
+		mShaderFilters.put(key, shader);
+		if (mShaderCompiler == null) {
+			return shader;
+		}
+
+		try {
+			String vertexSource = loadRawString(external ? R.raw.filter_oes_vs
+					: R.raw.filter_vs);
+			shader.setSource(vertexSource,
+					mShaderCompiler.compile(filters, external, intermediate));
+		} catch (Exception ex) {
+			showError(ex.getMessage());
+		}
+		return shader;
+	}
+
+	/**
+	 * Returns filter gallery tile at given view coordinates, or -1 if there
+	 * is none or gallery isn't visible. Tile index equals filter id.
+	 */
+	public int getGalleryTile(float x, float y) {
+		if (!mGalleryVisible) {
+			return -1;
+		}
+		return InstaCamGallery.getTile(x, y, getWidth(), getHeight());
+	}
+
+	/**
+	 * Getter for preview frame latency statistics.
+	 */
+	public InstaCamFrameStats getFrameStats() {
+		return mFrameStats;
+	}
+
+	/**
+	 * (Re)allocates offscreen textures if their size doesn't match current
+	 * render scale or there are less than given number of them.
+	 */
+	private void initOffscreen(int textureCount) {
+		int width = mRenderScale.getScaled(mWidth);
+		int height = mRenderScale.getScaled(mHeight);
+		if (mFboOffscreen.getWidth() != width
+				|| mFboOffscreen.getHeight() != height
+				|| mFboOffscreen.getTextureCount() < textureCount) {
+			mFboOffscreen.init(width, height, Math.max(textureCount,
+					mFboOffscreen.getTextureCount()), false);
+			mFboOffscreenStale = true;
+		}
+	}
+
+	/**
+	 * Loads String from raw resources with given id. Strings are kept in
+	 * memory for following calls.
 	 */
 	private String loadRawString(int rawId) throws Exception {
+		String str = mRawStrings.get(rawId);
+		if (str != null) {
+			return str;
+		}
 		InputStream is = getContext().getResources().openRawResource(rawId);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		byte[] buf = new byte[1024];
@@ -113,39 +301,81 @@ public class InstaCamRenderer extends GLSurfaceView implements
 		while ((len = is.read(buf)) != -1) {
 			baos.write(buf, 0, len);
 		}
-		return baos.toString();
+		is.close();
+		str = baos.toString();
+		mRawStrings.put(rawId, str);
+		return str;
 	}
 
 	@Override
-	public synchronized void onDrawFrame(GL10 unused) {
+	public void onDrawFrame(GL10 unused) {
+		long frameStart = System.nanoTime();
+		boolean offscreen = false;
 
 		// Clear view.
 		GLES20.glClearColor(.5f, .5f, .5f, 1f);
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
+		// Analysed frame rendered during previous draw is read back now, GPU
+		// has most likely finished with it already.
+		InstaCamAnalyzer analyzer = mAnalyzer;
+		if (mAnalysisPending) {
+			mAnalysisPending = false;
+			if (analyzer != null) {
+				mFboAnalysis.bind();
+				GLES20.glReadPixels(0, 0, InstaCamAnalyzer.WIDTH,
+						InstaCamAnalyzer.HEIGHT, GLES20.GL_RGBA,
+						GLES20.GL_UNSIGNED_BYTE, mAnalysisPixels);
+				analyzer.offer(mAnalysisPixels);
+			}
+		}
+
 		// If we have new preview texture.
-		if (mSurfaceTextureUpdate) {
-			// Update surface texture.
-			mSurfaceTexture.updateTexImage();
-			// Update texture transform matrix.
-			mSurfaceTexture.getTransformMatrix(mTransformM);
-			mSurfaceTextureUpdate = false;
+		boolean newFrame = mFramesPending.get() > 0;
+		if (newFrame) {
+			updateTexImage();
+		}
+
+		// One snapshot of parameters is used for whole frame.
+		InstaCamParams params = mSharedData.getParams();
+		updatePasses(params);
+		int passCount = mPasses.length;
+		if (passCount > 1) {
+			initOffscreen(1 + Math.min(2, passCount - 1));
+		}
 
+		// Gallery is updated at a reduced rate while preview doesn't fit its
+		// frame budget.
+		boolean gallery = mGalleryVisible
+				&& mGallery.nextFrame(mRenderScale
+						.getScale() < InstaCamRenderScale.MAX_SCALE);
+
+		// Point-wise filters sample preview texture directly, only
+		// neighbourhood filters and gallery need it copied into offscreen
+		// texture first.
+		boolean oes = false;
+		if (mPassShaderOes != null) {
+			try {
+				mPassShaderOes.compile(mProgramCache);
+			} catch (Exception ex) {
+				// Fall back to copy pass silently.
+			}
+			oes = mPassShaderOes.hasProgram();
+		}
+
+		if ((!oes || gallery) && mFboOffscreenStale) {
 			// Bind offscreen texture into use.
 			mFboOffscreen.bind();
 			mFboOffscreen.bindTexture(0);
 
 			// Take copy shader into use.
+			compileShader(mShaderCopyOes);
 			mShaderCopyOes.useProgram();
 
-			// Uniform variables.
-			int uOrientationM = mShaderCopyOes.getHandle("uOrientationM");
-			int uTransformM = mShaderCopyOes.getHandle("uTransformM");
-
 			// We're about to transform external texture here already.
-			GLES20.glUniformMatrix4fv(uOrientationM, 1, false,
-					mSharedData.mOrientationM, 0);
-			GLES20.glUniformMatrix4fv(uTransformM, 1, false, mTransformM, 0);
+			mShaderCopyOes.setUniformMatrix4fv(SLOT_ORIENTATION_M,
+					params.getOrientationM());
+			mShaderCopyOes.setUniformMatrix4fv(SLOT_TRANSFORM_M, mTransformM);
 
 			// We're using external OES texture as source.
 			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -153,92 +383,126 @@ public class InstaCamRenderer extends GLSurfaceView implements
 					mFboExternal.getTexture(0));
 
 			// Trigger actual rendering.
-			renderQuad(mShaderCopyOes.getHandle("aPosition"));
+			renderQuad(mShaderCopyOes.getSlot(SLOT_POSITION));
+			mFboOffscreenStale = false;
+			offscreen = true;
+			markStage(InstaCamFrameStats.METRIC_COPY);
 		}
 
-		// Bind screen buffer into use.
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-		GLES20.glViewport(0, 0, mWidth, mHeight);
-
-		InstaCamShader shader = mShaderFilterDefault;
-
-		switch (mSharedData.mFilter) {
-		case 1:
-			shader = mShaderFilterBlackAndWhite;
-			break;
-		case 2:
-			shader = mShaderFilterAnsel;
-			break;
-		case 3:
-			shader = mShaderFilterSepia;
-			break;
-		case 4:
-			shader = mShaderFilterRetro;
-			break;
-		case 5:
-			shader = mShaderFilterGeorgia;
-			break;
-		case 6:
-			shader = mShaderFilterSahara;
-			break;
-		case 7:
-			shader = mShaderFilterPolaroid;
-			break;
-		case 8: {
-			shader = mShaderFilterCartoon;
-			shader.useProgram();
-			int uPixelSize = shader.getHandle("uPixelSize");
-			GLES20.glUniform2f(uPixelSize, 1.0f / mWidth, 1.0f / mHeight);
-			break;
-		}
-		case 9: {
-			shader = mShaderFilterEdges;
-			shader.useProgram();
-			int uPixelSize = shader.getHandle("uPixelSize");
-			GLES20.glUniform2f(uPixelSize, 1.0f / mWidth, 1.0f / mHeight);
-			break;
-		}
+		// Render filter gallery tiles from offscreen texture.
+		if (gallery) {
+			try {
+				mGallery.render(mFboOffscreen.getTexture(0),
+						mFboOffscreen.getWidth(), mFboOffscreen.getHeight(),
+						params, mProgramCache);
+			} catch (Exception ex) {
+				showError(ex.getMessage());
+			}
 		}
 
-		// Take filter shader into use.
-		shader.useProgram();
-
-		// Uniform variables.
-		int uBrightness = shader.getHandle("uBrightness");
-		int uContrast = shader.getHandle("uContrast");
-		int uSaturation = shader.getHandle("uSaturation");
-		int uCornerRadius = shader.getHandle("uCornerRadius");
+		// Downscale new preview frame for analysis every now and then.
+		if (analyzer != null && newFrame && analyzer.isIdle()
+				&& frameStart - mAnalysisTime >= InstaCamAnalyzer.INTERVAL
+						* 1000000) {
+			renderAnalysis(params);
+			mAnalysisTime = frameStart;
+		}
 
-		int uAspectRatio = shader.getHandle("uAspectRatio");
-		int uAspectRatioPreview = shader.getHandle("uAspectRatioPreview");
+		// Run filter passes, intermediate ones ping-pong between offscreen
+		// textures 1 and 2 at render scale and last one, lookup table only
+		// if there are neighbourhood filters, renders onto screen.
+		int texture = oes ? mFboExternal.getTexture(0) : mFboOffscreen
+				.getTexture(0);
+		for (int pass = 0; pass < passCount; ++pass) {
+			boolean external = oes && pass == 0;
+			boolean last = pass == passCount - 1;
+			InstaCamShader shader = external ? mPassShaderOes
+					: mPassShaders[pass];
+			compileShader(shader);
+			shader.useProgram();
 
-		// Store uniform variables into use.
-		GLES20.glUniform1f(uBrightness, mSharedData.mBrightness);
-		GLES20.glUniform1f(uContrast, mSharedData.mContrast);
-		GLES20.glUniform1f(uSaturation, mSharedData.mSaturation);
-		GLES20.glUniform1f(uCornerRadius, mSharedData.mCornerRadius);
+			int target = 1 + pass % 2;
+			if (last) {
+				// Bind screen buffer into use.
+				GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+				GLES20.glViewport(0, 0, mWidth, mHeight);
+				shader.setUniform1f(SLOT_CORNER_RADIUS,
+						params.getCornerRadius());
+				shader.setUniform2fv(SLOT_ASPECT_RATIO, mAspectRatio);
+				shader.setUniform2fv(SLOT_ASPECT_RATIO_PREVIEW,
+						params.getAspectRatioPreview());
+			} else {
+				mFboOffscreen.bind();
+				mFboOffscreen.bindTexture(target);
+				shader.setUniform2fv(SLOT_ASPECT_RATIO, ASPECT_RATIO_NONE);
+				shader.setUniform2fv(SLOT_ASPECT_RATIO_PREVIEW,
+						ASPECT_RATIO_NONE);
+				offscreen = true;
+			}
 
-		GLES20.glUniform2fv(uAspectRatio, 1, mAspectRatio, 0);
-		GLES20.glUniform2fv(uAspectRatioPreview, 1,
-				mSharedData.mAspectRatioPreview, 0);
+			bindLutTexture(pass);
+			shader.setUniform1i(SLOT_LUT, 1);
+			// Offscreen texture may be smaller than view, last pass upsamples
+			// it by texture filtering.
+			shader.setUniform2f(SLOT_PIXEL_SIZE,
+					1.0f / mFboOffscreen.getWidth(),
+					1.0f / mFboOffscreen.getHeight());
 
-		// Use offscreen texture as source.
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboOffscreen.getTexture(0));
+			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+			if (external) {
+				// Use external OES texture as source, transforming it in
+				// vertex shader.
+				shader.setUniformMatrix4fv(SLOT_ORIENTATION_M,
+						params.getOrientationM());
+				shader.setUniformMatrix4fv(SLOT_TRANSFORM_M, mTransformM);
+				GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+						texture);
+			} else {
+				GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+			}
 
-		// Trigger actual rendering.
-		renderQuad(mShaderCopyOes.getHandle("aPosition"));
+			// Trigger actual rendering, next pass reads what was rendered.
+			renderQuad(shader.getSlot(SLOT_POSITION));
+			if (!last) {
+				texture = mFboOffscreen.getTexture(target);
+			}
+		}
+		// Draw gallery over preview.
+		if (mGalleryVisible) {
+			try {
+				mGallery.draw(mWidth, mHeight, mProgramCache);
+			} catch (Exception ex) {
+				showError(ex.getMessage());
+			}
+		}
+		markStage(InstaCamFrameStats.METRIC_FILTER);
+
+		// Time GPU work of occasional frame for adjusting render scale.
+		if (offscreen && ++mRenderScaleFrames >= SCALE_SAMPLE_INTERVAL) {
+			mRenderScaleFrames = 0;
+			GLES20.glFinish();
+			if (mRenderScale.addSample(System.nanoTime() - frameStart)) {
+				initOffscreen(mFboOffscreen.getTextureCount());
+			}
+		}
+		mFrameStats.endFrame();
 	}
 
 	@Override
-	public synchronized void onFrameAvailable(SurfaceTexture surfaceTexture) {
-		// Simply mark a flag for indicating new frame is available.
-		mSurfaceTextureUpdate = true;
+	public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+		// Frames of replaced SurfaceTexture are ignored.
+		if (surfaceTexture != mSurfaceTexture) {
+			return;
+		}
+		// Simply count frame, never blocking camera thread. Arrival is
+		// recorded before frame can be latched.
+		mFrameStats.onFrameAvailable();
+		mFramesPending.incrementAndGet();
 		requestRender();
 	}
 
 	@Override
-	public synchronized void onSurfaceChanged(GL10 unused, int width, int height) {
+	public void onSurfaceChanged(GL10 unused, int width, int height) {
 
 		// Store width and height.
 		mWidth = width;
@@ -253,19 +517,23 @@ public class InstaCamRenderer extends GLSurfaceView implements
 				|| mFboExternal.getHeight() != mHeight) {
 			mFboExternal.init(mWidth, mHeight, 1, true);
 		}
-		if (mFboOffscreen.getWidth() != mWidth
-				|| mFboOffscreen.getHeight() != mHeight) {
-			mFboOffscreen.init(mWidth, mHeight, 1, false);
-		}
+		mRenderScale.reset();
+		initOffscreen(1);
 
 		// Allocate new SurfaceTexture.
 		SurfaceTexture oldSurfaceTexture = mSurfaceTexture;
-		mSurfaceTexture = new SurfaceTexture(mFboExternal.getTexture(0));
-		mSurfaceTexture.setOnFrameAvailableListener(this);
+		SurfaceTexture surfaceTexture = new SurfaceTexture(
+				mFboExternal.getTexture(0));
+		mFramesPending.set(0);
+		mFrameStats.discardPending();
+		mSurfaceTexture = surfaceTexture;
+		surfaceTexture.setOnFrameAvailableListener(this);
+		// Camera may still be delivering frames into old SurfaceTexture, it's
+		// released by observer once new one is set to Camera.
 		if (mObserver != null) {
-			mObserver.onSurfaceTextureCreated(mSurfaceTexture);
-		}
-		if (oldSurfaceTexture != null) {
+			mObserver.onSurfaceTextureCreated(surfaceTexture,
+					oldSurfaceTexture, mWidth, mHeight);
+		} else if (oldSurfaceTexture != null) {
 			oldSurfaceTexture.release();
 		}
 
@@ -273,47 +541,78 @@ public class InstaCamRenderer extends GLSurfaceView implements
 	}
 
 	@Override
-	public synchronized void onSurfaceCreated(GL10 unused, EGLConfig config) {
+	public void onSurfaceCreated(GL10 unused, EGLConfig config) {
 
-		//
-		// Try to load shaders.
-		//
+		// Programs are compiled on first use, possibly from binaries cached
+		// by an earlier run.
+		mProgramCache.init();
 
 		try {
 			String vertexSource = loadRawString(R.raw.copy_oes_vs);
 			String fragmentSource = loadRawString(R.raw.copy_oes_fs);
-			mShaderCopyOes.setProgram(vertexSource, fragmentSource);
+			mShaderCopyOes.setSource(vertexSource, fragmentSource);
+
+			String[] filterSources = new String[FILTER_RAW_IDS.length];
+			for (int i = 0; i < filterSources.length; ++i) {
+				filterSources[i] = loadRawString(FILTER_RAW_IDS[i]);
+			}
+			mShaderCompiler = new InstaCamShaderCompiler(
+					loadRawString(R.raw.filter_lut_fs),
+					loadRawString(R.raw.filter_utils_fs), filterSources);
+			mGallery.setSource(mShaderCompiler,
+					loadRawString(R.raw.gallery_vs),
+					loadRawString(R.raw.gallery_fs),
+					loadRawString(R.raw.gallery_copy_fs));
 		} catch (Exception ex) {
 			showError(ex.getMessage());
 		}
 
-		final int[] FILTER_IDS = { R.raw.filter_ansel_fs,
-				R.raw.filter_blackandwhite_fs, R.raw.filter_cartoon_fs,
-				R.raw.filter_default_fs, R.raw.filter_edges_fs,
-				R.raw.filter_georgia_fs, R.raw.filter_polaroid_fs,
-				R.raw.filter_retro_fs, R.raw.filter_sahara_fs,
-				R.raw.filter_sepia_fs };
-		final InstaCamShader[] SHADERS = { mShaderFilterAnsel,
-				mShaderFilterBlackAndWhite, mShaderFilterCartoon,
-				mShaderFilterDefault, mShaderFilterEdges, mShaderFilterGeorgia,
-				mShaderFilterPolaroid, mShaderFilterRetro, mShaderFilterSahara,
-				mShaderFilterSepia };
-
-		for (int i = 0; i < FILTER_IDS.length; ++i) {
-			try {
-				String vertexSource = loadRawString(R.raw.filter_vs);
-				String fragmentSource = loadRawString(R.raw.filter_fs);
-				fragmentSource = fragmentSource
-						.replace("____FUNCTION_FILTER____",
-								loadRawString(FILTER_IDS[i]));
-				SHADERS[i].setProgram(vertexSource, fragmentSource);
-			} catch (Exception ex) {
-				showError(ex.getMessage());
-			}
-		}
+		// Filter shaders and lookup table textures are created on demand.
+		mShaderFilters.clear();
+		mPassChain = null;
+		mLutTextures = new int[0];
+		mLutsUploaded = new InstaCamLut[0];
 
+		mFboAnalysis.reset();
 		mFboExternal.reset();
 		mFboOffscreen.reset();
+		mAnalysisPending = false;
+		mFboOffscreenStale = true;
+	}
+
+	/**
+	 * Marks end of rendering stage, waiting for GPU to finish it first if
+	 * requested.
+	 */
+	private void markStage(int metric) {
+		if (mFrameStats.isSynchronous()) {
+			GLES20.glFinish();
+		}
+		mFrameStats.markStage(metric);
+	}
+
+	/**
+	 * Renders preview texture into small analysis texture, read back on next
+	 * draw.
+	 */
+	private void renderAnalysis(InstaCamParams params) {
+		if (mFboAnalysis.getTextureCount() == 0) {
+			mFboAnalysis.init(InstaCamAnalyzer.WIDTH, InstaCamAnalyzer.HEIGHT,
+					1, false);
+		}
+		mFboAnalysis.bind();
+		mFboAnalysis.bindTexture(0);
+
+		compileShader(mShaderCopyOes);
+		mShaderCopyOes.useProgram();
+		mShaderCopyOes.setUniformMatrix4fv(SLOT_ORIENTATION_M,
+				params.getOrientationM());
+		mShaderCopyOes.setUniformMatrix4fv(SLOT_TRANSFORM_M, mTransformM);
+
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboExternal.getTexture(0));
+		renderQuad(mShaderCopyOes.getSlot(SLOT_POSITION));
+		mAnalysisPending = true;
 	}
 
 	/**
@@ -326,6 +625,28 @@ public class InstaCamRenderer extends GLSurfaceView implements
 		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 	}
 
+	/**
+	 * Setter for preview analyser, null turns analysis off.
+	 */
+	public void setAnalyzer(InstaCamAnalyzer analyzer) {
+		mAnalyzer = analyzer;
+	}
+
+	/**
+	 * Shows or hides filter gallery over preview.
+	 */
+	public void setGalleryVisible(boolean visible) {
+		mGalleryVisible = visible;
+		requestRender();
+	}
+
+	/**
+	 * Setter for frame policy, FRAME_POLICY_CATCH_UP or FRAME_POLICY_LATEST.
+	 */
+	public void setFramePolicy(int framePolicy) {
+		mFramePolicy = framePolicy;
+	}
+
 	/**
 	 * Setter for observer.
 	 */
@@ -355,11 +676,81 @@ public class InstaCamRenderer extends GLSurfaceView implements
 		});
 	}
 
+	/**
+	 * Latches pending camera frames according to frame policy. Catching up
+	 * latches one frame and requests another draw for the rest, skipping to
+	 * latest latches all of them and renders last one only.
+	 */
+	private void updateTexImage() {
+		int latched = 1;
+		if (mFramePolicy == FRAME_POLICY_CATCH_UP) {
+			mSurfaceTexture.updateTexImage();
+			if (mFramesPending.decrementAndGet() > 0) {
+				requestRender();
+			}
+		} else {
+			latched = mFramesPending.getAndSet(0);
+			for (int i = 0; i < latched; ++i) {
+				mSurfaceTexture.updateTexImage();
+			}
+		}
+		// Update texture transform matrix.
+		mSurfaceTexture.getTransformMatrix(mTransformM);
+		mFboOffscreenStale = true;
+		mFrameStats.onTexImageUpdated(latched - 1);
+	}
+
+	/**
+	 * Plans filter passes and obtains their shaders and lookup tables if
+	 * filter chain or adjustments have changed. Chain is compared by
+	 * reference, parameters replace it on every change.
+	 */
+	private void updatePasses(InstaCamParams params) {
+		InstaCamFilterChain chain = params.getFilterChain();
+		if (chain == mPassChain && params.getBrightness() == mPassBrightness
+				&& params.getContrast() == mPassContrast
+				&& params.getSaturation() == mPassSaturation) {
+			return;
+		}
+		mPassChain = chain;
+		mPassBrightness = params.getBrightness();
+		mPassContrast = params.getContrast();
+		mPassSaturation = params.getSaturation();
+
+		// Neighbourhood filters always render into offscreen texture, which
+		// is scaled down with render scale, and last pass upsamples it.
+		mPasses = InstaCamShaderCompiler.splitLast(InstaCamShaderCompiler
+				.plan(chain, InstaCamShaderCompiler.MAX_TAPS));
+		mPassShaders = new InstaCamShader[mPasses.length];
+		mLuts = new InstaCamLut[mPasses.length];
+		for (int pass = 0; pass < mPasses.length; ++pass) {
+			boolean last = pass == mPasses.length - 1;
+			mPassShaders[pass] = getFilterShader(mPasses[pass].getFilters(),
+					false, !last);
+			// Adjustments are baked into table of last pass only.
+			mLuts[pass] = last ? InstaCamLut.obtain(
+					mPasses[pass].getPointwise(), mPassBrightness,
+					mPassContrast, mPassSaturation) : InstaCamLut.obtain(
+					mPasses[pass].getPointwise(), 0f, 0f, 0f);
+		}
+		mPassShaderOes = null;
+		if (mPasses[0].getFilters().length == 0) {
+			mPassShaderOes = getFilterShader(mPasses[0].getFilters(), true,
+					mPasses.length > 1);
+		}
+	}
+
 	/**
 	 * Observer class for renderer.
 	 */
 	public interface Observer {
-		public void onSurfaceTextureCreated(SurfaceTexture surfaceTexture);
+		/**
+		 * Called once new SurfaceTexture has been created. Previous
+		 * SurfaceTexture, if any, is to be released by observer once it's no
+		 * longer used as preview texture.
+		 */
+		public void onSurfaceTextureCreated(SurfaceTexture surfaceTexture,
+				SurfaceTexture oldSurfaceTexture, int width, int height);
 	}
 
 }
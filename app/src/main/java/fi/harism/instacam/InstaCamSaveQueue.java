@@ -0,0 +1,527 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.provider.MediaStore.MediaColumns;
+
+/**
+ * Bounded queue for saving pictures. Saving is split into decode, filter,
+ * encode and publish stages, each running on a worker thread of its own and
+ * handing pictures over to the next stage through single slot queues. A full
+ * downstream stage blocks the previous one, and once queue capacity is reached
+ * new pictures are rejected instead of piling up in memory.
+ */
+public class InstaCamSaveQueue {
+
+	// Maximum number of pictures in flight.
+	public static final int CAPACITY = 3;
+
+	// Size of file output buffer.
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Memory shared by full size Bitmaps in use and idle ones in bytes.
+	private static final long BITMAP_MEMORY = Runtime.getRuntime()
+			.maxMemory() / 4;
+	// Maximum number of full size Bitmaps alive at once.
+	private static final int MAX_BITMAPS = 2;
+	// Size of temporary decoding storage.
+	private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+	// Marker job for shutting down stages.
+	private static final Job STOP = new Job(null, 0, 0, null);
+
+	// Streaming saver for large pictures, used by encode stage.
+	private final InstaCamBandSaver mBandSaver;
+	// Idle full size Bitmaps for decoding into. Bitmaps in use are counted
+	// against the same budget.
+	private final InstaCamBitmapPool mBitmapPool = new InstaCamBitmapPool(
+			BITMAP_MEMORY);
+	// Permits for full size Bitmaps.
+	private final Semaphore mBitmaps = new Semaphore(MAX_BITMAPS);
+	// Total number of bytes written into picture files.
+	private final AtomicLong mBytesWritten = new AtomicLong();
+	// Permits for pictures in flight.
+	private final Semaphore mCapacity = new Semaphore(CAPACITY);
+	// Context for accessing ContentResolver.
+	private final Context mContext;
+	// Filter engine, used by filter stage only.
+	private final InstaCamFilterEngine mFilterEngine;
+	// Handler for posting observer calls to main thread.
+	private final Handler mHandler;
+	// Observer for completed saves.
+	private final Observer mObserver;
+	// Input queue of first stage.
+	private final BlockingQueue<Job> mQueue = new ArrayBlockingQueue<Job>(
+			CAPACITY + 1);
+	// Flag for syncing picture files to storage before publishing them.
+	private volatile boolean mSync;
+
+	/**
+	 * Constructor takes ownership of filter engine and band saver, they are
+	 * released once all queued pictures have been saved after release().
+	 */
+	public InstaCamSaveQueue(Context context, InstaCamFilterEngine engine,
+			InstaCamBandSaver bandSaver, Observer observer) {
+		mContext = context.getApplicationContext();
+		mFilterEngine = engine;
+		mBandSaver = bandSaver;
+		mObserver = observer;
+		mHandler = new Handler(context.getMainLooper());
+
+		BlockingQueue<Job> filterQueue = new ArrayBlockingQueue<Job>(1);
+		BlockingQueue<Job> encodeQueue = new ArrayBlockingQueue<Job>(1);
+		BlockingQueue<Job> publishQueue = new ArrayBlockingQueue<Job>(1);
+		new DecodeStage(mQueue, filterQueue).start();
+		new FilterStage(filterQueue, encodeQueue).start();
+		new EncodeStage(encodeQueue, publishQueue).start();
+		new PublishStage(publishQueue).start();
+	}
+
+	/**
+	 * Creates picture file named after capture time. Pictures taken within
+	 * the same second get a running suffix.
+	 */
+	private static File createFile(Calendar calendar) throws IOException {
+		String pictureName = String.format(Locale.getDefault(),
+				"InstaCam_%d%02d%02d_%02d%02d%02d",
+				calendar.get(Calendar.YEAR),
+				calendar.get(Calendar.MONTH) + (1 - Calendar.JANUARY),
+				calendar.get(Calendar.DATE),
+				calendar.get(Calendar.HOUR_OF_DAY),
+				calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
+
+		// Get "Pictures" -directory path.
+		File filePath = Environment
+				.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+		// Add "/InstaCam/" -directory to it.
+		filePath = new File(filePath, "/InstaCam/");
+		// Make all dirs till ".../Pictures/InstaCam/".
+		filePath.mkdirs();
+		// Generate final file path ".../InstaCam/picname.jpeg".
+		File file = new File(filePath, pictureName + ".jpeg");
+		for (int i = 1; !file.createNewFile(); ++i) {
+			file = new File(filePath, pictureName + "_" + i + ".jpeg");
+		}
+		return file;
+	}
+
+	/**
+	 * Returns total number of bytes written into picture files.
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten.get();
+	}
+
+	/**
+	 * Returns error message for given exception.
+	 */
+	private static String getMessage(Throwable ex) {
+		return ex.getMessage() != null ? ex.getMessage() : ex.toString();
+	}
+
+	/**
+	 * Returns number of pictures currently in flight.
+	 */
+	public int getPending() {
+		return CAPACITY - mCapacity.availablePermits();
+	}
+
+	/**
+	 * Adds picture into queue, to be filtered with given parameter snapshot.
+	 * Returns false if queue is full.
+	 */
+	public boolean offer(byte[] jpeg, long time, int orientation,
+			InstaCamParams params) {
+		if (!mCapacity.tryAcquire()) {
+			return false;
+		}
+		mQueue.add(new Job(jpeg, time, orientation, params));
+		return true;
+	}
+
+	/**
+	 * Frees picture data and Bitmap permit held by job. Bitmap is returned
+	 * into pool for decoding following pictures.
+	 */
+	private void recycle(Job job) {
+		if (job.mBitmap != null) {
+			mBitmapPool.release(job.mBitmap);
+			job.mBitmap = null;
+			mBitmaps.release();
+		}
+		job.recycle();
+	}
+
+	/**
+	 * Stops workers once already queued pictures have been saved.
+	 */
+	public void release() {
+		mQueue.add(STOP);
+	}
+
+	/**
+	 * Recycles idle Bitmaps kept for decoding, to be called when memory is
+	 * low.
+	 */
+	public void trimMemory() {
+		mBitmapPool.trim();
+	}
+
+	/**
+	 * Sets whether picture files are synced to storage before they are
+	 * published. Syncing makes saved pictures survive power loss at the cost
+	 * of blocking encode stage until storage has caught up. Disabled by
+	 * default.
+	 */
+	public void setSync(boolean sync) {
+		mSync = sync;
+	}
+
+	/**
+	 * Picture decoding stage. Pictures too large to be held in memory as a
+	 * whole are left for streaming save in encode stage.
+	 */
+	private final class DecodeStage extends Stage {
+
+		// Temporary storage for decoding, reused for every picture.
+		private final byte[] mTempStorage = new byte[TEMP_STORAGE_SIZE];
+
+		private DecodeStage(BlockingQueue<Job> in, BlockingQueue<Job> out) {
+			super("InstaCamSave-decode", in, out);
+		}
+
+		@Override
+		protected void process(Job job) throws Exception {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			options.inTempStorage = mTempStorage;
+			BitmapFactory.decodeByteArray(job.mJpeg, 0, job.mJpeg.length,
+					options);
+			// MAX_BITMAPS pictures have to fit in shared Bitmap memory.
+			long bitmapBytes = (long) options.outWidth * options.outHeight * 4;
+			if (bitmapBytes > BITMAP_MEMORY / MAX_BITMAPS) {
+				return;
+			}
+
+			// Blocks until encode stage has released earlier Bitmaps.
+			mBitmaps.acquire();
+			options.inJustDecodeBounds = false;
+			options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			// Count decoded Bitmap in pool memory and decode into pooled
+			// Bitmap of same size if there is one. Before API level 11
+			// decoded Bitmaps are immutable and pool is always empty.
+			Bitmap pooled = mBitmapPool.obtain(options.outWidth,
+					options.outHeight, options.inPreferredConfig);
+			if (Build.VERSION.SDK_INT >= 11) {
+				options.inMutable = true;
+				options.inBitmap = pooled;
+			}
+			try {
+				try {
+					job.mBitmap = BitmapFactory.decodeByteArray(job.mJpeg, 0,
+							job.mJpeg.length, options);
+				} catch (IllegalArgumentException ex) {
+					if (options.inBitmap == null) {
+						throw ex;
+					}
+					// Pooled Bitmap was rejected, decode into a new one.
+					options.inBitmap.recycle();
+					options.inBitmap = null;
+					job.mBitmap = BitmapFactory.decodeByteArray(job.mJpeg, 0,
+							job.mJpeg.length, options);
+				}
+			} finally {
+				// Permit and pool memory are held by decoded Bitmap only,
+				// they're released if decoding failed or threw.
+				if (job.mBitmap == null) {
+					if (pooled != null) {
+						pooled.recycle();
+					}
+					mBitmapPool.cancel(options.outWidth, options.outHeight,
+							options.inPreferredConfig);
+					mBitmaps.release();
+				}
+			}
+			if (job.mBitmap == null) {
+				throw new IOException("Decoding picture failed.");
+			}
+			job.mJpeg = null;
+		}
+	}
+
+	/**
+	 * Picture encoding stage. Writes picture file including EXIF segment.
+	 */
+	private final class EncodeStage extends Stage {
+
+		private EncodeStage(BlockingQueue<Job> in, BlockingQueue<Job> out) {
+			super("InstaCamSave-encode", in, out);
+		}
+
+		@Override
+		protected void process(Job job) throws Exception {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(job.mTime);
+			job.mFile = createFile(calendar);
+
+			// Orientation and capture time are written inline with picture
+			// data, file is written once from start to end.
+			FileOutputStream fos = new FileOutputStream(job.mFile);
+			InstaCamJpegOutputStream out = new InstaCamJpegOutputStream(
+					new BufferedOutputStream(fos, BUFFER_SIZE),
+					InstaCamExif.createApp1(job.mOrientation, job.mTime));
+			try {
+				if (job.mBitmap != null) {
+					job.mBitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+				} else {
+					mBandSaver.save(job.mJpeg, out, job.mParams);
+				}
+				out.flush();
+				if (mSync) {
+					fos.getFD().sync();
+				}
+			} finally {
+				out.close();
+				recycle(job);
+			}
+
+			mBytesWritten.addAndGet(out.getCount());
+		}
+
+		@Override
+		protected void onStop() {
+			mBandSaver.release();
+		}
+	}
+
+	/**
+	 * Filtering stage.
+	 */
+	private final class FilterStage extends Stage {
+
+		private FilterStage(BlockingQueue<Job> in, BlockingQueue<Job> out) {
+			super("InstaCamSave-filter", in, out);
+		}
+
+		@Override
+		protected void process(Job job) {
+			// Streamed pictures are filtered while encoding.
+			if (job.mBitmap != null) {
+				mFilterEngine.applyFilter(job.mBitmap, job.mParams);
+			}
+		}
+
+		@Override
+		protected void onStop() {
+			mFilterEngine.release();
+		}
+	}
+
+	/**
+	 * Picture data and settings it was taken with.
+	 */
+	private static final class Job {
+		// Decoded picture unless streamed.
+		private Bitmap mBitmap;
+		// Filter parameters picture is saved with.
+		private final InstaCamParams mParams;
+		// Error message if saving failed.
+		private String mError;
+		// Saved picture file.
+		private File mFile;
+		// Picture data (jpeg).
+		private byte[] mJpeg;
+		// Picture orientation degree.
+		private final int mOrientation;
+		// Picture capture time.
+		private final long mTime;
+
+		private Job(byte[] jpeg, long time, int orientation,
+				InstaCamParams params) {
+			mJpeg = jpeg;
+			mTime = time;
+			mOrientation = orientation;
+			mParams = params;
+		}
+
+		/**
+		 * Frees picture data.
+		 */
+		private void recycle() {
+			mJpeg = null;
+			if (mBitmap != null) {
+				mBitmap.recycle();
+				mBitmap = null;
+			}
+		}
+	}
+
+	/**
+	 * Interface for observing saved pictures, called on main thread.
+	 */
+	public interface Observer {
+
+		/**
+		 * Called once picture has been saved, or saving it failed in which
+		 * case file is null and error is set.
+		 */
+		public void onPictureSaved(File file, String error);
+	}
+
+	/**
+	 * Publishing stage. Adds picture to content resolver and notifies
+	 * observer.
+	 */
+	private final class PublishStage extends Stage {
+
+		private PublishStage(BlockingQueue<Job> in) {
+			super("InstaCamSave-publish", in, null);
+		}
+
+		@Override
+		protected void process(Job job) {
+			try {
+				if (job.mError == null) {
+					publish(job);
+				}
+			} catch (RuntimeException ex) {
+				job.mError = getMessage(ex);
+			} finally {
+				// Capacity is released and observer notified for every job,
+				// failed ones included.
+				mCapacity.release();
+
+				final File file = job.mError == null ? job.mFile : null;
+				final String error = job.mError;
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						mObserver.onPictureSaved(file, error);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Adds picture to content resolver.
+		 */
+		private void publish(Job job) {
+			File filePath = job.mFile;
+			String pictureName = filePath.getName();
+			pictureName = pictureName.substring(0, pictureName.length() - 5);
+
+			ContentValues v = new ContentValues();
+			v.put(MediaColumns.TITLE, pictureName);
+			v.put(MediaColumns.DISPLAY_NAME, pictureName);
+			v.put(ImageColumns.DESCRIPTION, "Taken with InstaCam.");
+			v.put(MediaColumns.DATE_ADDED, job.mTime);
+			v.put(ImageColumns.DATE_TAKEN, job.mTime);
+			v.put(MediaColumns.DATE_MODIFIED, job.mTime);
+			v.put(MediaColumns.MIME_TYPE, "image/jpeg");
+			v.put(ImageColumns.ORIENTATION, job.mOrientation);
+			v.put(MediaColumns.DATA, filePath.getAbsolutePath());
+
+			File parent = filePath.getParentFile();
+			String path = parent.toString().toLowerCase(Locale.getDefault());
+			String name = parent.getName().toLowerCase(Locale.getDefault());
+			v.put(Images.ImageColumns.BUCKET_ID, path.hashCode());
+			v.put(Images.ImageColumns.BUCKET_DISPLAY_NAME, name);
+			v.put(MediaColumns.SIZE, filePath.length());
+
+			ContentResolver c = mContext.getContentResolver();
+			c.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, v);
+		}
+	}
+
+	/**
+	 * Worker thread taking jobs from input queue and passing them on to
+	 * output queue. Jobs which failed in earlier stages are passed through,
+	 * last stage handles them too.
+	 */
+	private abstract class Stage extends Thread {
+
+		private final BlockingQueue<Job> mIn, mOut;
+
+		private Stage(String name, BlockingQueue<Job> in, BlockingQueue<Job> out) {
+			super(name);
+			mIn = in;
+			mOut = out;
+		}
+
+		/**
+		 * Called on worker thread once all jobs have been handled.
+		 */
+		protected void onStop() {
+		}
+
+		/**
+		 * Handles one job.
+		 */
+		protected abstract void process(Job job) throws Exception;
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Job job = mIn.take();
+					if (job == STOP) {
+						break;
+					}
+					if (job.mError == null || mOut == null) {
+						try {
+							process(job);
+						} catch (Throwable ex) {
+							// Errors, OutOfMemoryError in particular, fail
+							// job only and stage keeps running.
+							job.mError = getMessage(ex);
+							recycle(job);
+						}
+					}
+					if (mOut != null) {
+						mOut.put(job);
+					}
+				}
+				if (mOut != null) {
+					mOut.put(STOP);
+				}
+			} catch (InterruptedException ex) {
+			}
+			onStop();
+		}
+	}
+
+}
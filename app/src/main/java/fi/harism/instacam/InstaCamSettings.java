@@ -0,0 +1,153 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Settings store on top of SharedPreferences. Changes are kept in memory and
+ * written asynchronously once no changes have been made for a while, or on
+ * flush(), so that dragging a SeekBar doesn't write on every progress step.
+ * To be used from main thread only.
+ */
+public class InstaCamSettings {
+
+	// Time without changes before pending ones are written, in millis.
+	public static final long QUIET_PERIOD = 500;
+
+	// Number of changes made and number of values actually written.
+	private int mChangeCount, mWriteCount;
+	// Handler for delayed flush.
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Changes not written yet, by key.
+	private final Map<String, Object> mPending = new HashMap<String, Object>();
+	// Underlying preferences.
+	private final SharedPreferences mPreferences;
+
+	// Runnable for delayed flush.
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructor taking preferences settings are stored into.
+	 */
+	public InstaCamSettings(SharedPreferences preferences) {
+		mPreferences = preferences;
+	}
+
+	/**
+	 * Writes pending changes asynchronously right away.
+	 */
+	public void flush() {
+		mHandler.removeCallbacks(mFlush);
+		if (mPending.isEmpty()) {
+			return;
+		}
+		SharedPreferences.Editor editor = mPreferences.edit();
+		for (Map.Entry<String, Object> entry : mPending.entrySet()) {
+			Object value = entry.getValue();
+			if (value instanceof Integer) {
+				editor.putInt(entry.getKey(), (Integer) value);
+			} else if (value instanceof Boolean) {
+				editor.putBoolean(entry.getKey(), (Boolean) value);
+			} else {
+				editor.putString(entry.getKey(), (String) value);
+			}
+		}
+		mWriteCount += mPending.size();
+		mPending.clear();
+		// Apply returns once in-memory values are updated, disk write is
+		// done on a background thread.
+		editor.apply();
+	}
+
+	/**
+	 * Returns boolean value for given key.
+	 */
+	public boolean getBoolean(String key, boolean defValue) {
+		Object value = mPending.get(key);
+		return value instanceof Boolean ? (Boolean) value : mPreferences
+				.getBoolean(key, defValue);
+	}
+
+	/**
+	 * Returns number of changes which were overridden by a later change
+	 * before being written.
+	 */
+	public int getCoalescedCount() {
+		return mChangeCount - mWriteCount - mPending.size();
+	}
+
+	/**
+	 * Returns int value for given key.
+	 */
+	public int getInt(String key, int defValue) {
+		Object value = mPending.get(key);
+		return value instanceof Integer ? (Integer) value : mPreferences
+				.getInt(key, defValue);
+	}
+
+	/**
+	 * Returns String value for given key.
+	 */
+	public String getString(String key, String defValue) {
+		Object value = mPending.get(key);
+		return value instanceof String ? (String) value : mPreferences
+				.getString(key, defValue);
+	}
+
+	/**
+	 * Stores boolean value for given key.
+	 */
+	public void putBoolean(String key, boolean value) {
+		put(key, value);
+	}
+
+	/**
+	 * Stores int value for given key.
+	 */
+	public void putInt(String key, int value) {
+		put(key, value);
+	}
+
+	/**
+	 * Stores String value for given key.
+	 */
+	public void putString(String key, String value) {
+		put(key, value);
+	}
+
+	/**
+	 * Adds change into pending ones and restarts quiet period.
+	 */
+	private void put(String key, Object value) {
+		mPending.put(key, value);
+		++mChangeCount;
+		mHandler.removeCallbacks(mFlush);
+		mHandler.postDelayed(mFlush, QUIET_PERIOD);
+	}
+
+}
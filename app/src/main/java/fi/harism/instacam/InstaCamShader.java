@@ -16,6 +16,7 @@
 
 package fi.harism.instacam;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 import android.opengl.GLES20;
@@ -32,6 +33,51 @@ public final class InstaCamShader {
 	// HashMap for storing uniform/attribute handles.
 	private final HashMap<String, Integer> mShaderHandleMap = new HashMap<String, Integer>();
 	private int mShaderVertex = 0;
+	// Shader sources for lazy compiling.
+	private String mSourceFragment, mSourceVertex;
+	// Slot names and their handles, -1 for names not found in program.
+	private final String[] mSlotNames;
+	private final int[] mSlots;
+	// Last uniform values per slot.
+	private final InstaCamUniforms mUniforms;
+
+	/**
+	 * Default constructor for shaders without slots.
+	 */
+	public InstaCamShader() {
+		this(new String[0]);
+	}
+
+	/**
+	 * Constructor taking uniform/attribute names to be resolved into slots
+	 * once program is linked. Slot index is the index of name in given array.
+	 */
+	public InstaCamShader(String... slotNames) {
+		mSlotNames = slotNames;
+		mSlots = new int[slotNames.length];
+		mUniforms = new InstaCamUniforms(slotNames.length);
+		Arrays.fill(mSlots, -1);
+	}
+
+	/**
+	 * Compiles program from sources given to setSource unless it has been
+	 * compiled already. Sources are dropped if compiling fails so that errors
+	 * are reported only once.
+	 * 
+	 * @param cache
+	 *            Program binary cache, can be null
+	 */
+	public void compile(InstaCamProgramCache cache) throws Exception {
+		if (mProgram != 0 || mSourceVertex == null) {
+			return;
+		}
+		try {
+			setProgram(mSourceVertex, mSourceFragment, cache);
+		} catch (Exception ex) {
+			mSourceVertex = mSourceFragment = null;
+			throw ex;
+		}
+	}
 
 	/**
 	 * Deletes program and shaders associated with it.
@@ -41,6 +87,7 @@ public final class InstaCamShader {
 		GLES20.glDeleteShader(mShaderVertex);
 		GLES20.glDeleteProgram(mProgram);
 		mProgram = mShaderVertex = mShaderFragment = 0;
+		Arrays.fill(mSlots, -1);
 	}
 
 	/**
@@ -87,6 +134,20 @@ public final class InstaCamShader {
 		return res;
 	}
 
+	/**
+	 * Returns handle for given slot, or -1 if program doesn't have it.
+	 */
+	public int getSlot(int slot) {
+		return mSlots[slot];
+	}
+
+	/**
+	 * Returns true if program has been compiled.
+	 */
+	public boolean hasProgram() {
+		return mProgram != 0;
+	}
+
 	/**
 	 * Helper method for compiling a shader.
 	 * 
@@ -125,23 +186,134 @@ public final class InstaCamShader {
 	 */
 	public void setProgram(String vertexSource, String fragmentSource)
 			throws Exception {
+		setProgram(vertexSource, fragmentSource, null);
+	}
+
+	/**
+	 * Links program, either from binary found in cache or by compiling
+	 * shaders and storing resulting binary into cache.
+	 * 
+	 * @param vertexSource
+	 *            String presentation for vertex shader
+	 * @param fragmentSource
+	 *            String presentation for fragment shader
+	 * @param cache
+	 *            Program binary cache, can be null
+	 */
+	public void setProgram(String vertexSource, String fragmentSource,
+			InstaCamProgramCache cache) throws Exception {
+		mShaderHandleMap.clear();
+		String key = null;
+		if (cache != null && cache.isSupported()) {
+			key = cache.getKey(vertexSource, fragmentSource);
+			int program = GLES20.glCreateProgram();
+			if (cache.load(program, key)) {
+				mProgram = program;
+				resolveSlots();
+				return;
+			}
+			GLES20.glDeleteProgram(program);
+		}
+
 		mShaderVertex = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
 		mShaderFragment = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
 		int program = GLES20.glCreateProgram();
 		if (program != 0) {
 			GLES20.glAttachShader(program, mShaderVertex);
 			GLES20.glAttachShader(program, mShaderFragment);
+			if (key != null) {
+				cache.prepare(program);
+			}
 			GLES20.glLinkProgram(program);
 			int[] linkStatus = new int[1];
 			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
 			if (linkStatus[0] != GLES20.GL_TRUE) {
 				String error = GLES20.glGetProgramInfoLog(program);
+				mProgram = program;
 				deleteProgram();
 				throw new Exception(error);
 			}
+			if (key != null) {
+				cache.store(program, key);
+			}
 		}
 		mProgram = program;
+		resolveSlots();
+	}
+
+	/**
+	 * Resolves slot handles for linked program. Uniforms are reset to their
+	 * initial values on linking so cached values are invalidated.
+	 */
+	private void resolveSlots() {
+		for (int i = 0; i < mSlotNames.length; ++i) {
+			int handle = GLES20.glGetAttribLocation(mProgram, mSlotNames[i]);
+			if (handle == -1) {
+				handle = GLES20.glGetUniformLocation(mProgram, mSlotNames[i]);
+			}
+			mSlots[i] = handle;
+		}
+		mUniforms.invalidate();
+	}
+
+	/**
+	 * Sets shader sources for compiling program later on with compile().
+	 * Should be called once OpenGL context has been (re)created, previous
+	 * program is forgotten without deleting it.
+	 */
+	public void setSource(String vertexSource, String fragmentSource) {
+		mSourceVertex = vertexSource;
+		mSourceFragment = fragmentSource;
+		mProgram = mShaderVertex = mShaderFragment = 0;
 		mShaderHandleMap.clear();
+		Arrays.fill(mSlots, -1);
+	}
+
+	/**
+	 * Sets float uniform if its value has changed.
+	 */
+	public void setUniform1f(int slot, float x) {
+		int handle = mSlots[slot];
+		if (handle != -1 && mUniforms.set1f(slot, x)) {
+			GLES20.glUniform1f(handle, x);
+		}
+	}
+
+	/**
+	 * Sets integer (sampler) uniform if its value has changed.
+	 */
+	public void setUniform1i(int slot, int x) {
+		int handle = mSlots[slot];
+		if (handle != -1 && mUniforms.set1f(slot, x)) {
+			GLES20.glUniform1i(handle, x);
+		}
+	}
+
+	/**
+	 * Sets vec2 uniform if its value has changed.
+	 */
+	public void setUniform2f(int slot, float x, float y) {
+		int handle = mSlots[slot];
+		if (handle != -1 && mUniforms.set2f(slot, x, y)) {
+			GLES20.glUniform2f(handle, x, y);
+		}
+	}
+
+	/**
+	 * Sets vec2 uniform from array if its value has changed.
+	 */
+	public void setUniform2fv(int slot, float[] v) {
+		setUniform2f(slot, v[0], v[1]);
+	}
+
+	/**
+	 * Sets mat4 uniform if its value has changed.
+	 */
+	public void setUniformMatrix4fv(int slot, float[] m) {
+		int handle = mSlots[slot];
+		if (handle != -1 && mUniforms.setMatrix4(slot, m)) {
+			GLES20.glUniformMatrix4fv(handle, 1, false, m, 0);
+		}
 	}
 
 	/**
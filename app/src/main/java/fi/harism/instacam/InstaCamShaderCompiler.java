@@ -0,0 +1,309 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Composes filter fragments, filter_*_fs sources each defining a filter()
+ * function, into one fragment shader. Entry points are renamed per stage and
+ * texture reads of neighbourhood filters are routed through preceding stages,
+ * so that a whole run of filters is evaluated within one pass. Has no Android
+ * dependencies.
+ */
+public final class InstaCamShaderCompiler {
+
+	// Maximum number of texture reads per pixel fused into one pass.
+	public static final int MAX_TAPS = 9;
+	// Placeholder in pass template replaced with composed functions.
+	public static final String PLACEHOLDER = "____FUNCTION_FILTER____";
+
+	// Entry point of filter fragment.
+	private static final Pattern ENTRY_POINT = Pattern
+			.compile("\\bfilter\\s*\\(");
+	// Texture reads within filter fragment.
+	private static final Pattern TEXTURE_READ = Pattern
+			.compile("\\btexture2D\\s*\\(\\s*(sTexture|texture)\\s*,\\s*");
+	// Texture reads per pixel for neighbourhood filters.
+	private static final int NEIGHBOURHOOD_TAPS = 9;
+
+	// Filter fragment sources indexed by filter id.
+	private final String[] mFilters;
+	// Pass template and helper functions used by filter fragments.
+	private final String mTemplate, mUtils;
+
+	/**
+	 * Constructor taking pass template, helper functions and filter fragment
+	 * sources indexed by filter id.
+	 */
+	public InstaCamShaderCompiler(String template, String utils,
+			String[] filters) {
+		mTemplate = template;
+		mUtils = utils;
+		mFilters = filters.clone();
+	}
+
+	/**
+	 * Returns cache key for shader variant with given filters and features.
+	 */
+	public static String getKey(int[] filters, boolean external,
+			boolean intermediate) {
+		StringBuilder key = new StringBuilder();
+		for (int filter : filters) {
+			key.append(filter).append(',');
+		}
+		return key.append(external ? 'e' : '-').append(intermediate ? 'i' : '-')
+				.toString();
+	}
+
+	/**
+	 * Splits filter chain into GPU passes. Point-wise filters preceding a
+	 * neighbourhood filter are composed into the same pass, point-wise
+	 * filters following last neighbourhood filter of a pass go into its
+	 * lookup table. New pass is started once texture reads per pixel would
+	 * exceed maxTaps, with maxTaps of 1 every neighbourhood filter starts a
+	 * new pass.
+	 */
+	public static Pass[] plan(InstaCamFilterChain chain, int maxTaps) {
+		List<Pass> passes = new ArrayList<Pass>();
+		List<Integer> filters = new ArrayList<Integer>();
+		List<Integer> pointwise = new ArrayList<Integer>();
+		int taps = 1;
+		for (int i = 0; i < chain.getFilterCount(); ++i) {
+			int filter = chain.getFilter(i);
+			if (filter == InstaCamFilters.FILTER_DEFAULT) {
+				continue;
+			}
+			if (InstaCamFilters.isPointwise(filter)) {
+				pointwise.add(filter);
+				continue;
+			}
+			if (taps * NEIGHBOURHOOD_TAPS > maxTaps
+					&& (!filters.isEmpty() || !pointwise.isEmpty())) {
+				passes.add(new Pass(filters, pointwise));
+				filters.clear();
+				pointwise.clear();
+				taps = 1;
+			}
+			// Preceding point-wise filters are evaluated for every tap.
+			filters.addAll(pointwise);
+			pointwise.clear();
+			filters.add(filter);
+			taps *= NEIGHBOURHOOD_TAPS;
+		}
+		passes.add(new Pass(filters, pointwise));
+		return passes.toArray(new Pass[passes.size()]);
+	}
+
+	/**
+	 * Returns passes with lookup table of last pass moved into a lookup
+	 * table only pass of its own, if last pass composes any filters. Lets
+	 * neighbourhood filters render offscreen at reduced resolution while last
+	 * pass only upsamples, applying lookup table and corners. Given passes
+	 * are returned as such otherwise.
+	 */
+	public static Pass[] splitLast(Pass[] passes) {
+		Pass last = passes[passes.length - 1];
+		if (last.mFilters.length == 0) {
+			return passes;
+		}
+		Pass[] split = new Pass[passes.length + 1];
+		System.arraycopy(passes, 0, split, 0, passes.length - 1);
+		split[passes.length - 1] = new Pass(last.mFilters, new int[0]);
+		split[passes.length] = new Pass(new int[0], last.mPointwise);
+		return split;
+	}
+
+	/**
+	 * Turns fragment shader sampling sTexture as regular 2D texture into one
+	 * sampling external OES texture instead. Extension directive has to
+	 * precede any other statements.
+	 */
+	public static String toExternalOes(String fragmentSource) {
+		return "#extension GL_OES_EGL_image_external : require\n"
+				+ fragmentSource.replace("uniform sampler2D sTexture;",
+						"uniform samplerExternalOES sTexture;").replace(
+						"sampler2D texture,", "samplerExternalOES texture,");
+	}
+
+	/**
+	 * Returns fragment shader source applying given filters in order.
+	 * External variant samples camera preview texture and intermediate one
+	 * leaves corners for last pass.
+	 */
+	public String compile(int[] filters, boolean external,
+			boolean intermediate) {
+		StringBuilder functions = new StringBuilder();
+		if (filters.length == 0) {
+			functions.append(mFilters[InstaCamFilters.FILTER_DEFAULT]);
+		} else {
+			// Fragments may declare same uniforms, they're declared once.
+			Set<String> uniforms = new LinkedHashSet<String>();
+			StringBuilder stages = new StringBuilder();
+			for (int i = 0; i < filters.length; ++i) {
+				appendStage(stages, filters[i], i + 1, i, uniforms);
+			}
+			appendFunctions(functions, stages, uniforms);
+			functions.append("vec3 filter(vec3 color, sampler2D texture, "
+					+ "vec2 texturePos) {\n");
+			functions.append("\treturn stage" + filters.length
+					+ "(texturePos);\n}\n");
+		}
+
+		String source = mTemplate.replace(PLACEHOLDER, functions);
+		if (intermediate) {
+			source = "#define INTERMEDIATE\n" + source;
+		}
+		if (external) {
+			source = toExternalOes(source);
+		}
+		return source;
+	}
+
+	/**
+	 * Returns fragment shader source for filter gallery atlas, tile i showing
+	 * filter tileFilters[i]. Neighbourhood filters are composed as stages of
+	 * their own reading source texture and selected by tile index, point-wise
+	 * filters are left for per tile lookup tables. Template has to declare
+	 * varying vTile holding tile index.
+	 */
+	public String compileGallery(String template, int[] tileFilters) {
+		Set<String> uniforms = new LinkedHashSet<String>();
+		StringBuilder stages = new StringBuilder();
+		StringBuilder select = new StringBuilder();
+		int stage = 0;
+		for (int tile = 0; tile < tileFilters.length; ++tile) {
+			if (InstaCamFilters.isPointwise(tileFilters[tile])) {
+				continue;
+			}
+			appendStage(stages, tileFilters[tile], ++stage, 0, uniforms);
+			// Tile index is constant within tile, branch is coherent.
+			select.append("\tif (abs(vTile - " + tile + ".0) < 0.5) {\n");
+			select.append("\t\treturn stage" + stage + "(texturePos);\n\t}\n");
+		}
+
+		StringBuilder functions = new StringBuilder();
+		appendFunctions(functions, stages, uniforms);
+		functions.append("vec3 filter(vec3 color, sampler2D texture, "
+				+ "vec2 texturePos) {\n");
+		functions.append(select).append("\treturn color;\n}\n");
+		return template.replace(PLACEHOLDER, functions);
+	}
+
+	/**
+	 * Appends hoisted uniforms, helper functions and stages reading source
+	 * texture through stage0.
+	 */
+	private void appendFunctions(StringBuilder functions, StringBuilder stages,
+			Set<String> uniforms) {
+		for (String uniform : uniforms) {
+			functions.append(uniform).append('\n');
+		}
+		functions.append(mUtils).append('\n');
+		functions.append("vec3 stage0(vec2 pos) {\n");
+		functions.append("\treturn texture2D(sTexture, pos).rgb;\n}\n");
+		functions.append(stages);
+	}
+
+	/**
+	 * Appends stage function applying given filter on result of input stage.
+	 * Uniforms declared by filter fragment are added into given set.
+	 */
+	private void appendStage(StringBuilder stages, int filter, int stage,
+			int input, Set<String> uniforms) {
+		String source = hoistUniforms(mFilters[filter], uniforms);
+		source = ENTRY_POINT.matcher(source).replaceAll("filter" + stage + "(");
+		Matcher matcher = TEXTURE_READ.matcher(source);
+		if (matcher.find()) {
+			// Neighbouring pixels are read through input stage.
+			source = matcher.replaceAll("sampleStage" + stage + "(");
+			stages.append("vec4 sampleStage" + stage + "(vec2 pos) {\n");
+			stages.append("\treturn vec4(stage" + input + "(pos), 1.0);\n}\n");
+		}
+		stages.append(source).append('\n');
+		// Stage results are clamped like 8 bit texture would do.
+		stages.append("vec3 stage" + stage + "(vec2 pos) {\n");
+		stages.append("\treturn clamp(filter" + stage + "(stage" + input
+				+ "(pos), sTexture, pos), 0.0, 1.0);\n}\n");
+	}
+
+	/**
+	 * Removes uniform declarations from source and adds them into given set.
+	 */
+	private static String hoistUniforms(String source, Set<String> uniforms) {
+		StringBuilder out = new StringBuilder();
+		for (String line : source.split("\n")) {
+			if (line.trim().startsWith("uniform ")) {
+				uniforms.add(line.trim());
+			} else {
+				out.append(line).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * One GPU pass, composed filters followed by point-wise filters baked into
+	 * lookup table.
+	 */
+	public static final class Pass {
+
+		// Filters composed into pass shader.
+		private final int[] mFilters;
+		// Point-wise filters applied using lookup table.
+		private final int[] mPointwise;
+
+		private Pass(int[] filters, int[] pointwise) {
+			mFilters = filters;
+			mPointwise = pointwise;
+		}
+
+		private Pass(List<Integer> filters, List<Integer> pointwise) {
+			this(toArray(filters), toArray(pointwise));
+		}
+
+		private static int[] toArray(List<Integer> list) {
+			int[] array = new int[list.size()];
+			for (int i = 0; i < array.length; ++i) {
+				array[i] = list.get(i);
+			}
+			return array;
+		}
+
+		/**
+		 * Returns filters composed into pass shader, empty for lookup table
+		 * only pass. Array must not be modified.
+		 */
+		public int[] getFilters() {
+			return mFilters;
+		}
+
+		/**
+		 * Returns point-wise filters for lookup table. Array must not be
+		 * modified.
+		 */
+		public int[] getPointwise() {
+			return mPointwise;
+		}
+	}
+
+}
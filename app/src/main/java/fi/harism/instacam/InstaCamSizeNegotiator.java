@@ -0,0 +1,92 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+/**
+ * Default preview negotiator. Picks the smallest preview size covering the
+ * surface, preferring sizes with surface aspect ratio, and the fps range
+ * reaching target rate with the lowest maximum. Has no Android dependencies.
+ */
+public class InstaCamSizeNegotiator implements InstaCamPreviewNegotiator {
+
+	// Maximum relative aspect ratio difference still considered a match.
+	public static final float ASPECT_TOLERANCE = .05f;
+
+	@Override
+	public int[] selectFpsRange(int[][] ranges, int fps) {
+		int[] best = null;
+		for (int[] range : ranges) {
+			if (best == null) {
+				best = range;
+				continue;
+			}
+			boolean reaches = range[1] >= fps;
+			boolean bestReaches = best[1] >= fps;
+			if (reaches != bestReaches) {
+				if (reaches) {
+					best = range;
+				}
+				continue;
+			}
+			// Ranges reaching target rate are compared by lowest maximum,
+			// others by highest. Lower minimum lets exposure grow in low
+			// light.
+			if (range[1] != best[1]) {
+				if (reaches == range[1] < best[1]) {
+					best = range;
+				}
+			} else if (range[0] < best[0]) {
+				best = range;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public int[] selectPreviewSize(int[][] sizes, int width, int height) {
+		float aspect = (float) width / height;
+		int[] best = null;
+		int bestScore = 0;
+		for (int[] size : sizes) {
+			int score = 0;
+			if (size[0] >= width && size[1] >= height) {
+				score += 2;
+			}
+			float sizeAspect = (float) size[0] / size[1];
+			if (Math.abs(sizeAspect - aspect) <= aspect * ASPECT_TOLERANCE) {
+				score += 1;
+			}
+			if (best == null || score > bestScore) {
+				best = size;
+				bestScore = score;
+				continue;
+			}
+			if (score < bestScore) {
+				continue;
+			}
+			// Covering sizes are compared by smallest area, others by
+			// largest.
+			long area = (long) size[0] * size[1];
+			long bestArea = (long) best[0] * best[1];
+			if (bestScore >= 2 ? area < bestArea : area > bestArea) {
+				best = size;
+			}
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Systrace sections, no-ops on devices older than API level 18.
+ */
+public final class InstaCamTrace {
+
+	// Flag for Trace class being available.
+	private static final boolean SUPPORTED = Build.VERSION.SDK_INT >= 18;
+
+	private InstaCamTrace() {
+	}
+
+	/**
+	 * Begins section with given name on calling thread.
+	 */
+	public static void beginSection(String name) {
+		if (SUPPORTED) {
+			Trace.beginSection(name);
+		}
+	}
+
+	/**
+	 * Ends most recent section begun on calling thread.
+	 */
+	public static void endSection() {
+		if (SUPPORTED) {
+			Trace.endSection();
+		}
+	}
+
+}
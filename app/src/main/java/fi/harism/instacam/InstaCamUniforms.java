@@ -0,0 +1,99 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.Arrays;
+
+/**
+ * Last uniform values set per slot of a shader. Setters store new value and
+ * return true only if it differs from stored one, in which case caller issues
+ * the GL call. Has no Android dependencies and allocates nothing after
+ * construction.
+ */
+public final class InstaCamUniforms {
+
+	// Floats stored per slot, enough for a mat4.
+	private static final int SLOT_SIZE = 16;
+
+	// Validity flags per slot.
+	private final boolean[] mValid;
+	// Stored values, SLOT_SIZE floats per slot.
+	private final float[] mValues;
+
+	/**
+	 * Constructor taking number of slots.
+	 */
+	public InstaCamUniforms(int slotCount) {
+		mValid = new boolean[slotCount];
+		mValues = new float[slotCount * SLOT_SIZE];
+	}
+
+	/**
+	 * Forgets stored values, to be called once program has been linked as
+	 * uniforms are reset to their initial values.
+	 */
+	public void invalidate() {
+		Arrays.fill(mValid, false);
+	}
+
+	/**
+	 * Stores float value, returns true if it changed.
+	 */
+	public boolean set1f(int slot, float x) {
+		int i = slot * SLOT_SIZE;
+		if (mValid[slot] && mValues[i] == x) {
+			return false;
+		}
+		mValues[i] = x;
+		mValid[slot] = true;
+		return true;
+	}
+
+	/**
+	 * Stores vec2 value, returns true if it changed.
+	 */
+	public boolean set2f(int slot, float x, float y) {
+		int i = slot * SLOT_SIZE;
+		if (mValid[slot] && mValues[i] == x && mValues[i + 1] == y) {
+			return false;
+		}
+		mValues[i] = x;
+		mValues[i + 1] = y;
+		mValid[slot] = true;
+		return true;
+	}
+
+	/**
+	 * Stores mat4 value, returns true if it changed.
+	 */
+	public boolean setMatrix4(int slot, float[] m) {
+		int i = slot * SLOT_SIZE;
+		if (mValid[slot]) {
+			int j = 0;
+			while (j < SLOT_SIZE && mValues[i + j] == m[j]) {
+				++j;
+			}
+			if (j == SLOT_SIZE) {
+				return false;
+			}
+		}
+		System.arraycopy(m, 0, mValues, i, SLOT_SIZE);
+		mValid[slot] = true;
+		return true;
+	}
+
+}
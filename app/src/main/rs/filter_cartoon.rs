@@ -19,53 +19,77 @@
 
 #include "utils.rsh"
 
-void apply(const rs_allocation src, rs_allocation dst) {
-	int width = rsAllocationGetDimX(src);
-	int height = rsAllocationGetDimY(src);	
+rs_allocation src;
+
+static uint32_t width;
+static uint32_t height;
+
+static const int borderWidth = 6;
+
+void setSource(rs_allocation allocation) {
+	src = allocation;
+	width = rsAllocationGetDimX(allocation);
+	height = rsAllocationGetDimY(allocation);
+}
+
+static float3 cartoon(int x, int y) {
+	float3 color = { 0, 0, 0 };
+	float3 sample[9];
+	int i = 0;
+	int tx = -borderWidth;
+	for (int xx = 0; xx < 3; ++xx) {
+		int ty = -borderWidth;
+		for (int yy = 0; yy < 3; ++yy) {
+			const uchar4* colorValue = rsGetElementAt(src, x + tx, y + ty);
+			sample[i] = rsUnpackColor8888(*colorValue).rgb;
+			color += sample[i++];
+			ty += borderWidth;
+		}
+		tx += borderWidth;
+	}
+	color /= 9.0f;
+	
+	float3 horizEdge = sample[2] + sample[5] + sample[8] -
+					(sample[0] + sample[3] + sample[6]);
+
+	float3 vertEdge = sample[0] + sample[1] + sample[2] -
+				(sample[6] + sample[7] + sample[8]);
+
+	float3 border = sqrt((horizEdge * horizEdge) + 
+						(vertEdge * vertEdge));
+
+	if (border.r > 0.3 || border.g > 0.3 || border.b > 0.3){
+		color *= 1.0f - dot(border, border);
+	}
 	
-	const int borderWidth = 6;
+	const float3 colorRed = { 1.0, 0.3, 0.3 };
+	const float3 colorGreen = { 0.3, 1.0, 0.3 };
+	const float3 colorBlue =  { 0.3, 0.3, 1.0 };
+
+	color = floor(color * 8.0f) * 0.125f;
+	color = colorRed * color.r + colorBlue * color.b + colorGreen * color.g;
+	return clamp(color, 0.0f, 1.0f);
+}
+
+// Kernel run over all source pixels, setSource must be called beforehand.
+// Pixels closer than borderWidth to image edges are copied as such.
+void root(const uchar4* v_in, uchar4* v_out, uint32_t x, uint32_t y) {
+	if (x < borderWidth || y < borderWidth || x >= width - borderWidth
+			|| y >= height - borderWidth) {
+		*v_out = *v_in;
+		return;
+	}
+	float3 color = cartoon(x, y);
+	*v_out = rsPackColorTo8888(color.r, color.g, color.b, 1.0f);
+}
+
+// Single threaded version of root kernel, kept for benchmarking.
+void apply(const rs_allocation srcAllocation, rs_allocation dst) {
+	setSource(srcAllocation);
 	for (int x = borderWidth; x < width - borderWidth; ++x) {
 		for (int y = borderWidth; y < height - borderWidth; ++y) {
-			
-			float3 color = { 0, 0, 0 };
-			float3 sample[9];
-			int i = 0;
-			int tx = -borderWidth;
-			for (int xx = 0; xx < 3; ++xx) {
-				int ty = -borderWidth;
-				for (int yy = 0; yy < 3; ++yy) {
-					const uchar4* colorValue = rsGetElementAt(src, x + tx, y + ty);
-					sample[i++] = rsUnpackColor8888(*colorValue).rgb;
-					color += rsUnpackColor8888(*colorValue).rgb;
-					ty += borderWidth;
-				}
-				tx += borderWidth;
-			}
-			color /= 9.0f;
-			
-			float3 horizEdge = sample[2] + sample[5] + sample[8] -
-							(sample[0] + sample[3] + sample[6]);
-
-			float3 vertEdge = sample[0] + sample[1] + sample[2] -
-						(sample[6] + sample[7] + sample[8]);
-
-			float3 border = sqrt((horizEdge * horizEdge) + 
-								(vertEdge * vertEdge));
-
-			float alpha = 1.0;
-			if (border.r > 0.3 || border.g > 0.3 || border.b > 0.3){
-				color *= 1.0f - dot(border, border);
-			}
-			
-			const float3 colorRed = { 1.0, 0.3, 0.3 };
-			const float3 colorGreen = { 0.3, 1.0, 0.3 };
-			const float3 colorBlue =  { 0.3, 0.3, 1.0 };
-		
-			color = floor(color * 8.0f) * 0.125f;
-			color = colorRed * color.r + colorBlue * color.b + colorGreen * color.g;
-			
+			float3 color = cartoon(x, y);
 			uchar4* colorValue = (uchar4*)rsGetElementAt(dst, x, y);
-			color = clamp(color, 0.0f, 1.0f);
 			*colorValue = rsPackColorTo8888(color.r, color.g, color.b, 1.0f);
 		}
 	}
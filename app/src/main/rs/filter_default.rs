@@ -17,12 +17,6 @@
 #pragma version(1)
 #pragma rs java_package_name(fi.harism.instacam)
 
-#include "utils.rsh"
-
-static float brightness_value;
-static float contrast_value;
-static float saturation_value;
-
 static float corner_radius;
 static float inv_corner_radius;
 
@@ -31,18 +25,6 @@ static float inv_height;
 
 static float sqrt2 = 1.41421356f;
 
-void setBrightness(float value) {
-	brightness_value = value;
-}
-
-void setContrast(float value) {
-	contrast_value = value;
-}
-
-void setSaturation(float value) {
-	saturation_value = value;
-}
-
 void setCornerRadius(float value) {
 	corner_radius = value;
 	inv_corner_radius = 1.0f / value;
@@ -53,15 +35,12 @@ void setSize(float width, float height) {
 	inv_height = 1.0f / height;
 }
 
+// Brightness, contrast and saturation are baked into lookup table applied
+// before this script, only corners are left here.
 void root(uchar4* v_color, uint32_t x, uint32_t y) {
 	
 	float3 color = rsUnpackColor8888(*v_color).rgb;
 	
-	// Adjust color brightness, contrast and saturation.
-	color = brightness(color, brightness_value);
-	color = contrast(color, contrast_value);
-	color = saturation(color, saturation_value);
-	
 	// Calculate darker rounded corners.
 	float2 tex_pos;
 	tex_pos.x = x * inv_width;
@@ -19,32 +19,57 @@
 
 #include "utils.rsh"
 
-void apply(const rs_allocation src, rs_allocation dst) {
-	int width = rsAllocationGetDimX(src);
-	int height = rsAllocationGetDimY(src);	
+rs_allocation src;
+
+static uint32_t width;
+static uint32_t height;
+
+static const int border = 6;
+
+void setSource(rs_allocation allocation) {
+	src = allocation;
+	width = rsAllocationGetDimX(allocation);
+	height = rsAllocationGetDimY(allocation);
+}
+
+static float3 edges(int x, int y) {
+	float pix[9];			
+	for (int xx = 0; xx < 3; ++xx) {
+		for (int yy = 0; yy < 3; ++yy) {
+			const uchar4* colorValue = rsGetElementAt(src, x + (xx - 1) * border, y + (yy - 1) * border);
+			pix[xx * 3 + yy] = length(rsUnpackColor8888(*colorValue).rgb);
+		}
+	}
 	
-	int border = 6;
+	float delta = (
+		fabs(pix[1]-pix[7]) +
+		fabs(pix[5]-pix[3]) +
+		fabs(pix[0]-pix[8]) +
+		fabs(pix[2]-pix[6]) ) * 0.25;
+	
+	float3 color = { 0.8 * delta, 1.2 * delta, 2.0 * delta};
+	return clamp(color, 0.0f, 1.0f);
+}
+
+// Kernel run over all source pixels, setSource must be called beforehand.
+// Pixels closer than border to image edges are copied as such.
+void root(const uchar4* v_in, uchar4* v_out, uint32_t x, uint32_t y) {
+	if (x < border || y < border || x >= width - border
+			|| y >= height - border) {
+		*v_out = *v_in;
+		return;
+	}
+	float3 color = edges(x, y);
+	*v_out = rsPackColorTo8888(color.r, color.g, color.b, 1.0f);
+}
+
+// Single threaded version of root kernel, kept for benchmarking.
+void apply(const rs_allocation srcAllocation, rs_allocation dst) {
+	setSource(srcAllocation);
 	for (int x = border; x < width - border; ++x)
 	for (int y = border; y < height - border; ++y) {
-		
-		float pix[9];			
-		for (int xx = 0; xx < 3; ++xx) {
-			for (int yy = 0; yy < 3; ++yy) {
-				const uchar4* colorValue = rsGetElementAt(src, x + (xx - 1) * border, y + (yy - 1) * border);
-				pix[xx * 3 + yy] = length(rsUnpackColor8888(*colorValue).rgb);
-			}
-		}
-		
-		float delta = (
-			fabs(pix[1]-pix[7]) +
-			fabs(pix[5]-pix[3]) +
-			fabs(pix[0]-pix[8]) +
-			fabs(pix[2]-pix[6]) ) * 0.25;
-		
-		float3 color = { 0.8 * delta, 1.2 * delta, 2.0 * delta};
-		
+		float3 color = edges(x, y);
 		uchar4* colorValue = (uchar4*)rsGetElementAt(dst, x, y);
-		color = clamp(color, 0.0f, 1.0f);
 		*colorValue = rsPackColorTo8888(color.r, color.g, color.b, 1.0f);
 	}
 }
@@ -0,0 +1,98 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per color cost of point-wise filters. Every benchmark processes a batch of
+ * COLORS random colors, results are in nanoseconds per batch. Color helpers
+ * shared by all filters are measured in InstaCamColorHelperBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstaCamColorBenchmark {
+
+	// Number of colors per batch.
+	public static final int COLORS = 1024;
+
+	// Point-wise filter id.
+	@Param({ "0", "1", "2", "3", "4", "5", "6", "7" })
+	public int filter;
+
+	// Batch of colors as { r, g, b } triplets and scratch color.
+	private final float[] mColor = new float[3];
+	private float[] mColors;
+
+	/**
+	 * Creates batch of random colors as { r, g, b } triplets.
+	 */
+	static float[] createColors() {
+		Random random = new Random(0);
+		float[] colors = new float[COLORS * 3];
+		for (int i = 0; i < colors.length; ++i) {
+			colors[i] = random.nextFloat();
+		}
+		return colors;
+	}
+
+	/**
+	 * Applies point-wise filter without lookup table.
+	 */
+	@Benchmark
+	public float filter() {
+		float sum = 0f;
+		for (int i = 0; i < COLORS * 3; i += 3) {
+			load(i);
+			InstaCamFilters.filter(filter, mColor);
+			sum += mColor[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Copies color from batch into scratch color.
+	 */
+	private void load(int index) {
+		mColor[0] = mColors[index];
+		mColor[1] = mColors[index + 1];
+		mColor[2] = mColors[index + 2];
+	}
+
+	@Setup
+	public void setup() {
+		mColors = createColors();
+	}
+
+}
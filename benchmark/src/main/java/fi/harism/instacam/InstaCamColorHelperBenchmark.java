@@ -0,0 +1,142 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per color cost of the color helpers shared by all filters (utils.rsh in
+ * RenderScript). Kept apart from InstaCamColorBenchmark as helpers don't
+ * depend on filter id. Every benchmark processes a batch of
+ * InstaCamColorBenchmark.COLORS random colors, results are in nanoseconds
+ * per batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstaCamColorHelperBenchmark {
+
+	// Number of colors per batch.
+	private static final int COLORS = InstaCamColorBenchmark.COLORS;
+
+	// Batch of colors as { r, g, b } triplets and scratch color.
+	private final float[] mColor = new float[3];
+	private float[] mColors;
+	// Overlay color.
+	private final float[] mOverlay = { 0.8f, 0.6f, 0.4f };
+
+	/**
+	 * Applies contrast adjustment.
+	 */
+	@Benchmark
+	public float contrast() {
+		float factor = InstaCamFilters.contrastFactor(0.3f);
+		float sum = 0f;
+		for (int i = 0; i < COLORS * 3; i += 3) {
+			load(i);
+			InstaCamFilters.contrast(mColor, factor);
+			sum += mColor[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Converts HSV color back to RGB.
+	 */
+	@Benchmark
+	public float hsvToRgb() {
+		float sum = 0f;
+		for (int i = 0; i < COLORS * 3; i += 3) {
+			load(i);
+			// Random RGB values are valid HSV values as well.
+			InstaCamFilters.hsvToRgb(mColor);
+			sum += mColor[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Copies color from batch into scratch color.
+	 */
+	private void load(int index) {
+		mColor[0] = mColors[index];
+		mColor[1] = mColors[index + 1];
+		mColor[2] = mColors[index + 2];
+	}
+
+	/**
+	 * Blends overlay color.
+	 */
+	@Benchmark
+	public float overlay() {
+		float sum = 0f;
+		for (int i = 0; i < COLORS * 3; i += 3) {
+			load(i);
+			InstaCamFilters.overlay(mOverlay, mColor, 0.5f);
+			sum += mColor[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Converts RGB color to HSV.
+	 */
+	@Benchmark
+	public float rgbToHsv() {
+		float sum = 0f;
+		for (int i = 0; i < COLORS * 3; i += 3) {
+			load(i);
+			InstaCamFilters.rgbToHsv(mColor);
+			sum += mColor[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Applies saturation adjustment.
+	 */
+	@Benchmark
+	public float saturation() {
+		float sum = 0f;
+		for (int i = 0; i < COLORS * 3; i += 3) {
+			load(i);
+			InstaCamFilters.saturation(mColor, 0.3f);
+			sum += mColor[0];
+		}
+		return sum;
+	}
+
+	@Setup
+	public void setup() {
+		mColors = InstaCamColorBenchmark.createColors();
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole image filtering through InstaCamCpu, the same code path pictures are
+ * saved with when RenderScript isn't available or pictures are streamed. Runs
+ * every filter for VGA, 5 MP and 13 MP images and different thread counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstaCamFilterBenchmark {
+
+	// Filter id.
+	@Param({ "0", "1", "2", "3", "4", "5", "6", "7", "8", "9" })
+	public int filter;
+	// Image size as WIDTHxHEIGHT.
+	@Param({ "640x480", "2592x1944", "4160x3120" })
+	public String size;
+	// Number of worker threads.
+	@Param({ "1", "2", "4" })
+	public int threads;
+
+	// Filter implementation.
+	private InstaCamCpu mCpu;
+	// Pixels filtered in place and their original values.
+	private int[] mPixels, mSource;
+	// Image size.
+	private int mWidth, mHeight;
+
+	/**
+	 * Filters image copy with non-zero adjustments.
+	 */
+	@Benchmark
+	public int[] apply() {
+		System.arraycopy(mSource, 0, mPixels, 0, mSource.length);
+		mCpu.apply(mPixels, mWidth, mHeight, filter, 0.1f, 0.2f, 0.3f, 0.5f);
+		return mPixels;
+	}
+
+	/**
+	 * Baseline for apply(), copying image only.
+	 */
+	@Benchmark
+	public int[] copy() {
+		System.arraycopy(mSource, 0, mPixels, 0, mSource.length);
+		return mPixels;
+	}
+
+	@TearDown
+	public void release() {
+		mCpu.release();
+	}
+
+	@Setup
+	public void setup() {
+		String[] dimensions = size.split("x");
+		mWidth = Integer.parseInt(dimensions[0]);
+		mHeight = Integer.parseInt(dimensions[1]);
+		mSource = createNoise(mWidth, mHeight);
+		mPixels = new int[mSource.length];
+		mCpu = new InstaCamCpu(threads);
+	}
+
+	/**
+	 * Creates image of smooth gradients with some noise so that both flat
+	 * areas and edges are present for neighbourhood filters.
+	 */
+	static int[] createNoise(int width, int height) {
+		Random random = new Random(0);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				int r = x * 255 / width;
+				int g = y * 255 / height;
+				int b = (x + y) & 0xFF;
+				if (random.nextInt(16) == 0) {
+					b = random.nextInt(256);
+				}
+				pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+		return pixels;
+	}
+
+}
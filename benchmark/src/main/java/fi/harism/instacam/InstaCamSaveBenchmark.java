@@ -0,0 +1,100 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JPEG encoding used for streamed pictures, the remaining Java part of
+ * picture saving depending on image size. Size independent parts are
+ * measured in InstaCamSaveSetupBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstaCamSaveBenchmark {
+
+	// Image size as WIDTHxHEIGHT.
+	@Param({ "640x480", "2592x1944", "4160x3120" })
+	public String size;
+
+	// Output stream counting and discarding bytes.
+	private final CountingStream mOut = new CountingStream();
+	// Image to encode.
+	private int[] mPixels;
+	// Image size.
+	private int mWidth, mHeight;
+
+	/**
+	 * Encodes image in 256 row bands.
+	 */
+	@Benchmark
+	public long encode() throws IOException {
+		mOut.mCount = 0;
+		InstaCamJpegEncoder encoder = new InstaCamJpegEncoder(mOut, mWidth,
+				mHeight, 90);
+		for (int y = 0; y < mHeight; y += 256) {
+			encoder.writeRows(mPixels, y * mWidth, mWidth,
+					Math.min(256, mHeight - y));
+		}
+		encoder.finish();
+		return mOut.mCount;
+	}
+
+	@Setup
+	public void setup() {
+		String[] dimensions = size.split("x");
+		mWidth = Integer.parseInt(dimensions[0]);
+		mHeight = Integer.parseInt(dimensions[1]);
+		mPixels = InstaCamFilterBenchmark.createNoise(mWidth, mHeight);
+	}
+
+	/**
+	 * Output stream only counting bytes written.
+	 */
+	private static final class CountingStream extends OutputStream {
+		private long mCount;
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			mCount += length;
+		}
+
+		@Override
+		public void write(int oneByte) {
+			++mCount;
+		}
+	}
+
+}
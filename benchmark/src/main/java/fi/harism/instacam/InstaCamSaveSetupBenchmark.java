@@ -0,0 +1,61 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parts of picture saving independent of image size: EXIF segment creation
+ * and baking of lookup tables for point-wise filters. Kept apart from
+ * InstaCamSaveBenchmark so that they aren't repeated for every size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstaCamSaveSetupBenchmark {
+
+	/**
+	 * Bakes lookup table for a filter using HSV conversions.
+	 */
+	@Benchmark
+	public InstaCamLut bakeLut() {
+		return InstaCamLut.bake(InstaCamFilters.FILTER_SAHARA, 0.1f, 0.2f,
+				0.3f);
+	}
+
+	/**
+	 * Creates EXIF segment.
+	 */
+	@Benchmark
+	public byte[] createExif() {
+		return InstaCamExif.createApp1(90, 1400000000000L);
+	}
+
+}
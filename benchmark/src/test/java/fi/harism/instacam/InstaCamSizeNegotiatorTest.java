@@ -0,0 +1,119 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests for default preview negotiator against recorded capability lists.
+ */
+public class InstaCamSizeNegotiatorTest {
+
+	// Preview sizes of a back facing camera, in driver order.
+	private static final int[][] SIZES = { { 1920, 1080 }, { 1280, 720 },
+			{ 960, 720 }, { 800, 480 }, { 768, 576 }, { 720, 480 },
+			{ 640, 480 }, { 352, 288 }, { 320, 240 }, { 240, 160 },
+			{ 176, 144 }, { 128, 96 } };
+	// Preview fps ranges of same camera.
+	private static final int[][] FPS_RANGES = { { 15000, 15000 },
+			{ 24000, 30000 }, { 15000, 30000 }, { 30000, 30000 } };
+
+	private final InstaCamSizeNegotiator mNegotiator = new InstaCamSizeNegotiator();
+
+	/**
+	 * Returns given sizes in reverse order.
+	 */
+	private static int[][] reverse(int[][] sizes) {
+		int[][] reversed = new int[sizes.length][];
+		for (int i = 0; i < sizes.length; ++i) {
+			reversed[i] = sizes[sizes.length - 1 - i];
+		}
+		return reversed;
+	}
+
+	@Test
+	public void allSizesLargerPicksSmallestMatchingRatio() {
+		// Every size covers surface, of 4:3 ones 128x96, 320x240, 640x480
+		// and 960x720 the smallest is chosen.
+		assertArrayEquals(new int[] { 128, 96 },
+				mNegotiator.selectPreviewSize(SIZES, 120, 90));
+		// Matching ratio is preferred over smaller size.
+		assertArrayEquals(new int[] { 800, 480 },
+				mNegotiator.selectPreviewSize(SIZES, 100, 60));
+	}
+
+	@Test
+	public void aspectRatioTiePicksSmallestCovering() {
+		// 1920x1080 and 1280x720 both match and cover surface.
+		assertArrayEquals(new int[] { 1280, 720 },
+				mNegotiator.selectPreviewSize(SIZES, 1280, 720));
+		assertArrayEquals(new int[] { 1280, 720 },
+				mNegotiator.selectPreviewSize(reverse(SIZES), 1280, 720));
+		// 960x720, 640x480 and 320x240 match, 640x480 is smallest covering.
+		assertArrayEquals(new int[] { 640, 480 },
+				mNegotiator.selectPreviewSize(SIZES, 600, 450));
+		assertArrayEquals(new int[] { 640, 480 },
+				mNegotiator.selectPreviewSize(reverse(SIZES), 600, 450));
+	}
+
+	@Test
+	public void emptyListsGiveNull() {
+		assertNull(mNegotiator.selectPreviewSize(new int[0][], 640, 480));
+		assertNull(mNegotiator.selectFpsRange(new int[0][], 30000));
+	}
+
+	@Test
+	public void fpsRangeBelowTargetPicksHighestMaximum() {
+		int[][] ranges = { { 7000, 15000 }, { 15000, 24000 }, { 10000, 24000 } };
+		assertArrayEquals(new int[] { 10000, 24000 },
+				mNegotiator.selectFpsRange(ranges, 30000));
+	}
+
+	@Test
+	public void fpsRangeReachingTargetPicksLowestMinimum() {
+		assertArrayEquals(new int[] { 15000, 30000 },
+				mNegotiator.selectFpsRange(FPS_RANGES, 30000));
+		// Lowest maximum reaching target wins over lower minimum.
+		assertArrayEquals(new int[] { 15000, 15000 },
+				mNegotiator.selectFpsRange(FPS_RANGES, 15000));
+	}
+
+	@Test
+	public void noCoveringSizeFallsBackToLargest() {
+		// Larger than any size, largest 4:3 one is preferred over larger
+		// 16:9 one.
+		assertArrayEquals(new int[] { 960, 720 },
+				mNegotiator.selectPreviewSize(SIZES, 4000, 3000));
+		assertArrayEquals(new int[] { 1920, 1080 },
+				mNegotiator.selectPreviewSize(SIZES, 4000, 2250));
+	}
+
+	@Test
+	public void noMatchingRatioPicksSmallestCovering() {
+		// No square sizes, smallest covering one is chosen.
+		assertArrayEquals(new int[] { 960, 720 },
+				mNegotiator.selectPreviewSize(SIZES, 700, 700));
+		assertArrayEquals(new int[] { 1920, 1080 },
+				mNegotiator.selectPreviewSize(SIZES, 1000, 1000));
+		assertArrayEquals(new int[] { 960, 720 },
+				mNegotiator.selectPreviewSize(reverse(SIZES), 700, 700));
+	}
+
+}
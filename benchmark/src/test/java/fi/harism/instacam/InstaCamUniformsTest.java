@@ -0,0 +1,177 @@
+/*
+   Copyright 2012 Harri Smatt
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package fi.harism.instacam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests for uniform values cached per shader slot. Allocations are measured
+ * over the parts of renderer frame loop not calling GL: parameter snapshot,
+ * uniform updates of last pass, render scale and gallery rate. GL calls,
+ * shaders and lookup table textures aren't covered.
+ */
+public class InstaCamUniformsTest {
+
+	// Slots of InstaCamRenderer shaders, in same order.
+	private static final int SLOT_POSITION = 0, SLOT_ORIENTATION_M = 1,
+			SLOT_TRANSFORM_M = 2, SLOT_LUT = 3, SLOT_PIXEL_SIZE = 4,
+			SLOT_BRIGHTNESS = 5, SLOT_CONTRAST = 6, SLOT_SATURATION = 7,
+			SLOT_CORNER_RADIUS = 8, SLOT_ASPECT_RATIO = 9,
+			SLOT_ASPECT_RATIO_PREVIEW = 10, SLOT_COUNT = 11;
+	// View size frames are rendered for.
+	private static final int WIDTH = 1280, HEIGHT = 720;
+	// Number of gallery tiles.
+	private static final int TILES = 10;
+	// Number of frames run for allocation measurement.
+	private static final int FRAMES = 100000;
+	// Allowed bytes allocated by measurement itself.
+	private static final long ALLOCATION_SLACK = 1024;
+
+	/**
+	 * Runs uniform updates of last pass sampling preview texture directly,
+	 * in the order renderer does them, returns number of values changed.
+	 * Transform matrix changes every frame as it does with camera preview.
+	 */
+	private static int frame(InstaCamUniforms uniforms, float[] transform,
+			int frame) {
+		return frame(uniforms, InstaCamParams.DEFAULT.withCornerRadius(.3f),
+				transform, WIDTH, HEIGHT, frame);
+	}
+
+	/**
+	 * Uniform updates of one frame with given parameters and offscreen
+	 * texture size.
+	 */
+	private static int frame(InstaCamUniforms uniforms,
+			InstaCamParams params, float[] transform, int width, int height,
+			int frame) {
+		transform[12] = frame & 0xFF;
+		float[] aspectRatioPreview = params.getAspectRatioPreview();
+		int changed = 0;
+		changed += uniforms.set1f(SLOT_CORNER_RADIUS,
+				params.getCornerRadius()) ? 1 : 0;
+		changed += uniforms.set2f(SLOT_ASPECT_RATIO, 1f,
+				(float) HEIGHT / WIDTH) ? 1 : 0;
+		changed += uniforms.set2f(SLOT_ASPECT_RATIO_PREVIEW,
+				aspectRatioPreview[0], aspectRatioPreview[1]) ? 1 : 0;
+		changed += uniforms.set1f(SLOT_LUT, 1) ? 1 : 0;
+		changed += uniforms.set2f(SLOT_PIXEL_SIZE, 1f / width, 1f / height) ? 1
+				: 0;
+		changed += uniforms.setMatrix4(SLOT_ORIENTATION_M,
+				params.getOrientationM()) ? 1 : 0;
+		changed += uniforms.setMatrix4(SLOT_TRANSFORM_M, transform) ? 1 : 0;
+		return changed;
+	}
+
+	/**
+	 * Runs one frame of renderer frame loop without GL calls, returns
+	 * number of uniform values changed. Frame times vary so that render
+	 * scale and gallery rate keep adjusting.
+	 */
+	private static int frame(InstaCamData data, InstaCamUniforms uniforms,
+			InstaCamRenderScale scale, InstaCamGalleryRate rate,
+			float[] transform, int frame) {
+		InstaCamParams params = data.getParams();
+		rate.setTight(scale.getScale() < InstaCamRenderScale.MAX_SCALE);
+		if (rate.nextFrame()) {
+			int tiles = rate.getTiles(TILES);
+			rate.addSample((frame % 3 + 1) * 500000L * tiles, tiles);
+		}
+		int changed = frame(uniforms, params, transform,
+				scale.getScaled(WIDTH), scale.getScaled(HEIGHT), frame);
+		scale.addSample((frame % 5 + 1) * 10000000L);
+		return changed;
+	}
+
+	@Test
+	public void changedValuesAreReported() {
+		InstaCamUniforms uniforms = new InstaCamUniforms(SLOT_COUNT);
+		assertTrue(uniforms.set2f(SLOT_ASPECT_RATIO, 1f, 2f));
+		assertTrue(uniforms.set2f(SLOT_ASPECT_RATIO, 1f, 3f));
+		assertTrue(uniforms.set2f(SLOT_ASPECT_RATIO, 2f, 3f));
+		float[] m = new float[16];
+		assertTrue(uniforms.setMatrix4(SLOT_TRANSFORM_M, m));
+		m[15] = 1f;
+		assertTrue(uniforms.setMatrix4(SLOT_TRANSFORM_M, m));
+	}
+
+	@Test
+	public void invalidateForcesUpdate() {
+		InstaCamUniforms uniforms = new InstaCamUniforms(SLOT_COUNT);
+		float[] m = new float[16];
+		assertTrue(uniforms.set1f(SLOT_CORNER_RADIUS, 0f));
+		assertTrue(uniforms.setMatrix4(SLOT_TRANSFORM_M, m));
+		uniforms.invalidate();
+		assertTrue(uniforms.set1f(SLOT_CORNER_RADIUS, 0f));
+		assertTrue(uniforms.setMatrix4(SLOT_TRANSFORM_M, m));
+	}
+
+	@Test
+	public void unchangedValuesAreSkipped() {
+		InstaCamUniforms uniforms = new InstaCamUniforms(SLOT_COUNT);
+		float[] transform = new float[16];
+		assertEquals(7, frame(uniforms, transform, 0));
+		assertEquals(0, frame(uniforms, transform, 0));
+		assertEquals(1, frame(uniforms, transform, 1));
+		// Values are copied, not referenced.
+		transform[0] = 2f;
+		assertFalse(uniforms.set1f(SLOT_LUT, 1));
+		assertTrue(uniforms.setMatrix4(SLOT_TRANSFORM_M, transform));
+	}
+
+	@Test
+	public void updatesAllocateNothing() {
+		// Allocation counters are HotSpot specific.
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+				instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+		bean.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		InstaCamData data = new InstaCamData();
+		data.setCornerRadius(.3f);
+		InstaCamUniforms uniforms = new InstaCamUniforms(SLOT_COUNT);
+		InstaCamRenderScale scale = new InstaCamRenderScale();
+		InstaCamGalleryRate rate = new InstaCamGalleryRate();
+		float[] transform = new float[16];
+		int changed = 0;
+		// Warm-up round so that class loading and compilation aren't
+		// counted.
+		for (int i = 0; i < FRAMES; ++i) {
+			changed += frame(data, uniforms, scale, rate, transform, i);
+		}
+		long before = bean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < FRAMES; ++i) {
+			changed += frame(data, uniforms, scale, rate, transform, i);
+		}
+		long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue(changed > 0);
+		assertTrue("allocated " + allocated + " bytes in " + FRAMES
+				+ " frames", allocated <= ALLOCATION_SLACK);
+	}
+
+}